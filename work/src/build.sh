@@ -27,21 +27,40 @@ javac -d class/core \
 mkdir -p class/core/com/brickmesh/assets
 cp src/model/*-model.txt class/core/com/brickmesh/assets
 cp assets/*.txt class/core/com/brickmesh/assets
+java -cp "${PROTO_CLASSPATH}:class/core" \
+    com.brickmesh.offline.CompileAvailableParts \
+    src/model/available-parts.txt \
+    class/core/com/brickmesh/assets/available-parts.bin
 jar cf jar/brickmesh.jar -C class/core com
 
 # Tests.
 javac -d class/test \
     -classpath "${PROTO_CLASSPATH}:jar/brickmesh.jar:class/test" \
     -Xlint:unchecked \
+    src/javatest/com/brickmesh/offline/*.java \
     src/javatest/com/brickmesh/parts/*.java \
     src/javatest/com/brickmesh/util/*.java
 
-# Run unit tests & benchmarks.
+# Run unit tests & benchmarks. The benchmarks only run briefly here, use
+# run-benchmarks.sh for meaningful numbers.
 TEST_CLASSPATH="${PROTO_CLASSPATH}:jar/brickmesh.jar:class/test"
+QUICK_BENCHMARK="-Dbenchmark.warmupIterations=0 -Dbenchmark.iterations=1 -Dbenchmark.iterationMillis=10"
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.offline.ComputeLDrawWeightsTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.offline.LDrawLibraryTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.offline.LDrawWeightEstimatorTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.AvailablePartsTest
 java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.ItemIdTest
 java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.PartLoaderTest
 java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.PartModelTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.PartRecommenderTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.PartExporterTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m ${QUICK_BENCHMARK} com.brickmesh.parts.PipelineBenchmark
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.ProgressiveLoaderTest
 java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.RequiredItemsTest
-java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.util.SorterBenchmark
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.ShopOptimizerTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.parts.UnknownItemsTelemetryTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.util.HeavyHittersTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.util.LineTokenizerTest
+java -cp "${TEST_CLASSPATH}" -Xmx128m ${QUICK_BENCHMARK} com.brickmesh.util.SorterBenchmark
 java -cp "${TEST_CLASSPATH}" -Xmx128m com.brickmesh.util.SorterTest
 
@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.offline;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import com.brickmesh.parts.AvailableParts;
+
+// Converts available-parts.txt to the binary form that loads faster.
+public final class CompileAvailableParts {
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Not enough args.");
+      System.err.println("Usage: <command> <available-parts.txt> <output-path>\n");
+      return;
+    }
+
+    AvailableParts availableParts = AvailableParts.loadText(
+        new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+    FileOutputStream fos = new FileOutputStream(args[1]);
+    try {
+      availableParts.writeBinary(fos);
+    }
+    finally {
+      fos.close();
+    }
+    System.err.format("Wrote %d entries.\n", availableParts.numEntries());
+  }
+}
@@ -27,39 +27,115 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.offline;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import com.brickmesh.parts.ItemId;
 import com.brickmesh.parts.PartModel;
 
 // Computes weight estimates for many parts based on LDraw geometry.
 public final class ComputeLDrawWeights {
-  public static void main(String[] args) throws IOException {
-    if (args.length != 2) {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length != 2 && args.length != 3) {
       System.err.println("Not enough args.");
-      System.err.println("Usage: <command> <weights-csv> <ldraw-path>\n");
+      System.err.println("Usage: <command> <weights-csv> <ldraw-path> [num-threads]\n");
       return;
     }
 
     ArrayList<String> ids = loadIdsFromCsv(args[0]);
     for (String partId : ids) {
-      PartModel.Part part = partModel_.findPartOrNull(partId);
-      if (part == null) {
+      if (partModel_.findPartOrNull(partId) == null) {
         System.err.println("Unknown part: " + partId);
         return;
       }
-      double w = part.weightGrams_;
-      LDrawWeightEstimator.Result result = estimateWeightOrNull(partId, args[1]);
-      if (result == null) {
-        System.err.println("No result for " + partId);
-      } else {
-        System.out.format("%s,%.3f\n", partId, result.weightGrams());
+    }
+
+    // A single estimator, so that the parsed sub-files are shared.
+    LDrawWeightEstimator lw = new LDrawWeightEstimator(args[1]);
+    // Only parts where the part or an included file changed are recomputed.
+    LDrawWeightCache resultCache = LDrawWeightCache.load(
+        new File(LDrawWeightCache.DEFAULT_PATH));
+    lw.setResultCache(resultCache);
+    ForkJoinPool pool = args.length == 3 ?
+        new ForkJoinPool(Integer.parseInt(args[2])) : new ForkJoinPool();
+    long start = System.nanoTime();
+    try {
+      estimateAll(ids, lw, resultCache, pool, SAVE_INTERVAL, System.out, System.err);
+    }
+    finally {
+      pool.shutdownNow();
+    }
+    System.err.format("%d part(s) in %.1f s with %d thread(s), %d cached\n",
+        ids.size(), (System.nanoTime() - start) / 1e9, pool.getParallelism(),
+        resultCache.numHits());
+  }
+
+  // Estimates the parts on the pool. The results are printed in the order
+  // of partIds as soon as they are available, and the result cache is saved
+  // after every saveInterval parts and at the end, so that a run that is
+  // killed keeps most of what it computed.
+  static void estimateAll(List<String> partIds, final LDrawWeightEstimator lw,
+      LDrawWeightCache resultCache, ExecutorService pool, int saveInterval,
+      PrintStream out, PrintStream err) throws IOException, InterruptedException {
+    ArrayList<Future<PartResult>> futures = new ArrayList<Future<PartResult>>();
+    for (final String partId : partIds) {
+      futures.add(pool.submit(new Callable<PartResult>() {
+        public PartResult call() {
+          long start = System.nanoTime();
+          LDrawWeightEstimator.Result result = null;
+          String error = null;
+          try {
+            result = estimateWeightOrNull(partId, lw);
+          }
+          // A malformed file fails only its own part, not the whole run.
+          catch (RuntimeException e) {
+            error = e.toString();
+          }
+          catch (AssertionError e) {
+            error = e.toString();
+          }
+          return new PartResult(partId, result, error, System.nanoTime() - start);
+        }
+      }));
+    }
+
+    try {
+      for (int i = 0; i < futures.size(); ++i) {
+        PartResult partResult = futures.get(i).get();
+        LDrawWeightEstimator.Result result = partResult.result_;
+        if (result == null) {
+          err.format("No result for %s (%.1f ms)%s\n",
+              partResult.partId_, partResult.nanos_ / 1e6,
+              partResult.error_ == null ? "" : ": " + partResult.error_);
+        } else {
+          out.format("%s,%.3f\n", partResult.partId_, result.weightGrams());
+          err.format("%s: %.1f ms, %.3f%% error\n", partResult.partId_,
+              partResult.nanos_ / 1e6, 100.0 * result.errorMargin());
+        }
+        out.flush();
+        if ((i + 1) % saveInterval == 0) {
+          resultCache.save();
+        }
       }
     }
+    catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    finally {
+      // Keep what was computed, even if the run failed.
+      resultCache.save();
+    }
   }
 
   private static ArrayList<String> loadIdsFromCsv(String csvPath)
@@ -79,11 +155,10 @@ public final class ComputeLDrawWeights {
   }
 
   private static LDrawWeightEstimator.Result estimateWeightOrNull(
-      String partId, String ldrawPath) {
+      String partId, LDrawWeightEstimator lw) {
     PartModel.Part part = partModel_.findPartOrNull(partId);
     if (part == null) return null;
 
-    LDrawWeightEstimator lw = new LDrawWeightEstimator(ldrawPath);
     for (String id : part.ids_) {
       // Try the id first.
       String[] idPieces = ItemId.idPiecesOrNull(id);
@@ -103,6 +178,25 @@ public final class ComputeLDrawWeights {
     return null;
   }
 
+  private static class PartResult {
+    public PartResult(String partId, LDrawWeightEstimator.Result result,
+        String error, long nanos) {
+      partId_ = partId;
+      result_ = result;
+      error_ = error;
+      nanos_ = nanos;
+    }
+
+    public final String partId_;
+    public final LDrawWeightEstimator.Result result_;
+    // Set if the estimation failed.
+    public final String error_;
+    public final long nanos_;
+  }
+
+  // How many parts are printed between saves of the result cache.
+  private static final int SAVE_INTERVAL = 100;
+
   private static PartModel partModel_;
 
   static {
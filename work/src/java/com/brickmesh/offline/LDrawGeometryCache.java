@@ -0,0 +1,155 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.offline;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parsed LDraw files, so that sub-files like stud.dat are read and parsed
+// only once and not every time they are included. The geometry is kept
+// untransformed; the transformation is applied when it is used.
+//
+// The cache is bounded by the approximate memory used by the geometry;
+// the least recently used files are evicted first. It can be shared by
+// multiple LDrawWeightEstimator instances and is thread-safe.
+public final class LDrawGeometryCache {
+  // The geometry of a single file, in the order of the lines in the file.
+  static final class Geometry {
+    Geometry(double[] triangles, byte[] windings, int numTriangles,
+        String[] subFiles, double[] subMatrices, boolean[] subInvert,
+        int[] subFileAt, int numSubFiles) {
+      triangles_ = triangles;
+      windings_ = windings;
+      numTriangles_ = numTriangles;
+      subFiles_ = subFiles;
+      subMatrices_ = subMatrices;
+      subInvert_ = subInvert;
+      subFileAt_ = subFileAt;
+      numSubFiles_ = numSubFiles;
+    }
+
+    long sizeBytes() {
+      return 192 + triangles_.length * 8L + windings_.length +
+          subFiles_.length * 48L + subMatrices_.length * 8L +
+          subInvert_.length + subFileAt_.length * 4L;
+    }
+
+    // The corners of the triangles, 9 coordinates each.
+    final double[] triangles_;
+
+    // For each triangle: 0 if there was no BFC certification, +1 if it was
+    // certified CW and -1 if CCW at the point of the triangle.
+    final byte[] windings_;
+    final int numTriangles_;
+
+    // Included sub-files with the names as in the file.
+    final String[] subFiles_;
+
+    // The transformation of each sub-file, 12 numbers each: the
+    // translation and the 3 rows of the matrix as in the file.
+    final double[] subMatrices_;
+
+    // Whether the sub-file was preceded by BFC INVERTNEXT.
+    final boolean[] subInvert_;
+
+    // The number of triangles in the file before the sub-file reference.
+    final int[] subFileAt_;
+    final int numSubFiles_;
+
+    // Computed lazily by the analytic estimator. Computing it twice
+    // in parallel is harmless.
+    volatile double[] moments_;
+  }
+
+  public LDrawGeometryCache(long maxSizeBytes) {
+    maxSizeBytes_ = maxSizeBytes;
+    map_ = new LinkedHashMap<String, Geometry>(256, 0.75f, true);
+  }
+
+  // Lowercase with forward slashes, LDraw file names are not case sensitive.
+  public static String normalizeFilename(String filename) {
+    StringBuilder sb = null;
+    for (int i = 0; i < filename.length(); ++i) {
+      char c = filename.charAt(i);
+      char n = c == '\\' ? '/' : Character.toLowerCase(c);
+      if (n != c && sb == null) {
+        sb = new StringBuilder(filename.length());
+        sb.append(filename, 0, i);
+      }
+      if (sb != null) {
+        sb.append(n);
+      }
+    }
+    return sb == null ? filename : sb.toString();
+  }
+
+  public synchronized int numHits() {
+    return numHits_;
+  }
+
+  public synchronized int numMisses() {
+    return numMisses_;
+  }
+
+  public synchronized long sizeBytes() {
+    return sizeBytes_;
+  }
+
+  synchronized Geometry getOrNull(String normalizedFilename) {
+    Geometry geometry = map_.get(normalizedFilename);
+    if (geometry == null) {
+      ++numMisses_;
+    } else {
+      ++numHits_;
+    }
+    return geometry;
+  }
+
+  synchronized void put(String normalizedFilename, Geometry geometry) {
+    Geometry old = map_.put(normalizedFilename, geometry);
+    if (old != null) {
+      sizeBytes_ -= old.sizeBytes();
+    }
+    sizeBytes_ += geometry.sizeBytes();
+    Iterator<Map.Entry<String, Geometry>> it = map_.entrySet().iterator();
+    while (sizeBytes_ > maxSizeBytes_ && it.hasNext()) {
+      Map.Entry<String, Geometry> eldest = it.next();
+      sizeBytes_ -= eldest.getValue().sizeBytes();
+      it.remove();
+    }
+  }
+
+  public static final long DEFAULT_MAX_SIZE_BYTES = 64L * 1024 * 1024;
+
+  private final long maxSizeBytes_;
+  private final LinkedHashMap<String, Geometry> map_;
+  private long sizeBytes_;
+  private int numHits_;
+  private int numMisses_;
+};
@@ -0,0 +1,305 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.brickmesh.offline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// Resolves LDraw file names to their contents. The include directories are
+// indexed once, so that references can be resolved without probing the
+// file system. Names are normalized with LDrawGeometryCache.normalizeFilename,
+// which makes them case insensitive.
+//
+// The official library (the PARTS and P directories) can also be packed
+// into a single file, which is memory mapped and indexed when loaded.
+// Instances are immutable and thread-safe.
+public final class LDrawLibrary {
+  // Packs the library at ldrawPath into a single file.
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Not enough args.");
+      System.err.println("Usage: <command> <ldraw-path> <output-pack>\n");
+      return;
+    }
+
+    HashMap<String, File> files = new HashMap<String, File>();
+    indexDirectories(officialDirs(args[0]), files);
+    writePack(files, new File(args[1]));
+    System.err.format("Packed %d file(s).\n", files.size());
+  }
+
+  // The library at ldrawPath, which is either a directory with the PARTS
+  // and P directories or a file written by main().
+  public static LDrawLibrary forLDrawPath(String ldrawPath) throws IOException {
+    HashMap<String, File> files = new HashMap<String, File>();
+    indexDirectories(localDirs(), files);
+    File path = new File(ldrawPath);
+    if (path.isFile()) {
+      return new LDrawLibrary(files, path);
+    }
+    indexDirectories(officialDirs(ldrawPath), files);
+    return new LDrawLibrary(files, null);
+  }
+
+  private LDrawLibrary(HashMap<String, File> files, File packOrNull)
+      throws IOException {
+    files_ = files;
+    packed_ = new HashMap<String, int[]>();
+    if (packOrNull == null) {
+      pack_ = null;
+      return;
+    }
+
+    DataInputStream dis = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(packOrNull)));
+    try {
+      if (dis.readInt() != PACK_MAGIC) {
+        throw new IOException("Not an LDraw pack: " + packOrNull);
+      }
+      int dataStart = dis.readInt();
+      int numEntries = dis.readInt();
+      for (int i = 0; i < numEntries; ++i) {
+        String name = dis.readUTF();
+        int offset = dis.readInt();
+        int length = dis.readInt();
+        if (offset < 0 || length < 0) {
+          throw new IOException("Invalid entry: " + name);
+        }
+        packed_.put(name, new int[] { dataStart + offset, length });
+      }
+    }
+    finally {
+      dis.close();
+    }
+
+    RandomAccessFile file = new RandomAccessFile(packOrNull, "r");
+    try {
+      pack_ = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    }
+    finally {
+      file.close();
+    }
+    for (int[] entry : packed_.values()) {
+      if ((long)entry[0] + entry[1] > pack_.capacity()) {
+        throw new IOException("Truncated LDraw pack: " + packOrNull);
+      }
+    }
+  }
+
+  public boolean contains(String normalizedFilename) {
+    return files_.containsKey(normalizedFilename) ||
+        packed_.containsKey(normalizedFilename);
+  }
+
+  public int numFiles() {
+    return files_.size() + packed_.size();
+  }
+
+  // Returns null if the file is not in the directories.
+  public File fileOrNull(String normalizedFilename) {
+    return files_.get(normalizedFilename);
+  }
+
+  // The contents of a packed file, or null if the file is not in the pack.
+  // Files in the directories take precedence, so check fileOrNull() first.
+  public ByteBuffer packedOrNull(String normalizedFilename) {
+    int[] entry = packed_.get(normalizedFilename);
+    if (entry == null) return null;
+    ByteBuffer buffer = pack_.duplicate();
+    buffer.position(entry[0]);
+    buffer.limit(entry[0] + entry[1]);
+    return buffer.slice();
+  }
+
+  // The digest of the contents of the file.
+  public byte[] contentDigest(String normalizedFilename) throws IOException {
+    MessageDigest md = newDigest();
+    File file = fileOrNull(normalizedFilename);
+    if (file != null) {
+      FileInputStream fis = new FileInputStream(file);
+      try {
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+          int read = fis.read(buffer);
+          if (read < 0) break;
+          md.update(buffer, 0, read);
+        }
+      }
+      finally {
+        fis.close();
+      }
+      return md.digest();
+    }
+    ByteBuffer packed = packedOrNull(normalizedFilename);
+    if (packed == null) {
+      throw new IOException("No path found for file: " + normalizedFilename);
+    }
+    md.update(packed);
+    return md.digest();
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Directories that come before the official library. The current
+  // directory is not searched recursively.
+  private static File[] localDirs() {
+    return new File[] {
+      new File("."),
+      new File("src/ldraw"),
+      new File("src/ldraw-unofficial"),
+    };
+  }
+
+  private static File[] officialDirs(String ldrawPath) {
+    return new File[] {
+      new File(ldrawPath, "PARTS"),
+      new File(ldrawPath, "P"),
+    };
+  }
+
+  // Files in earlier directories take precedence.
+  private static void indexDirectories(File[] dirs, HashMap<String, File> files) {
+    for (File dir : dirs) {
+      indexDirectory(dir, "", !dir.getPath().equals("."), files);
+    }
+  }
+
+  private static void indexDirectory(File dir, String prefix, boolean recursive,
+      HashMap<String, File> files) {
+    File[] children = dir.listFiles();
+    if (children == null) return;
+    for (File child : children) {
+      String name = prefix + child.getName();
+      if (child.isDirectory()) {
+        if (recursive) {
+          indexDirectory(child, name + "/", recursive, files);
+        }
+      } else {
+        String normalized = LDrawGeometryCache.normalizeFilename(name);
+        if (!files.containsKey(normalized)) {
+          files.put(normalized, child);
+        }
+      }
+    }
+  }
+
+  private static void writePack(HashMap<String, File> files, File output)
+      throws IOException {
+    ArrayList<Map.Entry<String, File>> entries =
+        new ArrayList<Map.Entry<String, File>>(files.entrySet());
+    int headerSize = 12;
+    long dataSize = 0;
+    for (Map.Entry<String, File> entry : entries) {
+      headerSize += utfLength(entry.getKey()) + 8;
+      dataSize += entry.getValue().length();
+    }
+    if (headerSize + dataSize > Integer.MAX_VALUE) {
+      throw new IOException("Library too large to pack: " + dataSize);
+    }
+
+    DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(output)));
+    try {
+      dos.writeInt(PACK_MAGIC);
+      dos.writeInt(headerSize);
+      dos.writeInt(entries.size());
+      int offset = 0;
+      for (Map.Entry<String, File> entry : entries) {
+        int length = (int)entry.getValue().length();
+        dos.writeUTF(entry.getKey());
+        dos.writeInt(offset);
+        dos.writeInt(length);
+        offset += length;
+      }
+      byte[] buffer = new byte[64 * 1024];
+      for (Map.Entry<String, File> entry : entries) {
+        FileInputStream fis = new FileInputStream(entry.getValue());
+        try {
+          long remaining = entry.getValue().length();
+          while (remaining > 0) {
+            int read = fis.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (read < 0) {
+              throw new IOException("File changed while packing: " + entry.getValue());
+            }
+            dos.write(buffer, 0, read);
+            remaining -= read;
+          }
+        }
+        finally {
+          fis.close();
+        }
+      }
+    }
+    finally {
+      dos.close();
+    }
+  }
+
+  // The number of bytes written by DataOutputStream.writeUTF.
+  private static int utfLength(String s) {
+    int length = 2;
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f) {
+        length += 1;
+      } else if (c <= 0x07ff) {
+        length += 2;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private static final int PACK_MAGIC = 0x424d4c50;  // "BMLP"
+
+  private final HashMap<String, File> files_;
+  private final HashMap<String, int[]> packed_;
+  private final ByteBuffer pack_;
+};
@@ -0,0 +1,204 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.brickmesh.offline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+// Estimated weights that survive between runs. Each result is stored with
+// the digest of the part file and all the files it includes (see
+// LDrawWeightEstimator.dependencyDigest), so a result is only reused if
+// none of these files changed.
+//
+// The cache is a text file that starts with VERSION_LINE, followed by one
+// line per part and mode:
+// <mode> <digest> <weight> <shifted weight> <normalized filename>
+// The filename is last, as it may contain spaces. The modes give different
+// results, so they are kept apart. Files of
+// other versions are ignored and replaced on the next save.
+//
+// The file is replaced atomically when saved, so concurrent readers always
+// see a complete file. If multiple processes save, the last one wins.
+public final class LDrawWeightCache {
+  // Shared by the tools that estimate weights. Relative to the working
+  // directory like their other outputs.
+  public static final String DEFAULT_PATH = "ldraw-weights.cache";
+
+  // Loads the cache from the file, or starts an empty one if it does not
+  // exist yet.
+  public static LDrawWeightCache load(File file) throws IOException {
+    LDrawWeightCache cache = new LDrawWeightCache(file);
+    if (!file.exists()) return cache;
+
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      if (!VERSION_LINE.equals(line)) {
+        System.err.println("Ignoring " + file + " of another version.");
+        return cache;
+      }
+      int lineNumber = 1;
+      while (true) {
+        line = reader.readLine();
+        if (line == null) break;
+        ++lineNumber;
+        if (line.length() == 0 || line.startsWith("#")) continue;
+        String[] pieces = line.split(" ", 5);
+        if (pieces.length != 5) {
+          throw new IOException("Invalid line " + lineNumber + " in " + file);
+        }
+        try {
+          LDrawWeightEstimator.Mode mode = LDrawWeightEstimator.Mode.valueOf(pieces[0]);
+          cache.entries_.put(key(mode, pieces[4]),
+              new Entry(mode, pieces[4], pieces[1], new LDrawWeightEstimator.Result(
+                  Double.parseDouble(pieces[2]), Double.parseDouble(pieces[3]))));
+        }
+        catch (IllegalArgumentException e) {
+          // Also NumberFormatException.
+          throw new IOException("Invalid line " + lineNumber + " in " + file);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return cache;
+  }
+
+  private LDrawWeightCache(File file) {
+    file_ = file;
+    entries_ = new HashMap<String, Entry>();
+  }
+
+  // Returns null if there is no result for the file with this digest,
+  // estimated in this mode.
+  public synchronized LDrawWeightEstimator.Result getOrNull(
+      LDrawWeightEstimator.Mode mode, String normalizedFilename, String digest) {
+    Entry entry = entries_.get(key(mode, normalizedFilename));
+    if (entry == null || !entry.digest_.equals(digest)) {
+      ++numMisses_;
+      return null;
+    }
+    ++numHits_;
+    return entry.result_;
+  }
+
+  public synchronized void put(LDrawWeightEstimator.Mode mode,
+      String normalizedFilename, String digest, LDrawWeightEstimator.Result result) {
+    entries_.put(key(mode, normalizedFilename),
+        new Entry(mode, normalizedFilename, digest, result));
+    dirty_ = true;
+  }
+
+  public synchronized int numHits() {
+    return numHits_;
+  }
+
+  public synchronized int numMisses() {
+    return numMisses_;
+  }
+
+  // Writes the cache if anything was added since it was loaded.
+  public synchronized void save() throws IOException {
+    if (!dirty_) return;
+    File parent = file_.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile(file_.getName(), ".tmp", parent);
+    try {
+      PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+          new FileOutputStream(temp), "UTF-8"));
+      try {
+        writer.println(VERSION_LINE);
+        writer.println("# LDraw weight estimates, see LDrawWeightCache.");
+        TreeMap<String, Entry> sorted = new TreeMap<String, Entry>(entries_);
+        for (Entry entry : sorted.values()) {
+          writer.print(entry.mode_.name());
+          writer.print(' ');
+          writer.print(entry.digest_);
+          writer.print(' ');
+          writer.print(Double.toString(entry.result_.weightGrams()));
+          writer.print(' ');
+          writer.print(Double.toString(entry.result_.shiftedWeightGrams()));
+          writer.print(' ');
+          writer.println(entry.filename_);
+        }
+      }
+      finally {
+        writer.close();
+      }
+      if (writer.checkError()) {
+        throw new IOException("Could not write " + temp);
+      }
+      Files.move(temp.toPath(), file_.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      temp.delete();
+    }
+    dirty_ = false;
+  }
+
+  // Sorts by mode first, then by filename.
+  private static String key(LDrawWeightEstimator.Mode mode,
+      String normalizedFilename) {
+    return mode.name() + " " + normalizedFilename;
+  }
+
+  private static class Entry {
+    public Entry(LDrawWeightEstimator.Mode mode, String filename, String digest,
+        LDrawWeightEstimator.Result result) {
+      mode_ = mode;
+      filename_ = filename;
+      digest_ = digest;
+      result_ = result;
+    }
+
+    public final LDrawWeightEstimator.Mode mode_;
+    public final String filename_;
+    public final String digest_;
+    public final LDrawWeightEstimator.Result result_;
+  }
+
+  // Change it if the format or the estimates change.
+  private static final String VERSION_LINE = "# version 3";
+
+  private final File file_;
+  private final HashMap<String, Entry> entries_;
+  private boolean dirty_;
+  private int numHits_;
+  private int numMisses_;
+};
@@ -28,10 +28,17 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.brickmesh.offline;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.LineNumberReader;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.brickmesh.util.LineTokenizer;
 
 // Computes an estimate for the weight of an LDraw part in grams
 // based on the geometry of the part.
@@ -45,14 +52,21 @@ import java.util.ArrayList;
 // For the rest we just live with the error.
 public final class LDrawWeightEstimator {
   public static void main(String[] args) throws IOException {
-    if (args.length < 2) {
+    int first = 0;
+    Mode mode = Mode.MATERIALIZED;
+    if (args.length > 0 && args[0].equals("--analytic")) {
+      mode = Mode.ANALYTIC;
+      first = 1;
+    }
+    if (args.length < first + 2) {
       System.err.println("Not enough args.");
-      System.err.println("Usage: <command> <ldraw-path> <part-id> [...]\n");
+      System.err.println("Usage: <command> [--analytic] <ldraw-path> <part-id> [...]\n");
       return;
     }
 
-    LDrawWeightEstimator l = new LDrawWeightEstimator(args[0]);
-    for (int i = 1; i < args.length; ++i) {
+    LDrawWeightEstimator l = new LDrawWeightEstimator(args[first],
+        new LDrawGeometryCache(LDrawGeometryCache.DEFAULT_MAX_SIZE_BYTES), mode);
+    for (int i = first + 1; i < args.length; ++i) {
       Result r = l.partWeightGramsForPart(args[i]);
       if (r == null) {
         System.out.format("No LDraw model found.\n");
@@ -82,6 +96,12 @@ public final class LDrawWeightEstimator {
       return Math.abs(w1_ - w2_) < 1e-10;
     }
 
+    // The weight estimated with the part shifted by its size. It differs
+    // from weightGrams() if the mesh is not closed.
+    public double shiftedWeightGrams() {
+      return w2_;
+    }
+
     public double errorMargin() {
       return Math.abs(w2_ - w1_) / w1_;
     }
@@ -99,14 +119,39 @@ public final class LDrawWeightEstimator {
     private double w2_;
   }
 
-  public LDrawWeightEstimator(String ldrawPath) {
-    includeDirs_ = new File[] {
-      new File("."),
-      new File("src/ldraw"),
-      new File("src/ldraw-unofficial"),
-      new File(ldrawPath, "PARTS"),
-      new File(ldrawPath, "P" ),
-    };
+  // How the volume is computed.
+  public enum Mode {
+    // All triangles of the part are transformed and collected first.
+    MATERIALIZED,
+
+    // Volume and bounding box are computed per file in its own frame and
+    // combined under the transformations, without transforming triangles.
+    // The bounding box of rotated sub-files may be slightly larger.
+    ANALYTIC,
+  }
+
+  // The ldrawPath is either the LDraw directory or a pack of it,
+  // see LDrawLibrary.
+  public LDrawWeightEstimator(String ldrawPath) throws IOException {
+    this(ldrawPath, new LDrawGeometryCache(LDrawGeometryCache.DEFAULT_MAX_SIZE_BYTES));
+  }
+
+  // Estimators that use the same library may share the cache.
+  public LDrawWeightEstimator(String ldrawPath, LDrawGeometryCache cache)
+      throws IOException {
+    this(ldrawPath, cache, Mode.MATERIALIZED);
+  }
+
+  public LDrawWeightEstimator(String ldrawPath, LDrawGeometryCache cache,
+      Mode mode) throws IOException {
+    this(LDrawLibrary.forLDrawPath(ldrawPath), cache, mode);
+  }
+
+  public LDrawWeightEstimator(LDrawLibrary library, LDrawGeometryCache cache,
+      Mode mode) {
+    library_ = library;
+    cache_ = cache;
+    mode_ = mode;
   }
 
   public Result partWeightGramsForPart(String partId) {
@@ -127,311 +172,510 @@ public final class LDrawWeightEstimator {
     return null;
   }
 
-  public Result partWeightGramsForFile(String filename) throws IOException {
-    final double ldrToCm = 0.04;
-    final double absDensityGramPerCm3 = 1.052;
-    final double f = ldrToCm * ldrToCm * ldrToCm * absDensityGramPerCm3;
+  // Results are looked up in the cache and added to it. Set it before
+  // the estimator is used, the cache itself is thread-safe.
+  public void setResultCache(LDrawWeightCache resultCache) {
+    resultCache_ = resultCache;
+  }
 
-    Matrix3 noop = new Matrix3();
-    ArrayList<Triangle> triangles = loadTriangles(filename, noop, +1);
-    Vector3 min = minCorner(triangles);
-    Vector3 max = maxCorner(triangles);
+  public Result partWeightGramsForFile(String filename) throws IOException {
+    if (resultCache_ == null) {
+      return computeWeight(filename);
+    }
+    String normalized = LDrawGeometryCache.normalizeFilename(filename);
+    String digest = dependencyDigest(filename);
+    Result result = resultCache_.getOrNull(mode_, normalized, digest);
+    if (result == null) {
+      result = computeWeight(filename);
+      resultCache_.put(mode_, normalized, digest, result);
+    }
+    return result;
+  }
 
-    Matrix3 center = center(min, max);
-    double v1 = Math.abs(signedVolume(center, triangles));
+  // A digest of the contents of the file and, recursively, of all the files
+  // it includes. It changes if any of the files that affect the weight do.
+  public String dependencyDigest(String filename) throws IOException {
+    byte[] digest = dependencyDigestBytes(filename);
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
 
-    Matrix3 shifted = center(min, max);
-    shifted.t_ = shifted.t_.plus(max.minus(min));
-    double v2 = Math.abs(signedVolume(shifted, triangles));
-    return new Result(v1 * f, v2 * f);
+  private byte[] dependencyDigestBytes(String filename) throws IOException {
+    String normalized = LDrawGeometryCache.normalizeFilename(filename);
+    byte[] result = digests_.get(normalized);
+    if (result != null) return result;
+
+    // Only the names of the sub-files are needed, so the file is scanned
+    // instead of parsed, and hashed in the same pass. A cached result is
+    // then found without parsing any geometry.
+    MessageDigest content = LDrawLibrary.newDigest();
+    ArrayList<String> subFiles = new ArrayList<String>();
+    scanSubFiles(filename, normalized, content, subFiles);
+    MessageDigest md = LDrawLibrary.newDigest();
+    md.update(content.digest());
+    for (String subFile : subFiles) {
+      md.update(dependencyDigestBytes(subFile));
+    }
+    result = md.digest();
+    digests_.put(normalized, result);
+    return result;
   }
 
-  private LineNumberReader open(String filename) throws IOException {
-    filename = filename.replaceAll("\\\\", "/");
-    for (File dir : includeDirs_) {
-      File f = new File(dir, filename);
-      if (f.exists()) {
-        return new LineNumberReader(new FileReader(f));
+  // Adds the contents of the file to the digest and the files it includes
+  // to subFiles, in the same order as parseGeometry().
+  private void scanSubFiles(String filename, String normalized,
+      MessageDigest digest, ArrayList<String> subFiles) throws IOException {
+    InputStream input = null;
+    LineTokenizer tokenizer;
+    File file = library_.fileOrNull(normalized);
+    if (file != null) {
+      input = new DigestInputStream(new FileInputStream(file), digest);
+      tokenizer = new LineTokenizer(input);
+    } else {
+      ByteBuffer packed = library_.packedOrNull(normalized);
+      if (packed == null) {
+        throw new IOException("No path found for file: " + filename);
+      }
+      digest.update(packed.duplicate());
+      tokenizer = new LineTokenizer(packed);
+    }
+    try {
+      while (tokenizer.nextLine()) {
+        if (tokenizer.nextDigitToken() != 1) continue;
+        // The color, the translation and the rows of the matrix.
+        tokenizer.skipTokens(13);
+        checkHasToken(tokenizer, filename);
+        subFiles.add(tokenizer.nextTokenOrNull());
       }
     }
-    throw new IOException("No path found for file: " + filename);
+    finally {
+      if (input != null) input.close();
+    }
   }
 
-  private ArrayList<Triangle> loadTriangles(String filename, Matrix3 m, int invertSign)
-      throws IOException {
-    ArrayList<Triangle> result = new ArrayList<Triangle>();
-    LineNumberReader reader = open(filename);
-    int localSign = 1;
-    int invertLines = 0;
-    while (true) {
-      String line = reader.readLine();
-      if (line == null) break;
-      String[] tokens = line.replaceFirst("^ +", ""). split(" +");
-      if (tokens.length == 0) continue;
-
-      if (tokens[0].equals("0") && tokens.length > 1) {
-        // Meta directive. We are only interested in clockwise-related ones.
-        if (!parseToken(tokens, 1, reader, filename).equals("BFC")) continue;
-        String bfcToken = parseToken(tokens, 2, reader, filename);
-        if (bfcToken.equals("INVERTNEXT")) {
-          invertLines = 1;
-          continue;
-        } else if (bfcToken.equals("CERTIFY")) {
-          String cwToken = parseToken(tokens, 3, reader, filename);
-          if (cwToken.equals("CW")) {
-            localSign = +m.sign() * invertSign;
-          } else if (cwToken.equals("CCW")) {
-            localSign = -m.sign() * invertSign;
-          }
-        }
-      }
+  private Result computeWeight(String filename) throws IOException {
+    final double ldrToCm = 0.04;
+    final double absDensityGramPerCm3 = 1.052;
+    final double f = ldrToCm * ldrToCm * ldrToCm * absDensityGramPerCm3;
+    if (mode_ == Mode.ANALYTIC) {
+      return analyticWeight(filename, f);
+    }
+
+    TriangleBuffer triangles = new TriangleBuffer();
+    loadTriangles(filename, IDENTITY, +1, triangles);
+    double[] box = boundingBox(triangles);
+    double cx = (box[0] - box[3]) / 2;
+    double cy = (box[1] - box[4]) / 2;
+    double cz = (box[2] - box[5]) / 2;
+    double v1 = Math.abs(signedVolume(triangles, cx, cy, cz));
+    double v2 = Math.abs(signedVolume(triangles,
+        cx + (box[3] - box[0]), cy + (box[4] - box[1]), cz + (box[5] - box[2])));
+    return new Result(v1 * f, v2 * f);
+  }
 
-      if (tokens[0].equals("1")) {
-        // Include a sub-file.
-        Vector3 t = parseVector3(tokens, 2, reader, filename);
-        Vector3 x = parseVector3(tokens, 5, reader, filename);
-        Vector3 y = parseVector3(tokens, 8, reader, filename);
-        Vector3 z = parseVector3(tokens, 11, reader, filename);
-        String subFilename = parseToken(tokens, 14, reader, filename);
-        Matrix3 subM = new Matrix3(x, y, z, t);
-        Matrix3 tM = m.transformMatrix(subM);
-        result.addAll(loadTriangles(subFilename, tM,
-            invertLines > 0 ? -invertSign : invertSign));
-      } else if (tokens[0].equals("3")) {
-        // Triangle.
-        Vector3 v1 = parseVector3(tokens, 2, reader, filename);
-        Vector3 v2 = parseVector3(tokens, 5, reader, filename);
-        Vector3 v3 = parseVector3(tokens, 8, reader, filename);
-        if (localSign != +1 && localSign != -1) {
-          throw new AssertionError("Unknown sign in file " + filename);
-        }
-        result.add(m.transformTriangle(new Triangle(v1, v2, v3, localSign)));
-      } else if (tokens[0].equals("4")) {
-        // Quad.
-        Vector3 v1 = parseVector3(tokens, 2, reader, filename);
-        Vector3 v2 = parseVector3(tokens, 5, reader, filename);
-        Vector3 v3 = parseVector3(tokens, 8, reader, filename);
-        Vector3 v4 = parseVector3(tokens, 11, reader, filename);
-        if (localSign != +1 && localSign != -1) {
-          throw new AssertionError("Unknown sign in file " + filename);
-        }
-        result.add(m.transformTriangle(new Triangle(v1, v2, v3, localSign)));
-        result.add(m.transformTriangle(new Triangle(v3, v4, v1, localSign)));
+  // Adds the triangles of the file, transformed by m, to the result.
+  // Transformations are 12 numbers: the translation and the 3 rows of the
+  // matrix, as in the LDraw files.
+  private void loadTriangles(String filename, double[] m, int invertSign,
+      TriangleBuffer result) throws IOException {
+    LDrawGeometryCache.Geometry geometry = geometry(filename);
+    int sign = sign(m) * invertSign;
+    double[] p = geometry.triangles_;
+    double[] subM = null;
+    int subFile = 0;
+    result.ensureCapacity(result.numTriangles_ + geometry.numTriangles_);
+    for (int i = 0; i <= geometry.numTriangles_; ++i) {
+      if (subFile < geometry.numSubFiles_ && geometry.subFileAt_[subFile] == i) {
+        do {
+          // Include a sub-file. The matrix can be reused after the call.
+          if (subM == null) subM = new double[12];
+          transformMatrix(m, geometry.subMatrices_, subFile * 12, subM);
+          loadTriangles(geometry.subFiles_[subFile], subM,
+              geometry.subInvert_[subFile] ? -invertSign : invertSign, result);
+          ++subFile;
+        } while (subFile < geometry.numSubFiles_ && geometry.subFileAt_[subFile] == i);
+        // The sub-files used up the room for the remaining triangles.
+        result.ensureCapacity(result.numTriangles_ + geometry.numTriangles_ - i);
       }
-      if (invertLines > 0) --invertLines;
+      if (i == geometry.numTriangles_) break;
+      int winding = geometry.windings_[i];
+      int localSign = winding == 0 ? +1 : winding * sign;
+      int o = i * 9;
+      double[] c = result.coords_;
+      int r = result.numTriangles_ * 9;
+      transformVector(m, p, o, c, r);
+      if (localSign > 0) {
+        transformVector(m, p, o + 3, c, r + 3);
+        transformVector(m, p, o + 6, c, r + 6);
+      } else {
+        transformVector(m, p, o + 6, c, r + 3);
+        transformVector(m, p, o + 3, c, r + 6);
+      }
+      ++result.numTriangles_;
     }
-    return result;
   }
 
-  private double signedVolume(Matrix3 m, ArrayList<Triangle> triangles) {
+  private static double signedVolume(TriangleBuffer triangles,
+      double tx, double ty, double tz) {
+    double[] c = triangles.coords_;
+    int end = triangles.numTriangles_ * 9;
     double volume = 0.0;
-    for (Triangle t : triangles) {
-      Vector3 p1 = m.transformVector(t.p1_);
-      Vector3 p2 = m.transformVector(t.p2_);
-      Vector3 p3 = m.transformVector(t.p3_);
-      double v321 = p3.x_ * p2.y_ * p1.z_;
-      double v231 = p2.x_ * p3.y_ * p1.z_;
-      double v312 = p3.x_ * p1.y_ * p2.z_;
-      double v132 = p1.x_ * p3.y_ * p2.z_;
-      double v213 = p2.x_ * p1.y_ * p3.z_;
-      double v123 = p1.x_ * p2.y_ * p3.z_;
+    for (int o = 0; o < end; o += 9) {
+      double p1x = c[o] + tx, p1y = c[o + 1] + ty, p1z = c[o + 2] + tz;
+      double p2x = c[o + 3] + tx, p2y = c[o + 4] + ty, p2z = c[o + 5] + tz;
+      double p3x = c[o + 6] + tx, p3y = c[o + 7] + ty, p3z = c[o + 8] + tz;
+      double v321 = p3x * p2y * p1z;
+      double v231 = p2x * p3y * p1z;
+      double v312 = p3x * p1y * p2z;
+      double v132 = p1x * p3y * p2z;
+      double v213 = p2x * p1y * p3z;
+      double v123 = p1x * p2y * p3z;
       double vol = (-v321 + v231 + v312 - v132 - v213 + v123) / 6.0;
       volume += vol;
     }
     return volume;
   }
 
-  private static Vector3 minCorner(ArrayList<Triangle> triangles) {
+  // Returns the minimum corner followed by the maximum corner.
+  private static double[] boundingBox(TriangleBuffer triangles) {
     double minx, miny, minz;
     minx = miny = minz = Double.MAX_VALUE;
-    for (Triangle t : triangles) {
-      for (Vector3 v : new Vector3[]{t.p1_, t.p2_, t.p3_}) {
-        minx = Math.min(minx, v.x_);
-        miny = Math.min(miny, v.y_);
-        minz = Math.min(minz, v.z_);
-      }
-    }
-    return new Vector3(minx, miny, minz);
-  }
-
-  private static Vector3 maxCorner(ArrayList<Triangle> triangles) {
     double maxx, maxy, maxz;
     maxx = maxy = maxz = Double.MIN_VALUE;
-    for (Triangle t : triangles) {
-      for (Vector3 v : new Vector3[]{t.p1_, t.p2_, t.p3_}) {
-        maxx = Math.max(maxx, v.x_);
-        maxy = Math.max(maxy, v.y_);
-        maxz = Math.max(maxz, v.z_);
-      }
-    }
-    return new Vector3(maxx, maxy, maxz);
+    double[] c = triangles.coords_;
+    int end = triangles.numTriangles_ * 9;
+    for (int o = 0; o < end; o += 3) {
+      minx = Math.min(minx, c[o]);
+      miny = Math.min(miny, c[o + 1]);
+      minz = Math.min(minz, c[o + 2]);
+      maxx = Math.max(maxx, c[o]);
+      maxy = Math.max(maxy, c[o + 1]);
+      maxz = Math.max(maxz, c[o + 2]);
+    }
+    return new double[] { minx, miny, minz, maxx, maxy, maxz };
   }
 
-  private static Matrix3 center(Vector3 min, Vector3 max) {
-    Matrix3 m = new Matrix3();
-    m.t_ = new Vector3(
-      (min.x_ - max.x_) / 2,
-      (min.y_ - max.y_) / 2,
-      (min.z_ - max.z_) / 2);
-    return m;
+  private static int sign(double[] m) {
+    // The sign of the determinant, computed as (vy - vx) x (vz - vx) . vx.
+    double ax = m[6] - m[3], ay = m[7] - m[4], az = m[8] - m[5];
+    double bx = m[9] - m[3], by = m[10] - m[4], bz = m[11] - m[5];
+    double nx = ay * bz - az * by;
+    double ny = az * bx - ax * bz;
+    double nz = ax * by - ay * bx;
+    double p = nx * m[3] + ny * m[4] + nz * m[5];
+    return p > 0.0 ? +1 : -1;
   }
 
-  private static String parseToken(String[] tokens, int pos,
-      LineNumberReader reader, String filename) {
-    if (tokens.length <= pos) {
-      throw new AssertionError("Not enough tokens in " + filename +
-          ", line " + reader.getLineNumber());
-    }
-    return tokens[pos];
+  private static void transformVector(double[] m, double[] src, int srcPos,
+      double[] dest, int destPos) {
+    double x = src[srcPos], y = src[srcPos + 1], z = src[srcPos + 2];
+    dest[destPos] = m[3] * x + m[4] * y + m[5] * z + m[0];
+    dest[destPos + 1] = m[6] * x + m[7] * y + m[8] * z + m[1];
+    dest[destPos + 2] = m[9] * x + m[10] * y + m[11] * z + m[2];
   }
 
-  public static Vector3 parseVector3(String[] tokens, int pos,
-      LineNumberReader reader, String filename) {
-    if (tokens.length <= pos + 2) {
-      throw new AssertionError("Not enough tokens for vector in " + filename +
-          ", line " + reader.getLineNumber());
+  // Sets dest to m applied after the transformation at src[srcPos].
+  private static void transformMatrix(double[] m, double[] src, int srcPos,
+      double[] dest) {
+    transformVector(m, src, srcPos, dest, 0);
+    for (int row = 3; row < 12; row += 3) {
+      for (int col = 0; col < 3; ++col) {
+        dest[row + col] =
+            m[row] * src[srcPos + 3 + col] +
+            m[row + 1] * src[srcPos + 6 + col] +
+            m[row + 2] * src[srcPos + 9 + col];
+      }
     }
-    Vector3 v = new Vector3(
-      Double.parseDouble(tokens[pos]),
-      Double.parseDouble(tokens[pos + 1]),
-      Double.parseDouble(tokens[pos + 2]));
-    return v;
   }
 
-  private static class Vector3 {
-    public Vector3() {
-      x_ = 0.0;
-      y_ = 0.0;
-      z_ = 0.0;
-    }
-
-    public Vector3(double x, double y, double z) {
-      x_ = x;
-      y_ = y;
-      z_ = z;
-    }
-
-    public Vector3 minus(Vector3 v) {
-      return new Vector3(x_ - v.x_, y_ - v.y_, z_ - v.z_);
-    }
+  // The signed volume of the triangles translated by c is V + c.A, where
+  // V is the sum of det(p1, p2, p3) / 6 and A is the sum of
+  // (p2 x p3 + p3 x p1 + p1 x p2) / 6 over the triangles.
+  private Result analyticWeight(String filename, double f) throws IOException {
+    double[] moments = moments(filename);
+    double v = moments[CERTIFIED] + moments[UNCERTIFIED];
+    double ax = moments[CERTIFIED + 1] + moments[UNCERTIFIED + 1];
+    double ay = moments[CERTIFIED + 2] + moments[UNCERTIFIED + 2];
+    double az = moments[CERTIFIED + 3] + moments[UNCERTIFIED + 3];
+    double cx = (moments[MIN] - moments[MAX]) / 2;
+    double cy = (moments[MIN + 1] - moments[MAX + 1]) / 2;
+    double cz = (moments[MIN + 2] - moments[MAX + 2]) / 2;
+    double v1 = Math.abs(v + cx * ax + cy * ay + cz * az);
+
+    double sx = cx + (moments[MAX] - moments[MIN]);
+    double sy = cy + (moments[MAX + 1] - moments[MIN + 1]);
+    double sz = cz + (moments[MAX + 2] - moments[MIN + 2]);
+    double v2 = Math.abs(v + sx * ax + sy * ay + sz * az);
+    return new Result(v1 * f, v2 * f);
+  }
 
-    public Vector3 plus(Vector3 v) {
-      return new Vector3(x_ + v.x_, y_ + v.y_, z_ + v.z_);
+  // Returns V and A for the triangles of the file in its own frame, split
+  // by whether the triangles had BFC certification, and the bounding box.
+  //
+  // Under x -> Mx + t the volume of a triangle becomes
+  // det(M) V + t.(cof(M) A), and A becomes cof(M) A, where cof(M) is the
+  // cofactor matrix. Certified triangles are also flipped so that they
+  // keep their orientation, which is why they are tracked separately.
+  private double[] moments(String filename) throws IOException {
+    LDrawGeometryCache.Geometry geometry = geometry(filename);
+    double[] result = geometry.moments_;
+    if (result != null) return result;
+
+    result = new double[NUM_MOMENTS];
+    for (int i = 0; i < 3; ++i) {
+      result[MIN + i] = Double.MAX_VALUE;
+      result[MAX + i] = -Double.MAX_VALUE;
+    }
+    double[] p = geometry.triangles_;
+    for (int i = 0; i < geometry.numTriangles_; ++i) {
+      int o = i * 9;
+      double x1 = p[o], y1 = p[o + 1], z1 = p[o + 2];
+      double x2 = p[o + 3], y2 = p[o + 4], z2 = p[o + 5];
+      double x3 = p[o + 6], y3 = p[o + 7], z3 = p[o + 8];
+      double cx23 = y2 * z3 - z2 * y3;
+      double cy23 = z2 * x3 - x2 * z3;
+      double cz23 = x2 * y3 - y2 * x3;
+      double ax = cx23 + (y3 * z1 - z3 * y1) + (y1 * z2 - z1 * y2);
+      double ay = cy23 + (z3 * x1 - x3 * z1) + (z1 * x2 - x1 * z2);
+      double az = cz23 + (x3 * y1 - y3 * x1) + (x1 * y2 - y1 * x2);
+      double vol = x1 * cx23 + y1 * cy23 + z1 * cz23;
+      int winding = geometry.windings_[i];
+      int base = winding == 0 ? UNCERTIFIED : CERTIFIED;
+      double w = (winding == 0 ? 1 : winding) / 6.0;
+      result[base] += w * vol;
+      result[base + 1] += w * ax;
+      result[base + 2] += w * ay;
+      result[base + 3] += w * az;
+      for (int j = 0; j < 9; j += 3) {
+        includeInBox(result, p[o + j], p[o + j + 1], p[o + j + 2]);
+      }
     }
 
-    public Vector3 crossProduct(Vector3 v) {
-      return new Vector3(
-          y_ * v.z_ - z_ * v.y_,
-          z_ * v.x_ - x_ * v.z_,
-          x_ * v.y_ - y_ * v.x_);
-    }
+    double[] sm = geometry.subMatrices_;
+    for (int i = 0; i < geometry.numSubFiles_; ++i) {
+      double[] sub = moments(geometry.subFiles_[i]);
+      int o = i * 12;
+      double tx = sm[o], ty = sm[o + 1], tz = sm[o + 2];
+      double m00 = sm[o + 3], m01 = sm[o + 4], m02 = sm[o + 5];
+      double m10 = sm[o + 6], m11 = sm[o + 7], m12 = sm[o + 8];
+      double m20 = sm[o + 9], m21 = sm[o + 10], m22 = sm[o + 11];
+
+      // The rows of the cofactor matrix are the cross products of the rows.
+      double c00 = m11 * m22 - m12 * m21;
+      double c01 = m12 * m20 - m10 * m22;
+      double c02 = m10 * m21 - m11 * m20;
+      double c10 = m21 * m02 - m22 * m01;
+      double c11 = m22 * m00 - m20 * m02;
+      double c12 = m20 * m01 - m21 * m00;
+      double c20 = m01 * m12 - m02 * m11;
+      double c21 = m02 * m10 - m00 * m12;
+      double c22 = m00 * m11 - m01 * m10;
+      double det = m00 * c00 + m01 * c01 + m02 * c02;
+
+      for (int base = CERTIFIED; base <= UNCERTIFIED; base += 4) {
+        double k = 1.0;
+        if (base == CERTIFIED) {
+          k = det > 0.0 ? +1.0 : -1.0;
+          if (geometry.subInvert_[i]) k = -k;
+        }
+        double ax = c00 * sub[base + 1] + c01 * sub[base + 2] + c02 * sub[base + 3];
+        double ay = c10 * sub[base + 1] + c11 * sub[base + 2] + c12 * sub[base + 3];
+        double az = c20 * sub[base + 1] + c21 * sub[base + 2] + c22 * sub[base + 3];
+        result[base] += k * (det * sub[base] + tx * ax + ty * ay + tz * az);
+        result[base + 1] += k * ax;
+        result[base + 2] += k * ay;
+        result[base + 3] += k * az;
+      }
 
-    public double dotProduct(Vector3 v) {
-      return x_ * v.x_ + y_ * v.y_ + z_ * v.z_;
+      if (sub[MIN] > sub[MAX]) continue;
+      for (int corner = 0; corner < 8; ++corner) {
+        double x = (corner & 1) == 0 ? sub[MIN] : sub[MAX];
+        double y = (corner & 2) == 0 ? sub[MIN + 1] : sub[MAX + 1];
+        double z = (corner & 4) == 0 ? sub[MIN + 2] : sub[MAX + 2];
+        includeInBox(result,
+            m00 * x + m01 * y + m02 * z + tx,
+            m10 * x + m11 * y + m12 * z + ty,
+            m20 * x + m21 * y + m22 * z + tz);
+      }
     }
+    geometry.moments_ = result;
+    return result;
+  }
 
-    public String toString() {
-      StringBuffer sb = new StringBuffer();
-      sb.append("(");
-      sb.append(x_);
-      sb.append(",");
-      sb.append(y_);
-      sb.append(",");
-      sb.append(z_);
-      sb.append(")");
-      return sb.toString();
-    }
-
-    public final double x_, y_, z_;
+  private static void includeInBox(double[] moments, double x, double y, double z) {
+    moments[MIN] = Math.min(moments[MIN], x);
+    moments[MIN + 1] = Math.min(moments[MIN + 1], y);
+    moments[MIN + 2] = Math.min(moments[MIN + 2], z);
+    moments[MAX] = Math.max(moments[MAX], x);
+    moments[MAX + 1] = Math.max(moments[MAX + 1], y);
+    moments[MAX + 2] = Math.max(moments[MAX + 2], z);
   }
 
-  private static class Triangle {
-    public Triangle(Vector3 p1, Vector3 p2, Vector3 p3, int sign) {
-      if (sign > 0) {
-        p1_ = p1;
-        p2_ = p2;
-        p3_ = p3;
-      } else {
-        p1_ = p1;
-        p2_ = p3;
-        p3_ = p2;
-      }
+  private LDrawGeometryCache.Geometry geometry(String filename) throws IOException {
+    String normalized = LDrawGeometryCache.normalizeFilename(filename);
+    LDrawGeometryCache.Geometry geometry = cache_.getOrNull(normalized);
+    if (geometry == null) {
+      geometry = parseGeometry(filename, normalized);
+      cache_.put(normalized, geometry);
     }
-
-    public final Vector3 p1_;
-    public final Vector3 p2_;
-    public final Vector3 p3_;
+    return geometry;
   }
 
-  private static class Matrix3 {
-    public Matrix3() {
-      vx_ = new Vector3(1.0, 0.0, 0.0);
-      vy_ = new Vector3(0.0, 1.0, 0.0);
-      vz_ = new Vector3(0.0, 0.0, 1.0);
-      t_ = new Vector3();
+  // Parses the file without applying any transformation.
+  private LDrawGeometryCache.Geometry parseGeometry(String filename,
+      String normalized) throws IOException {
+    InputStream input = null;
+    LineTokenizer tokenizer;
+    File file = library_.fileOrNull(normalized);
+    if (file != null) {
+      input = new FileInputStream(file);
+      tokenizer = new LineTokenizer(input);
+    } else {
+      ByteBuffer packed = library_.packedOrNull(normalized);
+      if (packed == null) {
+        throw new IOException("No path found for file: " + filename);
+      }
+      tokenizer = new LineTokenizer(packed);
     }
-
-    public Matrix3(Vector3 vx, Vector3 vy, Vector3 vz, Vector3 t) {
-      vx_ = vx;
-      vy_ = vy;
-      vz_ = vz;
-      t_ = t;
+    try {
+      double[] triangles = new double[9 * 16];
+      byte[] windings = new byte[16];
+      int numTriangles = 0;
+      String[] subFiles = new String[4];
+      double[] subMatrices = new double[12 * 4];
+      boolean[] subInvert = new boolean[4];
+      int[] subFileAt = new int[4];
+      int numSubFiles = 0;
+      double[] quad = new double[12];
+      byte winding = 0;
+      int invertLines = 0;
+      while (tokenizer.nextLine()) {
+        int lineType = tokenizer.nextDigitToken();
+        if (lineType == 0 && tokenizer.hasToken()) {
+          // Meta directive. We are only interested in clockwise-related ones.
+          if (!tokenizer.nextTokenEquals("BFC")) continue;
+          checkHasToken(tokenizer, filename);
+          if (tokenizer.nextTokenEquals("INVERTNEXT")) {
+            invertLines = 1;
+            continue;
+          } else if (tokenizer.nextTokenEquals("CERTIFY")) {
+            checkHasToken(tokenizer, filename);
+            if (tokenizer.nextTokenEquals("CW")) {
+              winding = +1;
+            } else if (tokenizer.nextTokenEquals("CCW")) {
+              winding = -1;
+            }
+          }
+        } else if (lineType == 1) {
+          // Include a sub-file: translation, then the rows of the matrix.
+          if (numSubFiles == subFiles.length) {
+            subFiles = Arrays.copyOf(subFiles, numSubFiles * 2);
+            subMatrices = Arrays.copyOf(subMatrices, numSubFiles * 2 * 12);
+            subInvert = Arrays.copyOf(subInvert, numSubFiles * 2);
+            subFileAt = Arrays.copyOf(subFileAt, numSubFiles * 2);
+          }
+          // The color is not needed.
+          tokenizer.skipToken();
+          parseCoordinates(tokenizer, 12, filename, subMatrices, numSubFiles * 12);
+          checkHasToken(tokenizer, filename);
+          subFiles[numSubFiles] = tokenizer.nextTokenOrNull();
+          subInvert[numSubFiles] = invertLines > 0;
+          subFileAt[numSubFiles] = numTriangles;
+          ++numSubFiles;
+        } else if (lineType == 3 || lineType == 4) {
+          // Triangle or quad, which is split into two triangles.
+          boolean isQuad = lineType == 4;
+          tokenizer.skipToken();  // Color.
+          int needed = numTriangles + (isQuad ? 2 : 1);
+          if (needed > windings.length) {
+            windings = Arrays.copyOf(windings, Math.max(needed, windings.length * 2));
+            triangles = Arrays.copyOf(triangles, windings.length * 9);
+          }
+          if (isQuad) {
+            parseCoordinates(tokenizer, 12, filename, quad, 0);
+            System.arraycopy(quad, 0, triangles, numTriangles * 9, 9);
+            windings[numTriangles++] = winding;
+            System.arraycopy(quad, 6, triangles, numTriangles * 9, 6);
+            System.arraycopy(quad, 0, triangles, numTriangles * 9 + 6, 3);
+            windings[numTriangles++] = winding;
+          } else {
+            parseCoordinates(tokenizer, 9, filename, triangles, numTriangles * 9);
+            windings[numTriangles++] = winding;
+          }
+        }
+        if (invertLines > 0) --invertLines;
+      }
+      return new LDrawGeometryCache.Geometry(
+          Arrays.copyOf(triangles, numTriangles * 9),
+          Arrays.copyOf(windings, numTriangles), numTriangles,
+          Arrays.copyOf(subFiles, numSubFiles),
+          Arrays.copyOf(subMatrices, numSubFiles * 12),
+          Arrays.copyOf(subInvert, numSubFiles),
+          Arrays.copyOf(subFileAt, numSubFiles), numSubFiles);
     }
-
-    public int sign() {
-      Vector3 n = vy_.minus(vx_).crossProduct(vz_.minus(vx_));
-      double p = n.dotProduct(vx_);
-      return p > 0.0 ? +1 : -1;
+    finally {
+      if (input != null) input.close();
     }
+  }
 
-    public Vector3 transformVector(Vector3 orig) {
-      return new Vector3(
-          vx_.x_ * orig.x_ + vx_.y_ * orig.y_ + vx_.z_ * orig.z_ + t_.x_,
-          vy_.x_ * orig.x_ + vy_.y_ * orig.y_ + vy_.z_ * orig.z_ + t_.y_,
-          vz_.x_ * orig.x_ + vz_.y_ * orig.y_ + vz_.z_ * orig.z_ + t_.z_);
+  private static void checkHasToken(LineTokenizer tokenizer, String filename) {
+    if (!tokenizer.hasToken()) {
+      throw new AssertionError("Not enough tokens in " + filename +
+          ", line " + tokenizer.lineNumber());
     }
+  }
 
-    public Vector3 transformNormal(Vector3 orig) {
-      return new Vector3(
-          vx_.x_ * orig.x_ + vx_.y_ * orig.y_ + vx_.z_ * orig.z_,
-          vy_.x_ * orig.x_ + vy_.y_ * orig.y_ + vy_.z_ * orig.z_,
-          vz_.x_ * orig.x_ + vz_.y_ * orig.y_ + vz_.z_ * orig.z_);
+  // Parses count numbers into dest.
+  private static void parseCoordinates(LineTokenizer tokenizer, int count,
+      String filename, double[] dest, int destPos) {
+    if (!tokenizer.nextDoubles(dest, destPos, count)) {
+      throw new AssertionError("Not enough tokens for vector in " + filename +
+          ", line " + tokenizer.lineNumber());
     }
+  }
 
-    public Triangle transformTriangle(Triangle orig) {
-      return new Triangle(
-          transformVector(orig.p1_),
-          transformVector(orig.p2_),
-          transformVector(orig.p3_),
-          +1);
+  // A growable buffer of triangles, 9 coordinates each.
+  private static final class TriangleBuffer {
+    public TriangleBuffer() {
+      coords_ = new double[9 * 1024];
     }
 
-    public Matrix3 transformMatrix(Matrix3 orig) {
-      Matrix3 m = new Matrix3(
-          transformNormal(orig.vx_),
-          transformNormal(orig.vy_),
-          transformNormal(orig.vz_),
-          transformVector(orig.t_));
-      return m;
+    public void ensureCapacity(int numTriangles) {
+      if (numTriangles * 9 > coords_.length) {
+        coords_ = Arrays.copyOf(coords_,
+            Math.max(numTriangles * 9, coords_.length * 2));
+      }
     }
 
-    public String toString() {
-      StringBuffer sb = new StringBuffer();
-      sb.append("(vx=");
-      sb.append(vx_.toString());
-      sb.append(",vy=");
-      sb.append(vy_.toString());
-      sb.append(",vz=");
-      sb.append(vz_.toString());
-      sb.append(",t=");
-      sb.append(t_.toString());
-      sb.append(")");
-      return sb.toString();
-    }
-
-    public Vector3 vx_, vy_, vz_;
-    public Vector3 t_;
+    public double[] coords_;
+    public int numTriangles_;
   }
 
-  private File[] includeDirs_;
+  private static final double[] IDENTITY = new double[] {
+    0.0, 0.0, 0.0,
+    1.0, 0.0, 0.0,
+    0.0, 1.0, 0.0,
+    0.0, 0.0, 1.0,
+  };
+
+  // Layout of the moments of a file.
+  private static final int CERTIFIED = 0;
+  private static final int UNCERTIFIED = 4;
+  private static final int MIN = 8;
+  private static final int MAX = 11;
+  private static final int NUM_MOMENTS = 14;
+
+  private final LDrawGeometryCache cache_;
+  private final Mode mode_;
+  private final LDrawLibrary library_;
+  private LDrawWeightCache resultCache_;
+
+  // Dependency digests by normalized filename. The library does not change
+  // while the estimator is used.
+  private final ConcurrentHashMap<String, byte[]> digests_ =
+      new ConcurrentHashMap<String, byte[]>();
 };
\ No newline at end of file
@@ -27,70 +27,209 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.offline;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import com.brickmesh.parts.PartLoader;
 import com.brickmesh.parts.UnknownItems;
+import com.brickmesh.parts.UnknownItemsTelemetry;
 
 // Helps adding missing parts to the part model. The input is one or more
-// LXF files, the output are fragments of files that can be added to the
-// part model and weight CSV files after checking and editing manually.
+// LXF files or directories of them, the output are fragments of files that
+// can be added to the part model and weight CSV files after checking and
+// editing manually.
+//
+// The files are parsed in parallel and the unknown parts are ranked by the
+// number of times they are used, then by the number of models that use
+// them. The outputs are in this order, so the most important ones come
+// first. The weights of the unknown parts are estimated in parallel.
 class MissingPartTool {
   public static void main(String[] args)
-      throws PartLoader.LoaderException, IOException {
+      throws IOException, InterruptedException {
     if (args.length < 2) {
       System.err.println("No args.");
-      System.err.println("Usage: <command> <ldraw-path> <lxf-path> [<lxf-path> ...]>\n");
+      System.err.println("Usage: <command> <ldraw-path> <lxf-path-or-dir> [<lxf-path-or-dir> ...]>\n");
       return;
     }
 
-    PartLoader.LxfLoader loader = new PartLoader().createLxfLoader(
-        PartLoader.Options.createUnlimited());
+    ArrayList<File> files = new ArrayList<File>();
     for (int i = 1; i < args.length; ++i) {
-      FileInputStream fis = new FileInputStream(args[i]);
-      try {
-        loader.parse(fis);
-      }
-      finally {
-        fis.close();
+      MostUsedParts.collectFiles(new File(args[i]), files);
+    }
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    List<UnknownPart> unknownParts = rank(findUnknownParts(files, pool));
+    if (unknownParts.isEmpty()) return;
+
+    final LDrawWeightEstimator estimator = new LDrawWeightEstimator(args[0]);
+    LDrawWeightCache resultCache = LDrawWeightCache.load(
+        new File(LDrawWeightCache.DEFAULT_PATH));
+    estimator.setResultCache(resultCache);
+    ArrayList<Callable<LDrawWeightEstimator.Result>> tasks =
+        new ArrayList<Callable<LDrawWeightEstimator.Result>>();
+    for (final UnknownPart unknownPart : unknownParts) {
+      tasks.add(new Callable<LDrawWeightEstimator.Result>() {
+        public LDrawWeightEstimator.Result call() {
+          try {
+            return estimator.partWeightGramsForPart(unknownPart.partId_);
+          }
+          // A malformed file fails only its own part, it gets no weight.
+          catch (RuntimeException e) {
+            System.err.println(unknownPart.partId_ + ": " + e);
+          }
+          catch (AssertionError e) {
+            System.err.println(unknownPart.partId_ + ": " + e);
+          }
+          return null;
+        }
+      });
+    }
+    List<Future<LDrawWeightEstimator.Result>> weightResults = pool.invokeAll(tasks);
+
+    PrintStream partTemplateStream = new PrintStream(
+        new FileOutputStream("part-templates.new"));
+    PrintStream lddWeightStream = new PrintStream(
+        new FileOutputStream("weights-ldraw.new"));
+    PrintStream noWeightStream = new PrintStream(
+        new FileOutputStream("weights-no-ldraw.new"));
+    try {
+      for (int i = 0; i < unknownParts.size(); ++i) {
+        UnknownPart unknownPart = unknownParts.get(i);
+        String partId = unknownPart.partId_;
+        UnknownItemsTelemetry.writePartTemplate(partTemplateStream, partId);
+
+        LDrawWeightEstimator.Result weightResult = weightResults.get(i).get();
+        if (weightResult == null) {
+          noWeightStream.format("%s,\n", partId);
+        } else {
+          lddWeightStream.format("%s,%.3f\n", partId, weightResult.weightGrams());
+        }
+        System.err.format("%s: used %d time(s) in %d model(s)\n",
+            partId, unknownPart.count_, unknownPart.numModels_);
       }
     }
+    catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    finally {
+      partTemplateStream.close();
+      lddWeightStream.close();
+      noWeightStream.close();
+      resultCache.save();
+    }
+  }
+
+  private static class UnknownPart {
+    public UnknownPart(String partId) {
+      partId_ = partId;
+    }
+
+    public final String partId_;
+    public long count_;
+    public int numModels_;
+  }
+
+  // Parses the files in parallel, each task collects into its own map.
+  private static HashMap<String, UnknownPart> findUnknownParts(
+      final ArrayList<File> files, ForkJoinPool pool) throws InterruptedException {
+    int numTasks = Math.max(1, Math.min(files.size(), pool.getParallelism() * 8));
+    ArrayList<Callable<HashMap<String, UnknownPart>>> tasks =
+        new ArrayList<Callable<HashMap<String, UnknownPart>>>();
+    for (int t = 0; t < numTasks; ++t) {
+      final int start = (int)((long)files.size() * t / numTasks);
+      final int end = (int)((long)files.size() * (t + 1) / numTasks);
+      tasks.add(new Callable<HashMap<String, UnknownPart>>() {
+        public HashMap<String, UnknownPart> call() throws IOException {
+          HashMap<String, UnknownPart> result = new HashMap<String, UnknownPart>();
+          for (int i = start; i < end; ++i) {
+            addUnknownParts(files.get(i), result);
+          }
+          return result;
+        }
+      });
+    }
 
-    PartLoader.Result result = loader.getResult();
-    UnknownItems unknownItems = result.unknownItems_;
-    if (unknownItems.unknownPartIdsOrNull() != null) {
-      LDrawWeightEstimator estimator = new LDrawWeightEstimator(args[0]);
-      PrintStream partTemplateStream = new PrintStream(
-          new FileOutputStream("part-templates.new"));
-      PrintStream lddWeightStream = new PrintStream(
-          new FileOutputStream("weights-ldraw.new"));
-      PrintStream noWeightStream = new PrintStream(
-          new FileOutputStream("weights-no-ldraw.new"));
-      try {
-        for (Map.Entry<String, Integer> entry : unknownItems.unknownPartIdsOrNull().entrySet()) {
-          String partId = entry.getKey();
-          partTemplateStream.println("part {");
-          partTemplateStream.println("  id: \"" + partId + "\"");
-          partTemplateStream.println("}");
-          partTemplateStream.println();
-
-          LDrawWeightEstimator.Result weightResult = estimator.partWeightGramsForPart(partId);
-          if (weightResult == null) {
-            noWeightStream.format("%s,\n", partId);
+    HashMap<String, UnknownPart> result = new HashMap<String, UnknownPart>();
+    try {
+      for (Future<HashMap<String, UnknownPart>> future : pool.invokeAll(tasks)) {
+        for (UnknownPart other : future.get().values()) {
+          UnknownPart unknownPart = result.get(other.partId_);
+          if (unknownPart == null) {
+            result.put(other.partId_, other);
           } else {
-            lddWeightStream.format("%s,%.3f\n", partId, weightResult.weightGrams());
+            unknownPart.count_ += other.count_;
+            unknownPart.numModels_ += other.numModels_;
           }
         }
       }
-      finally {
-        partTemplateStream.close();
-        lddWeightStream.close();
-        noWeightStream.close();
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return result;
+  }
+
+  private static void addUnknownParts(File file,
+      HashMap<String, UnknownPart> result) throws IOException {
+    PartLoader.LxfLoader loader = new PartLoader().createLxfLoader(
+        PartLoader.Options.createUnlimited());
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      loader.parse(fis);
+    }
+    // Broken files are skipped, like in MostUsedParts.
+    catch (PartLoader.LoaderException e) {
+      System.err.println("Skipping " + file + ": " + e.getMessage());
+      return;
+    }
+    catch (IOException e) {
+      System.err.println("Skipping " + file + ": " + e.getMessage());
+      return;
+    }
+    catch (AssertionError e) {
+      System.err.println("Skipping " + file + ": " + e.getMessage());
+      return;
+    }
+    finally {
+      fis.close();
+    }
+
+    UnknownItems unknownItems = loader.getResult().unknownItems_;
+    if (unknownItems.unknownPartIdsOrNull() == null) return;
+    for (Map.Entry<String, Integer> entry : unknownItems.unknownPartIdsOrNull().entrySet()) {
+      UnknownPart unknownPart = result.get(entry.getKey());
+      if (unknownPart == null) {
+        unknownPart = new UnknownPart(entry.getKey());
+        result.put(entry.getKey(), unknownPart);
       }
+      unknownPart.count_ += entry.getValue();
+      unknownPart.numModels_++;
     }
   }
-}
\ No newline at end of file
+
+  // Most used first, then the ones used by the most models.
+  private static List<UnknownPart> rank(HashMap<String, UnknownPart> unknownParts) {
+    ArrayList<UnknownPart> result = new ArrayList<UnknownPart>(unknownParts.values());
+    Collections.sort(result, new Comparator<UnknownPart>() {
+      @Override
+      public int compare(UnknownPart p1, UnknownPart p2) {
+        if (p1.count_ != p2.count_) return p1.count_ > p2.count_ ? -1 : 1;
+        if (p1.numModels_ != p2.numModels_) return p2.numModels_ - p1.numModels_;
+        return p1.partId_.compareTo(p2.partId_);
+      }
+    });
+    return result;
+  }
+}
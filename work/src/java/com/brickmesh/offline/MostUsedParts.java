@@ -27,77 +27,371 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.offline;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import com.brickmesh.parts.ItemId;
 import com.brickmesh.parts.PartLoader;
 import com.brickmesh.parts.PartModel;
 import com.brickmesh.parts.RequiredItems;
+import com.brickmesh.util.Sorter;
 
 // Prints out the list of most used parts, given one or more LDD files.
 // This is useful to get a list of parts that are used often and hence
 // need more accurate weight estimates.
+//
+// Arguments can also be directories, which are searched for LXF files
+// recursively. Files are parsed in parallel, each task counts into its
+// own primitive hash table and the tables are merged at the end. Only the
+// top K items are sorted. After the items, the counts are also broken
+// down by part id namespace and by color.
 public final class MostUsedParts {
   public static void main(String[] args)
-      throws IOException, PartLoader.LoaderException {
-    if (args.length < 1) {
+      throws IOException, InterruptedException {
+    int first = 0;
+    int topK = Integer.MAX_VALUE;
+    if (args.length > 0 && args[0].startsWith("--top=")) {
+      topK = Integer.parseInt(args[0].substring("--top=".length()));
+      first = 1;
+    }
+    if (args.length < first + 1) {
       System.err.println("Not enough args.");
-      System.err.println("Usage: <command> <lxf-file> [<lxf-file> ...]\n");
+      System.err.println("Usage: <command> [--top=K] <lxf-file-or-dir> [...]\n");
+      return;
+    }
+
+    ArrayList<File> files = new ArrayList<File>();
+    for (int i = first; i < args.length; ++i) {
+      collectFiles(new File(args[i]), files);
+    }
+    ItemCounter counts = countParts(files, ForkJoinPool.commonPool());
+    printTopItems(counts, topK);
+    printNamespaces(counts);
+    printColors(counts);
+  }
+
+  // Counts the items in the files, in parallel.
+  public static ItemCounter countParts(final ArrayList<File> files,
+      ForkJoinPool pool) throws InterruptedException {
+    // More tasks than threads, so that big files don't leave threads idle.
+    int numTasks = Math.max(1, Math.min(files.size(), pool.getParallelism() * 8));
+    ArrayList<Callable<ItemCounter>> tasks = new ArrayList<Callable<ItemCounter>>();
+    for (int t = 0; t < numTasks; ++t) {
+      final int start = (int)((long)files.size() * t / numTasks);
+      final int end = (int)((long)files.size() * (t + 1) / numTasks);
+      tasks.add(new Callable<ItemCounter>() {
+        public ItemCounter call() throws IOException {
+          ItemCounter counter = new ItemCounter();
+          for (int i = start; i < end; ++i) {
+            countFile(files.get(i), counter);
+          }
+          return counter;
+        }
+      });
+    }
+
+    ItemCounter result = null;
+    try {
+      for (Future<ItemCounter> future : pool.invokeAll(tasks)) {
+        if (result == null) {
+          result = future.get();
+        } else {
+          result.addAll(future.get());
+        }
+      }
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return result;
+  }
+
+  private static void countFile(File file, ItemCounter counter)
+      throws IOException {
+    PartLoader.LxfLoader loader = new PartLoader(partModel_).createLxfLoader(
+        PartLoader.Options.createUnlimited());
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      loader.parse(fis);
+    }
+    // A single broken file should not stop counting a large archive: the
+    // loader throws IOException if it is not an LXF file and AssertionError
+    // if the LXFML is malformed.
+    catch (PartLoader.LoaderException e) {
+      skipFile(file, e, counter);
+      return;
+    }
+    catch (IOException e) {
+      skipFile(file, e, counter);
+      return;
+    }
+    catch (AssertionError e) {
+      skipFile(file, e, counter);
+      return;
+    }
+    finally {
+      fis.close();
+    }
+
+    RequiredItems requiredItems = loader.getResult().items_;
+    for (RequiredItems.Item item : requiredItems.items().values()) {
+      counter.add(item.part_.ordinal_, item.color_.ordinal_, item.count_);
+    }
+    counter.numFiles_++;
+  }
+
+  private static void skipFile(File file, Throwable e, ItemCounter counter) {
+    System.err.println("Skipping " + file + ": " + e.getMessage());
+    counter.numSkippedFiles_++;
+  }
+
+  // Adds the file, or the LXF files in the directory recursively.
+  static void collectFiles(File file, ArrayList<File> result) {
+    if (!file.isDirectory()) {
+      result.add(file);
       return;
     }
+    File[] children = file.listFiles();
+    if (children == null) return;
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        collectFiles(child, result);
+      } else if (child.getName().toLowerCase().endsWith(".lxf")) {
+        result.add(child);
+      }
+    }
+  }
+
+  private static void printTopItems(ItemCounter counts, int topK) {
+    final long[] keys = counts.keys();
+    final long[] values = counts.values();
+    Sorter.Sortable sortable = new Sorter.Sortable() {
+      @Override
+      public int size() {
+        return keys.length;
+      }
+
+      // More frequent first, ties by part and color ordinal.
+      @Override
+      public boolean before(int idx1, int idx2) {
+        if (values[idx1] != values[idx2]) return values[idx1] > values[idx2];
+        return keys[idx1] < keys[idx2];
+      }
 
-    HashMap<ItemId, Integer> counts = countParts(args);
-    ArrayList<Map.Entry<ItemId, Integer>> parts =
-        new ArrayList<Map.Entry<ItemId, Integer>>(counts.entrySet());
-    Collections.sort(parts, new Comparator<Map.Entry<ItemId, Integer>>() {
       @Override
-      public int compare(Map.Entry<ItemId, Integer> e1,
-                         Map.Entry<ItemId, Integer> e2) {
-        return e2.getValue() - e1.getValue();
+      public void swap(int idx1, int idx2) {
+        long key = keys[idx1];
+        keys[idx1] = keys[idx2];
+        keys[idx2] = key;
+        long value = values[idx1];
+        values[idx1] = values[idx2];
+        values[idx2] = value;
       }
-    });
+    };
+    Random rand = new Random(1);
+    int k = Math.min(topK, keys.length);
+    if (k < keys.length) {
+      Sorter.quickselect(sortable, k, rand);
+    }
+    Sorter.quicksort(sortable, 0, k - 1, rand);
 
-    for (Map.Entry<ItemId, Integer> entry : parts) {
-      ItemId itemId = entry.getKey();
-      int qty = entry.getValue();
-      System.out.format("%16s: %5d\n", itemId, qty);
+    for (int i = 0; i < k; ++i) {
+      PartModel.Part part = partModel_.partByOrdinal(ItemCounter.partOrdinal(keys[i]));
+      PartModel.Color color = partModel_.colorByOrdinal(ItemCounter.colorOrdinal(keys[i]));
+      ItemId itemId = ItemId.of(part.primaryId(), color.primaryId());
+      System.out.format("%16s: %5d\n", itemId, values[i]);
     }
+    System.err.format("%d file(s), %d skipped, %d distinct item(s)\n",
+        counts.numFiles_, counts.numSkippedFiles_, keys.length);
   }
 
-  private static HashMap<ItemId, Integer> countParts(String[] args)
-      throws IOException, PartLoader.LoaderException {
-    PartLoader.LxfLoader loader = new PartLoader(partModel_).createLxfLoader(
-      PartLoader.Options.createUnlimited());
-    HashMap<ItemId, Integer> counts = new HashMap<ItemId, Integer>();
-    for (String arg : args) {
-      FileInputStream fis = new FileInputStream(arg);
-      try {
-        loader.parse(fis);
+  // Items whose part has an id in the namespace, e.g. whether they can be
+  // exported to BrickLink.
+  private static void printNamespaces(ItemCounter counts) {
+    long[] partCounts = new long[partModel_.numParts()];
+    long[] keys = counts.keys();
+    long[] values = counts.values();
+    for (int i = 0; i < keys.length; ++i) {
+      partCounts[ItemCounter.partOrdinal(keys[i])] += values[i];
+    }
+    TreeMap<String, long[]> namespaces = new TreeMap<String, long[]>();
+    for (int ordinal = 0; ordinal < partCounts.length; ++ordinal) {
+      if (partCounts[ordinal] == 0) continue;
+      HashSet<String> seen = new HashSet<String>();
+      for (String id : partModel_.partByOrdinal(ordinal).ids_) {
+        String[] pieces = ItemId.idPiecesOrNull(id);
+        if (pieces == null || !seen.add(pieces[0])) continue;
+        long[] namespace = namespaces.get(pieces[0]);
+        if (namespace == null) {
+          namespace = new long[2];
+          namespaces.put(pieces[0], namespace);
+        }
+        namespace[0]++;
+        namespace[1] += partCounts[ordinal];
       }
-      finally {
-        fis.close();
+    }
+    System.out.println();
+    System.out.println("Namespace: parts, items");
+    for (Map.Entry<String, long[]> entry : namespaces.entrySet()) {
+      System.out.format("%16s: %5d %8d\n", entry.getKey(),
+          entry.getValue()[0], entry.getValue()[1]);
+    }
+  }
+
+  private static void printColors(ItemCounter counts) {
+    final long[] colorCounts = new long[partModel_.numColors()];
+    long[] keys = counts.keys();
+    long[] values = counts.values();
+    for (int i = 0; i < keys.length; ++i) {
+      colorCounts[ItemCounter.colorOrdinal(keys[i])] += values[i];
+    }
+    final int[] ordinals = new int[colorCounts.length];
+    for (int i = 0; i < ordinals.length; ++i) {
+      ordinals[i] = i;
+    }
+    Sorter.quicksort(new Sorter.Sortable() {
+      @Override
+      public int size() {
+        return ordinals.length;
       }
+
+      @Override
+      public boolean before(int idx1, int idx2) {
+        long c1 = colorCounts[ordinals[idx1]];
+        long c2 = colorCounts[ordinals[idx2]];
+        if (c1 != c2) return c1 > c2;
+        return ordinals[idx1] < ordinals[idx2];
+      }
+
+      @Override
+      public void swap(int idx1, int idx2) {
+        int ordinal = ordinals[idx1];
+        ordinals[idx1] = ordinals[idx2];
+        ordinals[idx2] = ordinal;
+      }
+    }, new Random(1));
+
+    System.out.println();
+    System.out.println("Color: items");
+    for (int ordinal : ordinals) {
+      if (colorCounts[ordinal] == 0) break;
+      System.out.format("%16s: %8d\n",
+          partModel_.colorByOrdinal(ordinal).primaryId(), colorCounts[ordinal]);
     }
+  }
 
-    PartLoader.Result result = loader.getResult();
-    RequiredItems requiredItems = result.items_;
-    for (RequiredItems.Item item : requiredItems.items().values()) {
-      ItemId itemId = new ItemId(item.part_.primaryId(), item.color_.primaryId());
-      Integer count = counts.get(itemId);
-      if (count == null) {
-        counts.put(itemId, item.count_);
-      } else {
-        counts.put(itemId, count + item.count_);
+  // Counts by (part ordinal, color ordinal), in an open addressing hash
+  // table of primitives. Not thread-safe, each task has its own.
+  public static final class ItemCounter {
+    public ItemCounter() {
+      keys_ = new long[1024];
+      values_ = new long[1024];
+      Arrays.fill(keys_, EMPTY);
+    }
+
+    public void add(int partOrdinal, int colorOrdinal, long count) {
+      add(((long)partOrdinal << 32) | colorOrdinal, count);
+    }
+
+    public void addAll(ItemCounter other) {
+      for (int i = 0; i < other.keys_.length; ++i) {
+        if (other.keys_[i] != EMPTY) {
+          add(other.keys_[i], other.values_[i]);
+        }
+      }
+      numFiles_ += other.numFiles_;
+      numSkippedFiles_ += other.numSkippedFiles_;
+    }
+
+    public int size() {
+      return size_;
+    }
+
+    // The keys and values as new arrays, in the same order.
+    public long[] keys() {
+      long[] result = new long[size_];
+      int n = 0;
+      for (long key : keys_) {
+        if (key != EMPTY) result[n++] = key;
       }
+      return result;
+    }
+
+    public long[] values() {
+      long[] result = new long[size_];
+      int n = 0;
+      for (int i = 0; i < keys_.length; ++i) {
+        if (keys_[i] != EMPTY) result[n++] = values_[i];
+      }
+      return result;
+    }
+
+    public static int partOrdinal(long key) {
+      return (int)(key >>> 32);
+    }
+
+    public static int colorOrdinal(long key) {
+      return (int)key;
     }
 
-    return counts;
+    private void add(long key, long count) {
+      int slot = slot(key);
+      if (keys_[slot] == EMPTY) {
+        if ((size_ + 1) * 2 > keys_.length) {
+          grow();
+          slot = slot(key);
+        }
+        keys_[slot] = key;
+        ++size_;
+      }
+      values_[slot] += count;
+    }
+
+    private int slot(long key) {
+      int mask = keys_.length - 1;
+      long h = key * 0x9e3779b97f4a7c15L;
+      int slot = (int)(h >>> 32) & mask;
+      while (keys_[slot] != EMPTY && keys_[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void grow() {
+      long[] keys = keys_;
+      long[] values = values_;
+      keys_ = new long[keys.length * 2];
+      values_ = new long[keys.length * 2];
+      Arrays.fill(keys_, EMPTY);
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i] != EMPTY) {
+          int slot = slot(keys[i]);
+          keys_[slot] = keys[i];
+          values_[slot] = values[i];
+        }
+      }
+    }
+
+    // Ordinals are never negative.
+    private static final long EMPTY = -1L;
+
+    private long[] keys_;
+    private long[] values_;
+    private int size_;
+    public int numFiles_;
+    public int numSkippedFiles_;
   }
 
   private static PartModel partModel_;
@@ -105,4 +399,4 @@ public final class MostUsedParts {
   static {
     partModel_ = PartModel.getModel();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,103 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.offline;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.brickmesh.parts.AvailableParts;
+import com.brickmesh.parts.PartLoader;
+import com.brickmesh.parts.PartModel;
+import com.brickmesh.parts.RequiredItems;
+import com.brickmesh.parts.ShopOptimizer;
+
+// Prints a small set of shops that have all the parts of a model, given
+// a directory of shop inventories in BrickLink XML format.
+public final class OptimizeShops {
+  public static void main(String[] args)
+      throws IOException, PartLoader.LoaderException {
+    if (args.length < 2) {
+      System.err.println("Not enough args.");
+      System.err.println(
+          "Usage: <command> <lxf-or-xml-file> <shop-dir> [<max-search-nodes>]\n");
+      return;
+    }
+    long maxNodes = args.length > 2 ? Long.parseLong(args[2]) : 100000;
+
+    PartModel partModel = PartModel.getModel();
+    PartLoader.LoaderBase loader = args[0].endsWith(".xml") ?
+        new PartLoader(partModel).createWantedLoader(PartLoader.Options.createUnlimited()) :
+        new PartLoader(partModel).createLxfLoader(PartLoader.Options.createUnlimited());
+    FileInputStream fis = new FileInputStream(args[0]);
+    try {
+      loader.parse(fis);
+    }
+    finally {
+      fis.close();
+    }
+
+    ArrayList<ShopOptimizer.Shop> shops = new ArrayList<ShopOptimizer.Shop>();
+    File[] files = new File(args[1]).listFiles();
+    if (files == null) {
+      System.err.println("Not a directory: " + args[1]);
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      if (!file.getName().endsWith(".xml")) continue;
+      FileInputStream shopInput = new FileInputStream(file);
+      try {
+        shops.add(ShopOptimizer.Shop.load(partModel, file.getName(), shopInput));
+      }
+      finally {
+        shopInput.close();
+      }
+    }
+
+    ShopOptimizer optimizer = new ShopOptimizer(
+        loader.getResult().items_, shops, AvailableParts.getDefault(),
+        AvailableParts.Condition.USED);
+    ShopOptimizer.Solution greedy = optimizer.greedy();
+    System.err.println("Greedy: " + greedy);
+    ShopOptimizer.Solution solution = optimizer.refine(greedy, maxNodes);
+    for (ShopOptimizer.Shop shop : solution.shops_) {
+      System.out.println(shop.name_);
+    }
+    System.out.format("Estimated cost: %.2f USD\n", solution.costUsd_);
+    if (solution.numUncoveredItems_ > 0) {
+      System.out.format("Not available in any shop (%d items):\n",
+          solution.numUncoveredItems_);
+      for (RequiredItems.Item item : solution.uncovered_.items().values()) {
+        System.out.format("%16s: %5d\n", item.itemId(), item.count_);
+      }
+    }
+  }
+}
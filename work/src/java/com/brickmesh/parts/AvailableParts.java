@@ -0,0 +1,404 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.google.protobuf.TextFormat;
+
+import com.brickmesh.proto.PartModelProto;
+
+// Part-color combinations that can be bought, with the number of lots
+// and the average prices.
+//
+// The entries are stored in columns of primitive arrays, looked up by a
+// hash of the (part ordinal, color ordinal) pair. Lookups do not allocate
+// and there is no object per entry.
+//
+// Instances are immutable and thread-safe.
+public final class AvailableParts {
+  public enum Condition {
+    NEW,
+    USED
+  }
+
+  // Returns the default instance, loaded from the assets. Uses the binary
+  // form if the build produced one.
+  public static synchronized AvailableParts getDefault() {
+    if (default_ == null) {
+      try {
+        InputStream is = AvailableParts.class.getResourceAsStream(
+            "/com/brickmesh/assets/available-parts.bin");
+        if (is != null) {
+          default_ = loadBinary(is);
+        } else {
+          is = AvailableParts.class.getResourceAsStream(
+              "/com/brickmesh/assets/available-parts.txt");
+          if (is == null) {
+            throw new AssertionError("Missing asset: available-parts.txt");
+          }
+          default_ = loadText(new InputStreamReader(is, "UTF-8"));
+        }
+        is.close();
+      }
+      catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return default_;
+  }
+
+  // Loads the text form, an AvailableParts message in text format.
+  public static AvailableParts loadText(Reader reader) throws IOException {
+    PartModelProto.AvailableParts.Builder builder =
+        PartModelProto.AvailableParts.newBuilder();
+    TextFormat.merge(new BufferedReader(reader), builder);
+    PartModelProto.AvailableParts proto = builder.build();
+
+    int numEntries = 0;
+    for (PartModelProto.AvailablePart partProto : proto.getPartList()) {
+      numEntries += partProto.getColorCount();
+    }
+    Builder b = new Builder(proto.getPartCount(), numEntries);
+    for (PartModelProto.AvailablePart partProto : proto.getPartList()) {
+      int partOrdinal = b.partOrdinal(partProto.getId());
+      for (PartModelProto.AvailablePart.Color colorProto : partProto.getColorList()) {
+        b.add(partOrdinal, b.colorOrdinal(colorProto.getColor()),
+            colorProto.getNumLots(),
+            colorProto.hasUsedPriceUsd() ? colorProto.getUsedPriceUsd() : Double.NaN,
+            colorProto.hasNewPriceUsd() ? colorProto.getNewPriceUsd() : Double.NaN);
+      }
+    }
+    return b.build();
+  }
+
+  // Loads the binary form written by writeBinary().
+  public static AvailableParts loadBinary(InputStream input) throws IOException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(input));
+    if (dis.readInt() != BINARY_MAGIC) {
+      throw new IOException("Not an available parts file.");
+    }
+    String[] partIds = readStrings(dis);
+    String[] colorIds = readStrings(dis);
+    int numEntries = dis.readInt();
+    if (numEntries < 0) {
+      throw new IOException("Invalid number of entries: " + numEntries);
+    }
+    Builder b = new Builder(partIds, colorIds, numEntries);
+    for (int i = 0; i < numEntries; ++i) {
+      int partOrdinal = dis.readInt();
+      int colorOrdinal = dis.readInt();
+      if (partOrdinal < 0 || partOrdinal >= partIds.length ||
+          colorOrdinal < 0 || colorOrdinal >= colorIds.length) {
+        throw new IOException("Invalid entry: " + i);
+      }
+      b.add(partOrdinal, colorOrdinal, dis.readLong(), dis.readDouble(), dis.readDouble());
+    }
+    return b.build();
+  }
+
+  // Writes the binary form, which loads much faster than the text form.
+  public void writeBinary(OutputStream output) throws IOException {
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(output));
+    dos.writeInt(BINARY_MAGIC);
+    writeStrings(dos, partIds_);
+    writeStrings(dos, colorIds_);
+    dos.writeInt(numEntries_);
+    for (int i = 0; i < numEntries_; ++i) {
+      dos.writeInt(partOrdinals_[i]);
+      dos.writeInt(colorOrdinals_[i]);
+      dos.writeLong(numLots_[i]);
+      dos.writeDouble(usedPriceUsd_[i]);
+      dos.writeDouble(newPriceUsd_[i]);
+    }
+    dos.flush();
+  }
+
+  public int numEntries() {
+    return numEntries_;
+  }
+
+  public int numPartOrdinals() {
+    return partIds_.length;
+  }
+
+  public String partIdForOrdinal(int partOrdinal) {
+    return partIds_[partOrdinal];
+  }
+
+  public int numColorOrdinals() {
+    return colorIds_.length;
+  }
+
+  public String colorIdForOrdinal(int colorOrdinal) {
+    return colorIds_[colorOrdinal];
+  }
+
+  // Returns the ordinal of a part id like "b:3001", or -1 if the part is
+  // not available in any color.
+  public int partOrdinal(String partId) {
+    Integer ordinal = partOrdinalMap_.get(partId);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  public int colorOrdinal(String colorId) {
+    Integer ordinal = colorOrdinalMap_.get(colorId);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  // Returns the index of the entry, or -1 if the combination is not
+  // available.
+  public int entryIndex(int partOrdinal, int colorOrdinal) {
+    if (partOrdinal < 0 || colorOrdinal < 0) return -1;
+    long key = key(partOrdinal, colorOrdinal);
+    int mask = slots_.length - 1;
+    for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+      int index = slots_[slot];
+      if (index < 0) return -1;
+      if (key(partOrdinals_[index], colorOrdinals_[index]) == key) return index;
+    }
+  }
+
+  public int entryIndex(ItemId itemId) {
+    return entryIndex(partOrdinal(itemId.partId()), colorOrdinal(itemId.colorId()));
+  }
+
+  public boolean isAvailable(ItemId itemId) {
+    return entryIndex(itemId) >= 0;
+  }
+
+  // Returns the number of lots for sale, 0 if not available.
+  public long numLots(ItemId itemId) {
+    int index = entryIndex(itemId);
+    return index < 0 ? 0 : numLots_[index];
+  }
+
+  // Returns the average price in USD, NaN if there is no price data.
+  public double priceUsd(ItemId itemId, Condition condition) {
+    int index = entryIndex(itemId);
+    return index < 0 ? Double.NaN : priceUsd(index, condition);
+  }
+
+  public String partId(int index) {
+    return partIds_[partOrdinals_[index]];
+  }
+
+  public String colorId(int index) {
+    return colorIds_[colorOrdinals_[index]];
+  }
+
+  public long numLots(int index) {
+    return numLots_[index];
+  }
+
+  public double priceUsd(int index, Condition condition) {
+    return condition == Condition.NEW ? newPriceUsd_[index] : usedPriceUsd_[index];
+  }
+
+  private static final class Builder {
+    // Ids are added with partOrdinal() and colorOrdinal().
+    Builder(int numParts, int numEntries) {
+      this(new String[numParts], 0, new String[16], 0, numEntries);
+    }
+
+    Builder(String[] partIds, String[] colorIds, int numEntries) throws IOException {
+      this(partIds, partIds.length, colorIds, colorIds.length, numEntries);
+      if (partOrdinalMap_.size() != partIds.length ||
+          colorOrdinalMap_.size() != colorIds.length) {
+        throw new IOException("Duplicate ids.");
+      }
+    }
+
+    private Builder(String[] partIds, int numPartIds, String[] colorIds,
+        int numColorIds, int numEntries) {
+      partIds_ = partIds;
+      colorIds_ = colorIds;
+      numPartIds_ = numPartIds;
+      numColorIds_ = numColorIds;
+      partOrdinalMap_ = ordinalMap(partIds, numPartIds);
+      colorOrdinalMap_ = ordinalMap(colorIds, numColorIds);
+      partOrdinals_ = new int[numEntries];
+      colorOrdinals_ = new int[numEntries];
+      numLots_ = new long[numEntries];
+      usedPriceUsd_ = new double[numEntries];
+      newPriceUsd_ = new double[numEntries];
+    }
+
+    int partOrdinal(String partId) {
+      Integer ordinal = partOrdinalMap_.get(partId);
+      if (ordinal == null) {
+        if (numPartIds_ == partIds_.length) {
+          partIds_ = Arrays.copyOf(partIds_, numPartIds_ * 2 + 1);
+        }
+        ordinal = numPartIds_;
+        partIds_[numPartIds_++] = partId;
+        partOrdinalMap_.put(partId, ordinal);
+      }
+      return ordinal;
+    }
+
+    int colorOrdinal(String colorId) {
+      Integer ordinal = colorOrdinalMap_.get(colorId);
+      if (ordinal == null) {
+        if (numColorIds_ == colorIds_.length) {
+          colorIds_ = Arrays.copyOf(colorIds_, numColorIds_ * 2);
+        }
+        ordinal = numColorIds_;
+        colorIds_[numColorIds_++] = colorId;
+        colorOrdinalMap_.put(colorId, ordinal);
+      }
+      return ordinal;
+    }
+
+    void add(int partOrdinal, int colorOrdinal, long numLots,
+        double usedPriceUsd, double newPriceUsd) {
+      partOrdinals_[numEntries_] = partOrdinal;
+      colorOrdinals_[numEntries_] = colorOrdinal;
+      numLots_[numEntries_] = numLots;
+      usedPriceUsd_[numEntries_] = usedPriceUsd;
+      newPriceUsd_[numEntries_] = newPriceUsd;
+      ++numEntries_;
+    }
+
+    AvailableParts build() throws IOException {
+      return new AvailableParts(this);
+    }
+
+    private static HashMap<String, Integer> ordinalMap(String[] ids, int numIds) {
+      HashMap<String, Integer> map = new HashMap<String, Integer>(ids.length * 2);
+      for (int i = 0; i < numIds; ++i) {
+        map.put(ids[i], i);
+      }
+      return map;
+    }
+
+    private String[] partIds_;
+    private String[] colorIds_;
+    private int numPartIds_;
+    private int numColorIds_;
+    private final HashMap<String, Integer> partOrdinalMap_;
+    private final HashMap<String, Integer> colorOrdinalMap_;
+    private final int[] partOrdinals_;
+    private final int[] colorOrdinals_;
+    private final long[] numLots_;
+    private final double[] usedPriceUsd_;
+    private final double[] newPriceUsd_;
+    private int numEntries_;
+  }
+
+  private AvailableParts(Builder b) throws IOException {
+    partIds_ = Arrays.copyOf(b.partIds_, b.numPartIds_);
+    colorIds_ = Arrays.copyOf(b.colorIds_, b.numColorIds_);
+    partOrdinalMap_ = b.partOrdinalMap_;
+    colorOrdinalMap_ = b.colorOrdinalMap_;
+    numEntries_ = b.numEntries_;
+    partOrdinals_ = b.partOrdinals_;
+    colorOrdinals_ = b.colorOrdinals_;
+    numLots_ = b.numLots_;
+    usedPriceUsd_ = b.usedPriceUsd_;
+    newPriceUsd_ = b.newPriceUsd_;
+
+    // Open addressing with linear probing, at most half full.
+    int numSlots = Integer.highestOneBit(Math.max(numEntries_, 1) * 2) * 2;
+    slots_ = new int[numSlots];
+    Arrays.fill(slots_, -1);
+    int mask = numSlots - 1;
+    for (int i = 0; i < numEntries_; ++i) {
+      long key = key(partOrdinals_[i], colorOrdinals_[i]);
+      int slot = slot(key, mask);
+      while (slots_[slot] >= 0) {
+        if (key(partOrdinals_[slots_[slot]], colorOrdinals_[slots_[slot]]) == key) {
+          throw new IOException("Duplicate entry: " + partIds_[partOrdinals_[i]] +
+              " " + colorIds_[colorOrdinals_[i]]);
+        }
+        slot = (slot + 1) & mask;
+      }
+      slots_[slot] = i;
+    }
+  }
+
+  private static long key(int partOrdinal, int colorOrdinal) {
+    return ((long)partOrdinal << 32) | (colorOrdinal & 0xffffffffL);
+  }
+
+  private static int slot(long key, int mask) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int)(h >>> 32) & mask;
+  }
+
+  private static String[] readStrings(DataInputStream dis) throws IOException {
+    int length = dis.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid number of ids: " + length);
+    }
+    String[] result = new String[length];
+    for (int i = 0; i < length; ++i) {
+      result[i] = dis.readUTF();
+    }
+    return result;
+  }
+
+  private static void writeStrings(DataOutputStream dos, String[] strings)
+      throws IOException {
+    dos.writeInt(strings.length);
+    for (String s : strings) {
+      dos.writeUTF(s);
+    }
+  }
+
+  private static final int BINARY_MAGIC = 0x424d4150;  // "BMAP"
+
+  private static AvailableParts default_;
+
+  private final String[] partIds_;
+  private final String[] colorIds_;
+  private final HashMap<String, Integer> partOrdinalMap_;
+  private final HashMap<String, Integer> colorOrdinalMap_;
+  private final int numEntries_;
+
+  // Columns, indexed by entry.
+  private final int[] partOrdinals_;
+  private final int[] colorOrdinals_;
+  private final long[] numLots_;
+  private final double[] usedPriceUsd_;
+  private final double[] newPriceUsd_;
+
+  // Hash table from (part ordinal, color ordinal) to entry index, -1 if empty.
+  private final int[] slots_;
+}
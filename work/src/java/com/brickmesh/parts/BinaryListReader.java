@@ -0,0 +1,137 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+// Reads an item list written by BinaryListWriter, one line at a time.
+// Unknown fields are skipped, so the format can be extended.
+//
+// Usage:
+//   BinaryListReader reader = new BinaryListReader(input);
+//   while (reader.next()) {
+//     ... reader.itemId(), reader.count() ...
+//   }
+public final class BinaryListReader {
+  public BinaryListReader(InputStream input) {
+    input_ = CodedInputStream.newInstance(input);
+  }
+
+  // Reads the next line. Returns false at the end of the input.
+  public boolean next() throws IOException {
+    // The size limit applies to the whole stream otherwise.
+    input_.resetSizeCounter();
+    if (input_.isAtEnd()) {
+      return false;
+    }
+    int size = input_.readRawVarint32();
+    int oldLimit = input_.pushLimit(size);
+    String partId = null;
+    String colorId = null;
+    count_ = 0;
+    weightGrams_ = 0.0;
+    status_ = null;
+    while (true) {
+      int tag = input_.readTag();
+      if (tag == 0) break;
+      int fieldNumber = WireFormat.getTagFieldNumber(tag);
+      if (WireFormat.getTagWireType(tag) != wireTypeOrMinusOne(fieldNumber)) {
+        // An unknown field, or a known one that has a different type.
+        input_.skipField(tag);
+        continue;
+      }
+      switch (fieldNumber) {
+        case BinaryListWriter.PART_ID_FIELD:
+          partId = input_.readString();
+          break;
+        case BinaryListWriter.COLOR_ID_FIELD:
+          colorId = input_.readString();
+          break;
+        case BinaryListWriter.COUNT_FIELD:
+          count_ = input_.readInt32();
+          break;
+        case BinaryListWriter.WEIGHT_GRAMS_FIELD:
+          weightGrams_ = input_.readDouble();
+          break;
+        case BinaryListWriter.STATUS_FIELD:
+          status_ = PartExporter.LineStatus.forNumberOrNull(input_.readEnum());
+          break;
+      }
+    }
+    input_.popLimit(oldLimit);
+    if (partId == null || colorId == null || status_ == null) {
+      throw new IOException("Incomplete item in list.");
+    }
+    // Not interned, the input may contain any ids.
+    itemId_ = new ItemId(partId, colorId);
+    return true;
+  }
+
+  // The wire type that BinaryListWriter uses for the field, -1 if unknown.
+  private static int wireTypeOrMinusOne(int fieldNumber) {
+    switch (fieldNumber) {
+      case BinaryListWriter.PART_ID_FIELD:
+      case BinaryListWriter.COLOR_ID_FIELD:
+        return WireFormat.WIRETYPE_LENGTH_DELIMITED;
+      case BinaryListWriter.COUNT_FIELD:
+      case BinaryListWriter.STATUS_FIELD:
+        return WireFormat.WIRETYPE_VARINT;
+      case BinaryListWriter.WEIGHT_GRAMS_FIELD:
+        return WireFormat.WIRETYPE_FIXED64;
+      default:
+        return -1;
+    }
+  }
+
+  public ItemId itemId() {
+    return itemId_;
+  }
+
+  public int count() {
+    return count_;
+  }
+
+  // The weight of the line, 0 if not known.
+  public double weightGrams() {
+    return weightGrams_;
+  }
+
+  public PartExporter.LineStatus status() {
+    return status_;
+  }
+
+  private final CodedInputStream input_;
+  private ItemId itemId_;
+  private int count_;
+  private double weightGrams_;
+  private PartExporter.LineStatus status_;
+}
@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.protobuf.CodedOutputStream;
+
+// Writes an item list as length-prefixed ExportedItem messages (see
+// part-model-proto.proto). The messages are encoded directly instead of
+// building them, so writing a line does not allocate.
+//
+// This class is not thread-safe. Call flush() at the end.
+public final class BinaryListWriter {
+  public BinaryListWriter(OutputStream output) {
+    output_ = CodedOutputStream.newInstance(output, BUFFER_SIZE);
+  }
+
+  public void write(ItemId itemId, int count, double weightGrams,
+      PartExporter.LineStatus status) throws IOException {
+    String partId = itemId.partId();
+    String colorId = itemId.colorId();
+    int size = CodedOutputStream.computeStringSize(PART_ID_FIELD, partId) +
+        CodedOutputStream.computeStringSize(COLOR_ID_FIELD, colorId) +
+        CodedOutputStream.computeInt32Size(COUNT_FIELD, count) +
+        CodedOutputStream.computeEnumSize(STATUS_FIELD, status.number_);
+    if (weightGrams > 0.0) {
+      size += CodedOutputStream.computeDoubleSize(WEIGHT_GRAMS_FIELD, weightGrams);
+    }
+    output_.writeUInt32NoTag(size);
+    output_.writeString(PART_ID_FIELD, partId);
+    output_.writeString(COLOR_ID_FIELD, colorId);
+    output_.writeInt32(COUNT_FIELD, count);
+    if (weightGrams > 0.0) {
+      output_.writeDouble(WEIGHT_GRAMS_FIELD, weightGrams);
+    }
+    output_.writeEnum(STATUS_FIELD, status.number_);
+  }
+
+  public void flush() throws IOException {
+    output_.flush();
+  }
+
+  // Field numbers of ExportedItem.
+  static final int PART_ID_FIELD = 1;
+  static final int COLOR_ID_FIELD = 2;
+  static final int COUNT_FIELD = 3;
+  static final int WEIGHT_GRAMS_FIELD = 4;
+  static final int STATUS_FIELD = 5;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final CodedOutputStream output_;
+}
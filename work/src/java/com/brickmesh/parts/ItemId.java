@@ -27,6 +27,8 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.parts;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 // An "item" is a part with a color that is in a model.
 //
 // An ItemId consists of:
@@ -36,17 +38,39 @@ package com.brickmesh.parts;
 // The ids should point to an existing color and part, but there is
 // no guarantee that those actually exist.
 //
+// ItemIds are used as keys in many maps, so the hash code, the position of
+// the namespace separator and a sort key are computed once in the
+// constructor. ItemId.of() returns a shared (interned) instance, which
+// makes equals() a reference comparison in the common case and avoids
+// allocation when the id is already known. Interned ids are never
+// released, so use ItemId.of() only for ids of the PartModel and the
+// constructor for ids from input that has not been validated.
+//
 // This class is immutable.
-public final class ItemId implements Comparable {
+public final class ItemId implements Comparable<ItemId> {
+  // Splits "namespace:id" into its two pieces. Returns null if the id
+  // does not have exactly one ':' followed by a non-empty id.
   public static String[] idPiecesOrNull(String id) {
-    String[] split = id.split(":");
-    if (split.length != 2) return null;
-    return split;
+    int pos = id.indexOf(':');
+    if (pos < 0 || pos == id.length() - 1 || id.indexOf(':', pos + 1) >= 0) {
+      return null;
+    }
+    return new String[] { id.substring(0, pos), id.substring(pos + 1) };
+  }
+
+  // Returns the interned ItemId for the part and color id, which should
+  // be in the PartModel.
+  public static ItemId of(String partId, String colorId) {
+    return INTERNER.intern(partId, colorId);
   }
 
   public ItemId(String partId, String colorId) {
     partId_ = partId;
     colorId_ = colorId;
+    hash_ = hash(partId, colorId);
+    partSeparator_ = partId.indexOf(':');
+    colorSeparator_ = colorId.indexOf(':');
+    sortKey_ = sortKey(partId);
   }
 
   public String colorId() {
@@ -57,31 +81,59 @@ public final class ItemId implements Comparable {
     return partId_;
   }
 
-  public ItemId withoutNamespace() {
-    ItemId result = this;
-    int pos = partId_.lastIndexOf(':');
-    if (pos >= 0) {
-      result.partId_ = partId_.substring(pos + 1);
+  // Returns true if the part id is "namespace:..."
+  public boolean isPartInNamespace(String namespace) {
+    return partSeparator_ == namespace.length() &&
+        partId_.startsWith(namespace);
+  }
+
+  // Returns true if the color id is "namespace:..."
+  public boolean isColorInNamespace(String namespace) {
+    return colorSeparator_ == namespace.length() &&
+        colorId_.startsWith(namespace);
+  }
+
+  // The part id without the namespace.
+  public String partLocalId() {
+    String result = partLocalId_;
+    if (result == null) {
+      result = partId_.substring(partSeparator_ + 1);
+      partLocalId_ = result;
     }
-    pos = colorId_.lastIndexOf(':');
-    if (pos >= 0) {
-      result.colorId_ = colorId_.substring(pos + 1);
+    return result;
+  }
+
+  // The color id without the namespace.
+  public String colorLocalId() {
+    String result = colorLocalId_;
+    if (result == null) {
+      result = colorId_.substring(colorSeparator_ + 1);
+      colorLocalId_ = result;
     }
     return result;
   }
 
+  public ItemId withoutNamespace() {
+    return new ItemId(partLocalId(), colorLocalId());
+  }
+
   public boolean equals(Object other) {
+    if (this == other) return true;
+    if (!(other instanceof ItemId)) return false;
     ItemId itemId = (ItemId)other;
-    return colorId_.equals(itemId.colorId_) && partId_.equals(itemId.partId_);
+    return hash_ == itemId.hash_ &&
+        colorId_.equals(itemId.colorId_) && partId_.equals(itemId.partId_);
   }
 
   public int hashCode() {
-    final int PRIME = 31;
-    return colorId_.hashCode() * PRIME + partId_.hashCode();
+    return hash_;
   }
 
-  public int compareTo(Object other) {
-    ItemId itemId = (ItemId)other;
+  public int compareTo(ItemId itemId) {
+    if (sortKey_ != itemId.sortKey_ &&
+        sortKey_ != NO_SORT_KEY && itemId.sortKey_ != NO_SORT_KEY) {
+      return sortKey_ < itemId.sortKey_ ? -1 : 1;
+    }
     int result = partId_.compareTo(itemId.partId_);
     if (result != 0) return result;
     return colorId_.compareTo(itemId.colorId_);
@@ -95,6 +147,128 @@ public final class ItemId implements Comparable {
     return sb.toString();
   }
 
-  private String partId_;
-  private String colorId_;
+  // Same as String.hashCode() but works on any CharSequence.
+  private static int hash(CharSequence s) {
+    int h = 0;
+    for (int i = 0; i < s.length(); ++i) {
+      h = 31 * h + s.charAt(i);
+    }
+    return h;
+  }
+
+  private static int hash(CharSequence partId, CharSequence colorId) {
+    final int PRIME = 31;
+    return hash(colorId) * PRIME + hash(partId);
+  }
+
+  // The first 7 characters of the part id packed into a non-negative long,
+  // 9 bits per character. Comparing two sort keys gives the same order as
+  // String.compareTo() on the part ids, as long as the keys differ. Ids
+  // that contain characters that do not fit get NO_SORT_KEY.
+  private static long sortKey(String partId) {
+    long key = 0;
+    for (int i = 0; i < 7; ++i) {
+      // 0 marks the end of the string, which sorts before any character.
+      int v = 0;
+      if (i < partId.length()) {
+        char c = partId.charAt(i);
+        if (c >= 0x1ff) return NO_SORT_KEY;
+        v = c + 1;
+      }
+      key = (key << 9) | v;
+    }
+    return key;
+  }
+
+  // A lock-free (for readers) hash set of ItemIds. Lookups compare the
+  // characters of the candidate, so they need no temporary objects. The
+  // size is capped: user input can contain any number of unknown ids, and
+  // ids above the cap are simply not shared.
+  private static final class Interner {
+    private static final class Node {
+      Node(ItemId itemId, Node next) {
+        itemId_ = itemId;
+        next_ = next;
+      }
+
+      final ItemId itemId_;
+      final Node next_;
+    }
+
+    public ItemId intern(CharSequence partId, CharSequence colorId) {
+      int hash = hash(partId, colorId);
+      ItemId result = lookup(table_, partId, colorId, hash);
+      if (result != null) {
+        return result;
+      }
+      synchronized (this) {
+        AtomicReferenceArray<Node> table = table_;
+        result = lookup(table, partId, colorId, hash);
+        if (result != null) {
+          return result;
+        }
+        result = new ItemId(partId.toString(), colorId.toString());
+        if (size_ >= MAX_INTERNED) {
+          return result;
+        }
+        int idx = index(hash, table.length());
+        table.set(idx, new Node(result, table.get(idx)));
+        ++size_;
+        if (size_ > table.length() / 4 * 3) {
+          table_ = resize(table);
+        }
+        return result;
+      }
+    }
+
+    private static ItemId lookup(AtomicReferenceArray<Node> table,
+        CharSequence partId, CharSequence colorId, int hash) {
+      Node node = table.get(index(hash, table.length()));
+      while (node != null) {
+        ItemId itemId = node.itemId_;
+        if (itemId.hash_ == hash &&
+            itemId.partId_.contentEquals(partId) &&
+            itemId.colorId_.contentEquals(colorId)) {
+          return itemId;
+        }
+        node = node.next_;
+      }
+      return null;
+    }
+
+    // Creates a new table with new nodes, so readers of the old table
+    // still see a consistent state.
+    private static AtomicReferenceArray<Node> resize(AtomicReferenceArray<Node> table) {
+      AtomicReferenceArray<Node> newTable = new AtomicReferenceArray<Node>(table.length() * 2);
+      for (int i = 0; i < table.length(); ++i) {
+        for (Node node = table.get(i); node != null; node = node.next_) {
+          int idx = index(node.itemId_.hash_, newTable.length());
+          newTable.set(idx, new Node(node.itemId_, newTable.get(idx)));
+        }
+      }
+      return newTable;
+    }
+
+    private static int index(int hash, int length) {
+      return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+    private volatile AtomicReferenceArray<Node> table_ = new AtomicReferenceArray<Node>(1024);
+    private int size_;
+  }
+
+  private static final long NO_SORT_KEY = -1;
+  private static final int MAX_INTERNED = 1 << 20;
+  private static final Interner INTERNER = new Interner();
+
+  private final String partId_;
+  private final String colorId_;
+  private final int hash_;
+  private final int partSeparator_;
+  private final int colorSeparator_;
+  private final long sortKey_;
+
+  // Computed on first use. Races are benign, the result is always the same.
+  private String partLocalId_;
+  private String colorLocalId_;
 }
@@ -56,6 +56,7 @@ public class Ldd2Wanted {
     RequiredItems items = loader.getResult().items_;
     UnknownItems unknownItems = loader.getResult().unknownItems_;
     TreeMap<ItemId, Integer> blItems = items.exportToNamespace("b", unknownItems);
+    UnknownItemsTelemetry.global().record(unknownItems);
     PartExporter.exportToWantedList(blItems, System.out, null);
     System.err.format("Estimated weight: %.3f gram(s)\n", items.weightEstimateGrams());
 
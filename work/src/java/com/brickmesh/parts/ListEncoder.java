@@ -0,0 +1,320 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Writes wanted lists, CSV and JSON lists as bytes into a reusable buffer that
+// is drained to the output only when it is full. The fixed parts of the
+// output are encoded once, ids and numbers are written character by
+// character, so writing a row does not allocate.
+//
+// This class is not thread-safe. Call flush() at the end.
+public final class ListEncoder {
+  public ListEncoder(OutputStream output) {
+    this(output, null, DEFAULT_BUFFER_SIZE);
+  }
+
+  public ListEncoder(WritableByteChannel channel) {
+    this(null, channel, DEFAULT_BUFFER_SIZE);
+  }
+
+  public ListEncoder(OutputStream output, WritableByteChannel channel, int bufferSize) {
+    output_ = output;
+    channel_ = channel;
+    buffer_ = ByteBuffer.allocate(Math.max(bufferSize, MIN_BUFFER_SIZE));
+  }
+
+  public void beginWantedList() throws IOException {
+    put(INVENTORY_START);
+  }
+
+  public void wantedItem(ItemId itemId, int quantity, PartExporter.Options options)
+      throws IOException {
+    put(ITEM_START);
+    putLocalId(itemId.partId());
+    put(ITEMID_END_COLOR_START);
+    putLocalId(itemId.colorId());
+    put(COLOR_END_MINQTY_START);
+    putLong(quantity);
+    put(MINQTY_END);
+    if (options.acceptNew_ && !options.acceptUsed_) {
+      put(CONDITION_NEW);
+    } else if (!options.acceptNew_ && options.acceptUsed_) {
+      put(CONDITION_USED);
+    }
+    put(options.notify_ ? NOTIFY_YES : NOTIFY_NO);
+    if (options.wantedListId_ > 0) {
+      put(WANTEDLISTID_START);
+      putLong(options.wantedListId_);
+      put(WANTEDLISTID_END);
+    }
+    put(ITEM_END);
+  }
+
+  public void endWantedList() throws IOException {
+    put(INVENTORY_END);
+  }
+
+  public void beginCsvList() throws IOException {
+    put(CSV_HEADER);
+  }
+
+  public void csvItem(ItemId itemId, int quantity) throws IOException {
+    putLocalId(itemId.partId());
+    putByte('-');
+    putLocalId(itemId.colorId());
+    putByte(',');
+    putLocalId(itemId.partId());
+    putByte(',');
+    putLocalId(itemId.colorId());
+    putByte(',');
+    putLong(quantity);
+    put(NEWLINE);
+  }
+
+  public void beginJsonList() throws IOException {
+    put(JSON_START);
+    numJsonItems_ = 0;
+  }
+
+  // Writes one line of the JSON list. Ids are written with their namespace.
+  public void jsonItem(ItemId itemId, int quantity, double weightGrams,
+      PartExporter.LineStatus status) throws IOException {
+    put(numJsonItems_ == 0 ? JSON_ITEM_FIRST : JSON_ITEM_NEXT);
+    ++numJsonItems_;
+    putJsonString(itemId.partId());
+    put(JSON_COLOR_ID);
+    putJsonString(itemId.colorId());
+    put(JSON_COUNT);
+    putLong(quantity);
+    // Left out if not known, like in the binary list.
+    if (weightGrams > 0.0) {
+      put(JSON_WEIGHT);
+      putFixed3(weightGrams);
+    }
+    put(JSON_STATUS);
+    putJsonString(status.jsonName_);
+    putByte('}');
+  }
+
+  public void endJsonList() throws IOException {
+    if (numJsonItems_ > 0) {
+      put(NEWLINE);
+    }
+    put(JSON_END);
+  }
+
+  // Writes everything buffered to the output.
+  public void flush() throws IOException {
+    drain();
+    if (output_ != null) {
+      output_.flush();
+    }
+  }
+
+  private void drain() throws IOException {
+    if (buffer_.position() == 0) return;
+    if (output_ != null) {
+      output_.write(buffer_.array(), 0, buffer_.position());
+    } else {
+      buffer_.flip();
+      while (buffer_.hasRemaining()) {
+        channel_.write(buffer_);
+      }
+    }
+    buffer_.clear();
+  }
+
+  private void ensureSpace(int n) throws IOException {
+    if (buffer_.remaining() < n) {
+      drain();
+    }
+  }
+
+  private void put(byte[] bytes) throws IOException {
+    if (bytes.length > buffer_.capacity()) {
+      drain();
+      if (output_ != null) {
+        output_.write(bytes);
+      } else {
+        ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+        while (wrapped.hasRemaining()) {
+          channel_.write(wrapped);
+        }
+      }
+      return;
+    }
+    ensureSpace(bytes.length);
+    buffer_.put(bytes);
+  }
+
+  private void putByte(char c) throws IOException {
+    ensureSpace(1);
+    buffer_.put((byte)c);
+  }
+
+  // Writes the part of a namespaced id after the ':'.
+  private void putLocalId(String id) throws IOException {
+    putChars(id, id.indexOf(':') + 1);
+  }
+
+  // Writes the characters as UTF-8.
+  private void putChars(String s, int start) throws IOException {
+    for (int i = start; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        putByte(c);
+      } else {
+        int end = i + 1;
+        if (Character.isHighSurrogate(c) && end < s.length()) ++end;
+        put(s.substring(i, end).getBytes(StandardCharsets.UTF_8));
+        i = end - 1;
+      }
+    }
+  }
+
+  private void putLong(long value) throws IOException {
+    ensureSpace(20);
+    if (value < 0) {
+      if (value == Long.MIN_VALUE) {
+        put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        return;
+      }
+      buffer_.put((byte)'-');
+      value = -value;
+    }
+    long divisor = 1;
+    while (value / divisor >= 10) {
+      divisor *= 10;
+    }
+    while (divisor > 0) {
+      buffer_.put((byte)('0' + value / divisor % 10));
+      divisor /= 10;
+    }
+  }
+
+  // Writes the value with exactly 3 decimals.
+  private void putFixed3(double value) throws IOException {
+    long thousandths = Math.round(value * 1000.0);
+    if (thousandths < 0) {
+      putByte('-');
+      thousandths = -thousandths;
+    }
+    putLong(thousandths / 1000);
+    putByte('.');
+    long fraction = thousandths % 1000;
+    putByte((char)('0' + fraction / 100));
+    putByte((char)('0' + fraction / 10 % 10));
+    putByte((char)('0' + fraction % 10));
+  }
+
+  private void putJsonString(String s) throws IOException {
+    putByte('"');
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        putByte('\\');
+        putByte(c);
+      } else if (c < 0x20) {
+        putByte('\\');
+        putByte('u');
+        putByte('0');
+        putByte('0');
+        putByte(HEX_DIGITS[c >> 4]);
+        putByte(HEX_DIGITS[c & 0xf]);
+      } else if (c < 0x80) {
+        putByte(c);
+      } else {
+        int end = i + 1;
+        if (Character.isHighSurrogate(c) && end < s.length()) ++end;
+        putChars(s.substring(i, end), 0);
+        i = end - 1;
+      }
+    }
+    putByte('"');
+  }
+
+  private static byte[] bytes(String... lines) {
+    StringBuilder sb = new StringBuilder();
+    for (String line : lines) {
+      sb.append(line);
+      sb.append(System.lineSeparator());
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] bytesNoNewline(String... lines) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines.length; ++i) {
+      if (i > 0) sb.append(System.lineSeparator());
+      sb.append(lines[i]);
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  private static final int MIN_BUFFER_SIZE = 64;
+
+  private static final byte[] INVENTORY_START = bytes("<INVENTORY>");
+  private static final byte[] INVENTORY_END = bytes("</INVENTORY>");
+  private static final byte[] ITEM_START = bytesNoNewline(
+      " <ITEM>", "  <ITEMTYPE>P</ITEMTYPE>", "  <ITEMID>");
+  private static final byte[] ITEMID_END_COLOR_START = bytesNoNewline(
+      "</ITEMID>", "  <COLOR>");
+  private static final byte[] COLOR_END_MINQTY_START = bytesNoNewline(
+      "</COLOR>", "  <MINQTY>");
+  private static final byte[] MINQTY_END = bytes("</MINQTY>");
+  private static final byte[] CONDITION_NEW = bytes("  <CONDITION>N</CONDITION>");
+  private static final byte[] CONDITION_USED = bytes("  <CONDITION>U</CONDITION>");
+  private static final byte[] NOTIFY_YES = bytes("  <NOTIFY>Y</NOTIFY>");
+  private static final byte[] NOTIFY_NO = bytes("  <NOTIFY>N</NOTIFY>");
+  private static final byte[] WANTEDLISTID_START = bytesNoNewline("  <WANTEDLISTID>");
+  private static final byte[] WANTEDLISTID_END = bytes("  </WANTEDLISTID>");
+  private static final byte[] ITEM_END = bytes(" </ITEM>");
+  private static final byte[] CSV_HEADER = bytes("ItemId,PartId,ColorId,Qty");
+  private static final byte[] NEWLINE = bytes("");
+  private static final byte[] JSON_START = bytesNoNewline("{\"items\":[");
+  private static final byte[] JSON_ITEM_FIRST = bytesNoNewline("", "{\"partId\":");
+  private static final byte[] JSON_ITEM_NEXT = bytesNoNewline(",", "{\"partId\":");
+  private static final byte[] JSON_COLOR_ID = bytesNoNewline(",\"colorId\":");
+  private static final byte[] JSON_COUNT = bytesNoNewline(",\"count\":");
+  private static final byte[] JSON_WEIGHT = bytesNoNewline(",\"weightGrams\":");
+  private static final byte[] JSON_STATUS = bytesNoNewline(",\"status\":");
+  private static final byte[] JSON_END = bytes("]}");
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final OutputStream output_;
+  private final WritableByteChannel channel_;
+  private final ByteBuffer buffer_;
+  private int numJsonItems_;
+}
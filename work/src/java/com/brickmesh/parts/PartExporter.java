@@ -27,8 +27,10 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.parts;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -47,78 +49,175 @@ public class PartExporter {
     public boolean notify_;
   }
 
+  // Where a line of a binary or JSON list comes from. The numbers match
+  // ExportedItem.Status in part-model-proto.proto.
+  public enum LineStatus {
+    EXPORTED(1, "exported"),
+    UNMAPPABLE(2, "unmappable"),
+    UNKNOWN(3, "unknown");
+
+    LineStatus(int number, String jsonName) {
+      number_ = number;
+      jsonName_ = jsonName;
+    }
+
+    public static LineStatus forNumberOrNull(int number) {
+      for (LineStatus status : values()) {
+        if (status.number_ == number) return status;
+      }
+      return null;
+    }
+
+    public final int number_;
+    public final String jsonName_;
+  }
+
+  public static void exportToWantedList(
+      TreeMap<ItemId, Integer> items, OutputStream output, Options options)
+      throws IOException {
+    ListEncoder encoder = new ListEncoder(output);
+    exportToWantedList(items.entrySet().iterator(), encoder, options);
+    encoder.flush();
+  }
+
+  public static void exportToWantedList(
+      TreeMap<ItemId, Integer> items, WritableByteChannel channel, Options options)
+      throws IOException {
+    ListEncoder encoder = new ListEncoder(channel);
+    exportToWantedList(items.entrySet().iterator(), encoder, options);
+    encoder.flush();
+  }
+
+  // Writes the items in the order of the iterator, e.g. straight from the
+  // composer without copying them first. Does not flush the encoder.
   public static void exportToWantedList(
-      TreeMap<ItemId, Integer> items, OutputStream output, Options options) {
+      Iterator<? extends Map.Entry<ItemId, Integer>> items,
+      ListEncoder encoder, Options options) throws IOException {
     if (options == null) {
       options = new Options();
     }
-    PrintStream ps = output instanceof PrintStream ?
-      (PrintStream)output : new PrintStream(output);
-    ps.println("<INVENTORY>");
-    for (Map.Entry<ItemId, Integer> entry : items.entrySet()) {
-      ps.println(" <ITEM>");
-      ps.println("  <ITEMTYPE>P</ITEMTYPE>");
-      ps.print("  <ITEMID>");
-      String[] partIdPieces = ItemId.idPiecesOrNull(entry.getKey().partId());
-      if (partIdPieces == null || !partIdPieces[0].equals("b")) {
-        throw new AssertionError("Invalid part id to export: " + entry.getKey());
-      }
-      ps.print(partIdPieces[1]);
-      ps.println("</ITEMID>");
-      ps.print("  <COLOR>");
-      String[] colorIdPieces = ItemId.idPiecesOrNull(entry.getKey().colorId());
-      if (colorIdPieces == null || !colorIdPieces[0].equals("b")) {
-        throw new AssertionError("Invalid color id to export: " + entry.getKey());
-      }
-      ps.print(colorIdPieces[1]);
-      ps.println("</COLOR>");
-      ps.print("  <MINQTY>");
-      ps.print(entry.getValue());
-      ps.println("</MINQTY>");
-      if (options.acceptNew_ && !options.acceptUsed_) {
-        ps.println("  <CONDITION>N</CONDITION>");
-      } else if (!options.acceptNew_ && options.acceptUsed_) {
-        ps.println("  <CONDITION>U</CONDITION>");
-      }
-      if (options.notify_) {
-        ps.println("  <NOTIFY>Y</NOTIFY>");
-      } else {
-        ps.println("  <NOTIFY>N</NOTIFY>");
-      }
-      if (options.wantedListId_ > 0) {
-        ps.print("  <WANTEDLISTID>");
-        ps.print(options.wantedListId_);
-        ps.println("  </WANTEDLISTID>");
-      }
-      ps.println(" </ITEM>");
+    encoder.beginWantedList();
+    while (items.hasNext()) {
+      Map.Entry<ItemId, Integer> entry = items.next();
+      ItemId itemId = entry.getKey();
+      checkExportable(itemId);
+      encoder.wantedItem(itemId, entry.getValue(), options);
     }
-    ps.println("</INVENTORY>");
+    encoder.endWantedList();
+  }
+
+  public static void exportToCsvList(
+      TreeMap<ItemId, Integer> items, OutputStream output) throws IOException {
+    ListEncoder encoder = new ListEncoder(output);
+    exportToCsvList(items.entrySet().iterator(), encoder);
+    encoder.flush();
   }
 
   public static void exportToCsvList(
-      TreeMap<ItemId, Integer> items, OutputStream output) {
-    PrintStream ps = output instanceof PrintStream ?
-      (PrintStream)output : new PrintStream(output);
-    ps.println("ItemId,PartId,ColorId,Qty");
+      TreeMap<ItemId, Integer> items, WritableByteChannel channel)
+      throws IOException {
+    ListEncoder encoder = new ListEncoder(channel);
+    exportToCsvList(items.entrySet().iterator(), encoder);
+    encoder.flush();
+  }
+
+  // Same as exportToWantedList() with an iterator, for CSV.
+  public static void exportToCsvList(
+      Iterator<? extends Map.Entry<ItemId, Integer>> items,
+      ListEncoder encoder) throws IOException {
+    encoder.beginCsvList();
+    while (items.hasNext()) {
+      Map.Entry<ItemId, Integer> entry = items.next();
+      ItemId itemId = entry.getKey();
+      checkExportable(itemId);
+      encoder.csvItem(itemId, entry.getValue());
+    }
+  }
+
+  // Writes the exported items, followed by the unmappable and unknown items
+  // if unknownItems is not null, as length-prefixed ExportedItem messages.
+  // Read it back with BinaryListReader.
+  public static void exportToBinary(
+      PartModel partModel, TreeMap<ItemId, Integer> items,
+      UnknownItems unknownItems, OutputStream output) throws IOException {
+    final BinaryListWriter writer = new BinaryListWriter(output);
+    exportLines(partModel, items, unknownItems, new LineWriter() {
+      public void write(ItemId itemId, int count, double weightGrams,
+          LineStatus status) throws IOException {
+        writer.write(itemId, count, weightGrams, status);
+      }
+    });
+    writer.flush();
+  }
+
+  // Same as exportToBinary() but writes a JSON object:
+  // {"items":[{"partId":"b:3005","colorId":"b:11","count":2,
+  //   "weightGrams":2.460,"status":"exported"}, ...]}
+  // weightGrams is left out if the weight is not known.
+  public static void exportToJson(
+      PartModel partModel, TreeMap<ItemId, Integer> items,
+      UnknownItems unknownItems, OutputStream output) throws IOException {
+    final ListEncoder encoder = new ListEncoder(output);
+    encoder.beginJsonList();
+    exportLines(partModel, items, unknownItems, new LineWriter() {
+      public void write(ItemId itemId, int count, double weightGrams,
+          LineStatus status) throws IOException {
+        encoder.jsonItem(itemId, count, weightGrams, status);
+      }
+    });
+    encoder.endJsonList();
+    encoder.flush();
+  }
+
+  private interface LineWriter {
+    void write(ItemId itemId, int count, double weightGrams, LineStatus status)
+        throws IOException;
+  }
+
+  private static void exportLines(
+      PartModel partModel, TreeMap<ItemId, Integer> items,
+      UnknownItems unknownItems, LineWriter writer) throws IOException {
     for (Map.Entry<ItemId, Integer> entry : items.entrySet()) {
-      String[] partIdPieces = ItemId.idPiecesOrNull(entry.getKey().partId());
-      if (partIdPieces == null || !partIdPieces[0].equals("b")) {
-        throw new AssertionError("Invalid part id to export: " + entry.getKey());
+      ItemId itemId = entry.getKey();
+      int count = entry.getValue();
+      writer.write(itemId, count, lineWeightGrams(partModel, itemId, count),
+          LineStatus.EXPORTED);
+    }
+    if (unknownItems == null) return;
+    if (unknownItems.unmappableItemsOrNull() != null) {
+      for (Map.Entry<ItemId, Integer> entry :
+          unknownItems.unmappableItemsOrNull().entrySet()) {
+        ItemId itemId = entry.getKey();
+        int count = entry.getValue();
+        writer.write(itemId, count, lineWeightGrams(partModel, itemId, count),
+            LineStatus.UNMAPPABLE);
       }
-      String[] colorIdPieces = ItemId.idPiecesOrNull(entry.getKey().colorId());
-      if (colorIdPieces == null || !colorIdPieces[0].equals("b")) {
-        throw new AssertionError("Invalid color id to export: " + entry.getKey());
+    }
+    if (unknownItems.unknownItemsOrNull() != null) {
+      for (Map.Entry<ItemId, Integer> entry :
+          unknownItems.unknownItemsOrNull().entrySet()) {
+        writer.write(entry.getKey(), entry.getValue(), 0.0, LineStatus.UNKNOWN);
       }
-      ps.print(partIdPieces[1]);
-      ps.print("-");
-      ps.print(colorIdPieces[1]);
-      ps.print(",");
-      ps.print(partIdPieces[1]);
-      ps.print(",");
-      ps.print(colorIdPieces[1]);
-      ps.print(",");
-      ps.print(entry.getValue());
-      ps.println();
     }
   }
-}
\ No newline at end of file
+
+  private static double lineWeightGrams(PartModel partModel, ItemId itemId, int count) {
+    PartModel.Part part = partModel.findPartOrNull(itemId.partId());
+    return part == null ? 0.0 : part.weightGrams_ * count;
+  }
+
+  static void checkExportable(ItemId itemId) {
+    if (!isExportableId(itemId.partId())) {
+      throw new AssertionError("Invalid part id to export: " + itemId);
+    }
+    if (!isExportableId(itemId.colorId())) {
+      throw new AssertionError("Invalid color id to export: " + itemId);
+    }
+  }
+
+  // Same as checking ItemId.idPiecesOrNull() for the "b" namespace, but
+  // without allocating.
+  private static boolean isExportableId(String id) {
+    return id.length() > 2 && id.startsWith("b:") && id.indexOf(':', 2) < 0;
+  }
+}
@@ -28,13 +28,17 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.brickmesh.parts;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import javax.xml.parsers.ParserConfigurationException;
@@ -44,6 +48,7 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.brickmesh.util.LineTokenizer;
 import com.brickmesh.util.Util;
 
 public final class PartLoader {
@@ -52,6 +57,11 @@ public final class PartLoader {
       Options options = new Options();
       options.maxUniqueQty_ = 1000;
       options.maxTotalQty_ = 500000;
+      options.maxCompressedBytes_ = 16L * 1024 * 1024;
+      options.maxUncompressedBytes_ = 64L * 1024 * 1024;
+      options.maxEntries_ = 16;
+      options.maxElementDepth_ = 32;
+      options.maxParseMillis_ = 10000;
       return options;
     }
 
@@ -59,11 +69,47 @@ public final class PartLoader {
       Options options = new Options();
       options.maxUniqueQty_ = Integer.MAX_VALUE;
       options.maxTotalQty_ = Integer.MAX_VALUE;
+      options.maxCompressedBytes_ = Long.MAX_VALUE;
+      options.maxUncompressedBytes_ = Long.MAX_VALUE;
+      options.maxEntries_ = Integer.MAX_VALUE;
+      options.maxElementDepth_ = Integer.MAX_VALUE;
+      options.maxParseMillis_ = Long.MAX_VALUE;
       return options;
     }
 
     public int maxUniqueQty_;
     public int maxTotalQty_;
+
+    // The following limits are enforced while the input is read, before
+    // the items are known. They protect against inputs that are small on
+    // the wire but expensive to parse.
+
+    // Maximum number of compressed bytes read for a single zip entry.
+    public long maxCompressedBytes_;
+
+    // Maximum number of bytes after decompression of a single entry, or
+    // the size of the whole document for uncompressed input.
+    public long maxUncompressedBytes_;
+
+    // Maximum number of zip entries looked at before giving up.
+    public int maxEntries_;
+
+    // Maximum nesting depth of XML elements.
+    public int maxElementDepth_;
+
+    // Wall-clock budget for a single parse() call.
+    public long maxParseMillis_;
+  }
+
+  // The limit that caused a LoaderException.
+  public enum Limit {
+    UNIQUE_ITEMS,
+    TOTAL_ITEMS,
+    COMPRESSED_BYTES,
+    UNCOMPRESSED_BYTES,
+    ENTRIES,
+    ELEMENT_DEPTH,
+    PARSE_TIME,
   }
 
   public static final class Result {
@@ -84,7 +130,33 @@ public final class PartLoader {
   // Thrown when the input is a valid LDD file, but there is
   // something else wrong (for example some limit has been exceeded).
   public class LoaderException extends SAXException {
-    public LoaderException(String s) { super(s); }
+    public LoaderException(String s) {
+      super(s);
+      limit_ = null;
+    }
+
+    public LoaderException(Limit limit, String s) {
+      super(s);
+      limit_ = limit;
+    }
+
+    // The limit that was exceeded or null if the cause is something else.
+    public Limit limitOrNull() {
+      return limit_;
+    }
+
+    private final Limit limit_;
+  }
+
+  // Carries a LoaderException through InputStream.read(), which can
+  // only throw IOException. It is unwrapped again in parse().
+  private static final class LimitExceededException extends IOException {
+    public LimitExceededException(LoaderException cause) {
+      super(cause);
+      loaderException_ = cause;
+    }
+
+    public final LoaderException loaderException_;
   }
 
   public PartLoader() {
@@ -103,6 +175,23 @@ public final class PartLoader {
     return new WantedLoader(partModel_, options);
   }
 
+  public LDrawLoader createLDrawLoader(Options options) {
+    return new LDrawLoader(partModel_, options);
+  }
+
+  // Runs the loader asynchronously on the executor while the input arrives
+  // in chunks. See ProgressiveLoader.
+  public ProgressiveLoader createProgressiveLoader(LoaderBase loader, Executor executor) {
+    return new ProgressiveLoader(partModel_, loader, executor);
+  }
+
+  // Notified for every item that a loader reads, before the next one is
+  // read. Called on the thread that runs parse().
+  public interface ItemListener {
+    void itemAdded(String namespace, String partId, List<String> colorIds,
+        int count, boolean known);
+  }
+
   public abstract class LoaderBase {
     public LoaderBase(PartModel partModel, Options options) {
       options_ = options;
@@ -120,18 +209,115 @@ public final class PartLoader {
     protected final void addItem(String partId, List<String> colorIds, int count)
         throws LoaderException {
       if (result_.items_.numUniqueItems() > options_.maxUniqueQty_) {
-        throw new LoaderException(String.format(
+        throw new LoaderException(Limit.UNIQUE_ITEMS, String.format(
             "Too many unique parts in model (limit=%d)", options_.maxUniqueQty_));
       }
       if (result_.items_.numTotalItems() > options_.maxTotalQty_) {
-        throw new LoaderException(String.format(
+        throw new LoaderException(Limit.TOTAL_ITEMS, String.format(
             "Too many total parts in model (limit=%d)", options_.maxTotalQty_));
       }
-      result_.items_.addItem(idNamespace(), partId, colorIds, count, result_.unknownItems_);
+      boolean known = result_.items_.addItem(
+          idNamespace(), partId, colorIds, count, result_.unknownItems_);
+      if (itemListener_ != null) {
+        itemListener_.itemAdded(idNamespace(), partId, colorIds, count, known);
+      }
+    }
+
+    public final void setItemListener(ItemListener itemListener) {
+      itemListener_ = itemListener;
+    }
+
+    // Starts the wall-clock budget. Called at the start of parse().
+    protected final void startParse() {
+      startNanos_ = System.nanoTime();
+      elementDepth_ = 0;
+    }
+
+    protected final void checkParseTime() throws LoaderException {
+      if (options_.maxParseMillis_ == Long.MAX_VALUE) return;
+      long elapsedMillis = (System.nanoTime() - startNanos_) / 1000000;
+      if (elapsedMillis > options_.maxParseMillis_) {
+        throw new LoaderException(Limit.PARSE_TIME, String.format(
+            "Parsing took too long (limit=%dms)", options_.maxParseMillis_));
+      }
+    }
+
+    // Must be called from startElement() and endElement() respectively.
+    protected final void enterElement() throws LoaderException {
+      if (++elementDepth_ > options_.maxElementDepth_) {
+        throw new LoaderException(Limit.ELEMENT_DEPTH, String.format(
+            "Elements nested too deep (limit=%d)", options_.maxElementDepth_));
+      }
+      checkParseTime();
+    }
+
+    protected final void exitElement() {
+      --elementDepth_;
+    }
+
+    protected final void checkEntries(int numEntries) throws LoaderException {
+      if (numEntries > options_.maxEntries_) {
+        throw new LoaderException(Limit.ENTRIES, String.format(
+            "Too many entries in input (limit=%d)", options_.maxEntries_));
+      }
     }
 
-    private Options options_;
+    // Counts the bytes flowing through the stream and fails as soon as
+    // the count goes over the limit or the parse runs out of time.
+    protected final class GuardedInputStream extends FilterInputStream {
+      public GuardedInputStream(InputStream input, Limit limit, long maxBytes) {
+        super(input);
+        limit_ = limit;
+        maxBytes_ = maxBytes;
+      }
+
+      // Restarts the count, for example at the start of a new zip entry.
+      public void resetCount() {
+        numBytes_ = 0;
+      }
+
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) count(1);
+        return b;
+      }
+
+      public int read(byte[] buf, int offset, int length) throws IOException {
+        int r = super.read(buf, offset, length);
+        if (r > 0) count(r);
+        return r;
+      }
+
+      public long skip(long n) throws IOException {
+        long r = super.skip(n);
+        if (r > 0) count(r);
+        return r;
+      }
+
+      private void count(long n) throws LimitExceededException {
+        numBytes_ += n;
+        try {
+          if (numBytes_ > maxBytes_) {
+            throw new LoaderException(limit_, String.format(
+                "Input too large (limit=%d bytes)", maxBytes_));
+          }
+          checkParseTime();
+        }
+        catch (LoaderException ex) {
+          throw new LimitExceededException(ex);
+        }
+      }
+
+      private final Limit limit_;
+      private final long maxBytes_;
+      private long numBytes_;
+    }
+
+    protected final Options options_;
     protected Result result_;
+    private ItemListener itemListener_;
+    private long startNanos_;
+    private int elementDepth_;
   }
 
   // Loads RequiredParts from Lego Digital Designer files.
@@ -141,25 +327,37 @@ public final class PartLoader {
     }
 
     public void parse(InputStream input) throws IOException, LoaderException {
-      ZipInputStream zis = new ZipInputStream(input);
+      startParse();
+      GuardedInputStream compressed = new GuardedInputStream(
+          input, Limit.COMPRESSED_BYTES, options_.maxCompressedBytes_);
+      ZipInputStream zis = new ZipInputStream(compressed);
       try {
+        int numEntries = 0;
         while (true) {
+          compressed.resetCount();
           ZipEntry zipEntry = zis.getNextEntry();
           if (zipEntry == null) {
             throw new IOException("Did not find LXFML entry in input.");
           }
+          checkEntries(++numEntries);
+          checkEntrySize(zipEntry);
+          GuardedInputStream entryInput = new GuardedInputStream(
+              zis, Limit.UNCOMPRESSED_BYTES, options_.maxUncompressedBytes_);
           if (zipEntry.getName().equals("IMAGE100.PNG") &&
               result_.imageBytes_ == null) {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            Util.copyStream(zis, bos);
+            Util.copyStream(entryInput, bos);
             result_.imageBytes_ = bos.toByteArray();
           }
           if (zipEntry.getName().equals("IMAGE100.LXFML")) {
-            parseXml(zis);
+            parseXml(entryInput);
             return;
           }
         }
       }
+      catch (LimitExceededException ex) {
+        throw ex.loaderException_;
+      }
       finally {
         zis.close();
       }
@@ -169,12 +367,27 @@ public final class PartLoader {
       return "l";
     }
 
+    // Rejects entries early if the zip header already tells that they are
+    // too large. The sizes are often unknown (-1) in which case the limits
+    // are enforced only while reading.
+    private void checkEntrySize(ZipEntry zipEntry) throws LoaderException {
+      if (zipEntry.getCompressedSize() > options_.maxCompressedBytes_) {
+        throw new LoaderException(Limit.COMPRESSED_BYTES, String.format(
+            "Input too large (limit=%d bytes)", options_.maxCompressedBytes_));
+      }
+      if (zipEntry.getSize() > options_.maxUncompressedBytes_) {
+        throw new LoaderException(Limit.UNCOMPRESSED_BYTES, String.format(
+            "Input too large (limit=%d bytes)", options_.maxUncompressedBytes_));
+      }
+    }
+
     private void parseXml(InputStream input) throws IOException, LoaderException {
       try {
         SAXParser parser = parserFactory_.newSAXParser();
     		parser.parse(input, new DefaultHandler() {
     			public void startElement(String uri, String localName, String qName,
               Attributes attributes) throws SAXException {
+            enterElement();
             if (!formatCorrect_) {
               if (qName.equals("LXFML")) {
                 formatCorrect_ = true;
@@ -219,6 +432,7 @@ public final class PartLoader {
 
     			public void endElement(String uri, String localName, String qName)
               throws LoaderException {
+            exitElement();
             if (qName.equals("Brick")) {
               addItem(part_, color_, 1);
               part_ = null;
@@ -257,18 +471,30 @@ public final class PartLoader {
   public class WantedLoader extends LoaderBase {
     public WantedLoader(PartModel partModel, Options options) {
       super(partModel, options);
+      pricesUsd_ = new TreeMap<ItemId, Double>();
+    }
+
+    // The unit prices of the items that have a PRICE or MAXPRICE element,
+    // as in shop inventories. Keyed by BrickLink ids.
+    public TreeMap<ItemId, Double> pricesUsd() {
+      return pricesUsd_;
     }
 
     public void parse(InputStream input) throws LoaderException, IOException {
+      startParse();
       try {
         SAXParser parser = parserFactory_.newSAXParser();
+        input = new GuardedInputStream(
+            input, Limit.UNCOMPRESSED_BYTES, options_.maxUncompressedBytes_);
     		parser.parse(input, new DefaultHandler() {
     			public void startElement(String uri, String localName, String qName,
-              Attributes attributes) {
+              Attributes attributes) throws LoaderException {
+            enterElement();
             if (qName.equals("ITEM")) {
               color_ = "";
               partId_ = "";
               quantity_ = "";
+              price_ = "";
             }
             mode_ = qName;
     			}
@@ -283,10 +509,14 @@ public final class PartLoader {
             if (mode_.equals("MINQTY")) {
               quantity_ = quantity_ + new String(ch, start, length);
             }
+            if (mode_.equals("PRICE") || mode_.equals("MAXPRICE")) {
+              price_ = price_ + new String(ch, start, length);
+            }
           }
 
           public void endElement(String uri, String localName, String qName)
               throws LoaderException {
+            exitElement();
             if (qName.equals("ITEM")) {
               short color = Short.parseShort(color_.trim());
               String partId = partId_.trim();
@@ -294,6 +524,20 @@ public final class PartLoader {
               ArrayList<String> colors = new ArrayList<String>();
               colors.add(Short.toString(color));
               addItem(partId, colors, quantity);
+              String price = price_.trim();
+              if (!price.isEmpty()) {
+                try {
+                  // Wanted lists use -1 for no maximum price.
+                  double priceUsd = Double.parseDouble(price);
+                  if (priceUsd >= 0.0) {
+                    // Not interned, the ids are not validated.
+                    pricesUsd_.put(new ItemId("b:" + partId, "b:" + color), priceUsd);
+                  }
+                }
+                catch (NumberFormatException ex) {
+                  throw new LoaderException("Invalid price: " + price);
+                }
+              }
             }
           }
 
@@ -301,11 +545,15 @@ public final class PartLoader {
           private String color_ = "";
           private String partId_ = "";
           private String quantity_ = "";
+          private String price_ = "";
     		});
       }
       catch (ParserConfigurationException ex) {
         throw new IOException(ex);
       }
+      catch (LimitExceededException ex) {
+        throw ex.loaderException_;
+      }
       catch (LoaderException ex) {
         throw ex;
       }
@@ -317,8 +565,187 @@ public final class PartLoader {
     protected String idNamespace() {
       return "b";
     }
+
+    private final TreeMap<ItemId, Double> pricesUsd_;
+  }
+
+  // Loads RequiredParts from LDraw .ldr and .mpd files.
+  //
+  // Only type 1 lines (sub-file references) are used, the geometry is
+  // ignored. References to sub-models of an MPD file are resolved, everything
+  // else is taken as a part. The counts of each sub-model are computed only
+  // once and then multiplied by the number of times it is placed, so the
+  // time is proportional to the size of the file and not to the number of
+  // bricks in the expanded model.
+  public class LDrawLoader extends LoaderBase {
+    public LDrawLoader(PartModel partModel, Options options) {
+      super(partModel, options);
+    }
+
+    public void parse(InputStream input) throws IOException, LoaderException {
+      startParse();
+      try {
+        readModels(new GuardedInputStream(
+            input, Limit.UNCOMPRESSED_BYTES, options_.maxUncompressedBytes_));
+      }
+      catch (LimitExceededException ex) {
+        throw ex.loaderException_;
+      }
+      if (mainModel_ == null) return;
+
+      HashMap<ItemId, Long> counts = resolve(mainModel_, 0);
+      for (Map.Entry<ItemId, Long> entry : counts.entrySet()) {
+        long count = entry.getValue();
+        if (count > options_.maxTotalQty_ || count > Integer.MAX_VALUE) {
+          throw new LoaderException(Limit.TOTAL_ITEMS, String.format(
+              "Too many total parts in model (limit=%d)", options_.maxTotalQty_));
+        }
+        ArrayList<String> colors = new ArrayList<String>(1);
+        colors.add(entry.getKey().colorId());
+        addItem(entry.getKey().partId(), colors, (int)count);
+      }
+      mainModel_ = null;
+      subModels_.clear();
+    }
+
+    protected String idNamespace() {
+      return "o";
+    }
+
+    // A model or sub-model, as the list of references in it. References
+    // with the same file and color are merged.
+    private final class SubModel {
+      public SubModel(String name) {
+        name_ = name;
+        refs_ = new HashMap<ItemId, Long>();
+      }
+
+      public final String name_;
+
+      // Key is (lower case file name, color), value is the count.
+      public final HashMap<ItemId, Long> refs_;
+
+      // The resolved part counts, computed on first use.
+      public HashMap<ItemId, Long> counts_;
+    }
+
+    private void readModels(InputStream input) throws IOException, LoaderException {
+      LineTokenizer tokenizer = new LineTokenizer(input);
+      SubModel current = null;
+      while (tokenizer.nextLine()) {
+        if (tokenizer.nextTokenEquals("0")) {
+          if (tokenizer.nextTokenEquals("FILE")) {
+            String name = tokenizer.restOfLineOrNull();
+            if (name == null) {
+              throw new IOException(
+                  "Missing file name, line " + tokenizer.lineNumber());
+            }
+            current = new SubModel(name);
+            if (mainModel_ == null) {
+              mainModel_ = current;
+            }
+            subModels_.put(normalizeName(name), current);
+          } else if (tokenizer.nextTokenEquals("NOFILE")) {
+            current = null;
+          }
+        } else if (tokenizer.nextTokenEquals("1")) {
+          String color = tokenizer.nextTokenOrNull();
+          if (!tokenizer.skipTokens(12)) {
+            throw new IOException(
+                "Not enough tokens in reference, line " + tokenizer.lineNumber());
+          }
+          String file = tokenizer.restOfLineOrNull();
+          if (file == null) {
+            throw new IOException(
+                "Missing file in reference, line " + tokenizer.lineNumber());
+          }
+          if (current == null) {
+            if (mainModel_ != null) {
+              // After 0 NOFILE, not part of any model.
+              continue;
+            }
+            // A plain .ldr file without 0 FILE lines.
+            current = new SubModel("");
+            mainModel_ = current;
+          }
+          addCount(current.refs_, new ItemId(normalizeName(file), color), 1);
+        }
+        if ((tokenizer.lineNumber() & 0x3ff) == 0) {
+          checkParseTime();
+        }
+      }
+    }
+
+    // Returns the part counts of the sub-model, keyed by (part id, color).
+    // Color "16" means that the part inherits the color of the reference.
+    private HashMap<ItemId, Long> resolve(SubModel subModel, int depth)
+        throws IOException, LoaderException {
+      if (subModel.counts_ != null) {
+        return subModel.counts_;
+      }
+      if (depth > options_.maxElementDepth_) {
+        throw new LoaderException(Limit.ELEMENT_DEPTH, String.format(
+            "Sub-models nested too deep (limit=%d)", options_.maxElementDepth_));
+      }
+      if (!resolving_.add(subModel)) {
+        throw new IOException("Sub-model references itself: " + subModel.name_);
+      }
+      checkParseTime();
+
+      HashMap<ItemId, Long> counts = new HashMap<ItemId, Long>();
+      for (Map.Entry<ItemId, Long> ref : subModel.refs_.entrySet()) {
+        String file = ref.getKey().partId();
+        String color = ref.getKey().colorId();
+        long count = ref.getValue();
+        SubModel child = subModels_.get(file);
+        if (child == null) {
+          addCount(counts, new ItemId(partIdFromFile(file), color), count);
+          continue;
+        }
+        for (Map.Entry<ItemId, Long> entry : resolve(child, depth + 1).entrySet()) {
+          String childColor = entry.getKey().colorId();
+          ItemId itemId = childColor.equals(INHERIT_COLOR) ?
+              new ItemId(entry.getKey().partId(), color) : entry.getKey();
+          addCount(counts, itemId, multiplyOrFail(count, entry.getValue()));
+        }
+      }
+
+      resolving_.remove(subModel);
+      subModel.counts_ = counts;
+      return counts;
+    }
+
+    private long multiplyOrFail(long a, long b) throws LoaderException {
+      if (b != 0 && a > options_.maxTotalQty_ / b) {
+        throw new LoaderException(Limit.TOTAL_ITEMS, String.format(
+            "Too many total parts in model (limit=%d)", options_.maxTotalQty_));
+      }
+      return a * b;
+    }
+
+    private void addCount(HashMap<ItemId, Long> counts, ItemId itemId, long count) {
+      Long c = counts.get(itemId);
+      counts.put(itemId, c == null ? count : c + count);
+    }
+
+    private String normalizeName(String name) {
+      return name.replace('\\', '/').toLowerCase();
+    }
+
+    // Part files are referenced as "3001.dat", the part id is "3001".
+    private String partIdFromFile(String file) {
+      int start = file.lastIndexOf('/') + 1;
+      int end = file.endsWith(".dat") ? file.length() - 4 : file.length();
+      return file.substring(start, end);
+    }
+
+    private static final String INHERIT_COLOR = "16";
+
+    private SubModel mainModel_;
+    private final HashMap<String, SubModel> subModels_ = new HashMap<String, SubModel>();
+    private final HashSet<SubModel> resolving_ = new HashSet<SubModel>();
   }
 
   private PartModel partModel_;
   private SAXParserFactory parserFactory_ = SAXParserFactory.newInstance();
-}
\ No newline at end of file
+}
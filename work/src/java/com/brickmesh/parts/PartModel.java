@@ -59,6 +59,9 @@ public class PartModel {
     // A human-readable name of the color.
     public String name_;
 
+    // Unique within the model, from 0 to numColors() - 1. ANY_COLOR is 0.
+    public int ordinal_;
+
     public String primaryId() {
       return ids_[0];
     }
@@ -142,6 +145,10 @@ public class PartModel {
     // For composed items, this is usually the sum of their sub-parts.
     public double weightGrams_;
 
+    // Unique within the model, from 0 to numParts() - 1. Can be used to
+    // index precomputed tables.
+    public int ordinal_;
+
     public String primaryId() {
       return ids_[0];
     }
@@ -253,6 +260,22 @@ public class PartModel {
     return partMap_.get(partId);
   }
 
+  public int numColors() {
+    return numColors_;
+  }
+
+  public int numParts() {
+    return numParts_;
+  }
+
+  public Part partByOrdinal(int ordinal) {
+    return parts_.get(ordinal);
+  }
+
+  public Color colorByOrdinal(int ordinal) {
+    return colors_.get(ordinal);
+  }
+
   private static class ErrorCollector {
     public void error(String message) {
       System.err.println("Error: " + message);
@@ -291,6 +314,9 @@ public class PartModel {
       PartModelProto.ColorModel modelProto = builder.build();
 
       colorMap_ = new HashMap<String, Color>(modelProto.getColorCount());
+      numColors_ = 1;  // ANY_COLOR.
+      colors_ = new ArrayList<Color>(modelProto.getColorCount() + 1);
+      colors_.add(ANY_COLOR);
       for (String id : ANY_COLOR.ids_) {
         colorMap_.put(id, ANY_COLOR);
       }
@@ -304,6 +330,8 @@ public class PartModel {
           continue;
         }
         color.name_ = colorProto.getName();
+        color.ordinal_ = numColors_++;
+        colors_.add(color);
         for (String id : color.ids_) {
           if (!isValidColorId(id)) {
             errorCollector.error("Invalid color id: " + id);
@@ -334,6 +362,7 @@ public class PartModel {
       PartModelProto.PartModel modelProto = builder.build();
 
       partMap_ = new HashMap<String, Part>(modelProto.getPartCount());
+      parts_ = new ArrayList<Part>(modelProto.getPartCount());
 
       // Stage 1: load all parts.
       loadPartProto(modelProto);
@@ -378,6 +407,8 @@ public class PartModel {
       }
       part.ids_ = ids.toArray(new String[ids.size()]);
       part.weightGrams_ = partProto.getWeightGrams();
+      part.ordinal_ = numParts_++;
+      parts_.add(part);
     }
     errorCollector.finishStage();
   }
@@ -572,6 +603,7 @@ public class PartModel {
     if (idSpace == null) return false;
     if (idSpace.equals("l")) return true;
     if (idSpace.equals("b")) return true;
+    if (idSpace.equals("o")) return true;
     return false;
   }
 
@@ -597,6 +629,12 @@ public class PartModel {
 
   private HashMap<String, Color> colorMap_;
   private HashMap<String, Part> partMap_;
+  private int numColors_;
+  private ArrayList<Color> colors_;
+  private int numParts_;
+
+  // All the parts, indexed by ordinal.
+  private ArrayList<Part> parts_;
 
   private static PartModel model_;
   private static final HashMap<String, String[]> PART_ID_EXPANSION;
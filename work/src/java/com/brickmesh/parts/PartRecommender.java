@@ -0,0 +1,306 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Recommends parts that can be bought instead of items that cannot be
+// mapped to BrickLink or are not sold there.
+//
+// Substitutes are the parts within a bounded number of steps in the
+// PartModel graph, following similar parts (including those that need
+// confirmation) and parents that contain the part in the same color.
+// The candidates of every part are computed once in the constructor and
+// kept in flat arrays, so a recommendation only checks the availability
+// of a few candidates.
+//
+// Instances are immutable and thread-safe.
+public final class PartRecommender {
+  public static class Recommendation {
+    Recommendation(ItemId itemId, int distance, boolean needsConfirmation,
+        boolean containsPart, long numLots, double priceUsd) {
+      itemId_ = itemId;
+      distance_ = distance;
+      needsConfirmation_ = needsConfirmation;
+      containsPart_ = containsPart;
+      numLots_ = numLots;
+      priceUsd_ = priceUsd;
+    }
+
+    public String toString() {
+      StringBuffer sb = new StringBuffer();
+      sb.append(itemId_);
+      sb.append(",distance=");
+      sb.append(distance_);
+      if (needsConfirmation_) {
+        sb.append(",confirm");
+      }
+      if (containsPart_) {
+        sb.append(",contains");
+      }
+      sb.append(",lots=");
+      sb.append(numLots_);
+      if (!Double.isNaN(priceUsd_)) {
+        sb.append(String.format(",price=%.3f", priceUsd_));
+      }
+      return sb.toString();
+    }
+
+    // The BrickLink item to buy.
+    public final ItemId itemId_;
+
+    // The number of steps from the original part in the PartModel.
+    public final int distance_;
+
+    // Whether the user should confirm the replacement.
+    public final boolean needsConfirmation_;
+
+    // Whether the item is a composite part that contains the original
+    // one, possibly with other parts.
+    public final boolean containsPart_;
+
+    public final long numLots_;
+
+    // NaN if there is no price data.
+    public final double priceUsd_;
+  }
+
+  public PartRecommender(PartModel partModel,
+      RequiredItems.ExportPreferences preferences, int maxDistance) {
+    partModel_ = partModel;
+    preferences_ = preferences;
+    maxDistance = Math.min(maxDistance, DISTANCE_MASK);
+    int numParts = partModel.numParts();
+    candidateStart_ = new int[numParts + 1];
+    int[] candidates = new int[numParts];
+    byte[] flags = new byte[numParts];
+    int numCandidates = 0;
+
+    int[] distances = new int[numParts];
+    byte[] pathFlags = new byte[numParts];
+    Arrays.fill(distances, -1);
+    ArrayDeque<PartModel.Part> queue = new ArrayDeque<PartModel.Part>();
+    ArrayList<PartModel.Part> visited = new ArrayList<PartModel.Part>();
+    for (int ordinal = 0; ordinal < numParts; ++ordinal) {
+      candidateStart_[ordinal] = numCandidates;
+      PartModel.Part start = partModel.partByOrdinal(ordinal);
+      // Without confirmation first, so that those paths win.
+      search(start, false, maxDistance, distances, pathFlags, queue, visited);
+      search(start, true, maxDistance, distances, pathFlags, queue, visited);
+      for (PartModel.Part part : visited) {
+        if (part != start && preferences.isSold(part)) {
+          if (numCandidates == candidates.length) {
+            candidates = Arrays.copyOf(candidates, numCandidates * 2);
+            flags = Arrays.copyOf(flags, numCandidates * 2);
+          }
+          candidates[numCandidates] = part.ordinal_;
+          flags[numCandidates] = (byte)(
+              distances[part.ordinal_] | pathFlags[part.ordinal_]);
+          ++numCandidates;
+        }
+        distances[part.ordinal_] = -1;
+        pathFlags[part.ordinal_] = 0;
+      }
+      visited.clear();
+    }
+    candidateStart_[numParts] = numCandidates;
+    candidates_ = Arrays.copyOf(candidates, numCandidates);
+    flags_ = Arrays.copyOf(flags, numCandidates);
+  }
+
+  // Returns the substitutes that are sold in the color of the item, best
+  // first: no confirmation needed, then cheaper, then more lots, then
+  // closer. Empty if the item is not known or there is nothing to buy.
+  public List<Recommendation> recommend(ItemId itemId, int maxResults) {
+    PartModel.Part part = partModel_.findPartOrNull(itemId.partId());
+    PartModel.Color color = partModel_.findColorOrNull(itemId.colorId());
+    if (part == null || color == null || color.idInNamespace("b") == null) {
+      return Collections.<Recommendation>emptyList();
+    }
+    ArrayList<Recommendation> result = null;
+    AvailableParts availableParts = preferences_.availableParts();
+    for (int i = candidateStart_[part.ordinal_]; i < candidateStart_[part.ordinal_ + 1]; ++i) {
+      PartModel.Part candidate = partModel_.partByOrdinal(candidates_[i]);
+      int index = preferences_.entryIndex(candidate, color);
+      if (index < 0) continue;
+      if (result == null) {
+        result = new ArrayList<Recommendation>();
+      }
+      result.add(new Recommendation(
+          ItemId.of(availableParts.partId(index), availableParts.colorId(index)),
+          flags_[i] & DISTANCE_MASK,
+          (flags_[i] & NEEDS_CONFIRMATION) != 0,
+          (flags_[i] & CONTAINS_PART) != 0,
+          availableParts.numLots(index),
+          availableParts.priceUsd(index, preferences_.condition())));
+    }
+    if (result == null) {
+      return Collections.<Recommendation>emptyList();
+    }
+    Collections.sort(result, RANKING);
+    if (result.size() > maxResults) {
+      return new ArrayList<Recommendation>(result.subList(0, maxResults));
+    }
+    return result;
+  }
+
+  // Recommendations for the unmappable items, only those that have any.
+  public TreeMap<ItemId, List<Recommendation>> recommendForUnmappable(
+      UnknownItems unknownItems, int maxResults) {
+    TreeMap<ItemId, List<Recommendation>> result =
+        new TreeMap<ItemId, List<Recommendation>>();
+    if (unknownItems.unmappableItemsOrNull() != null) {
+      addRecommendations(unknownItems.unmappableItemsOrNull(), maxResults, result);
+    }
+    return result;
+  }
+
+  // Recommendations for the exported items that are not sold.
+  public TreeMap<ItemId, List<Recommendation>> recommendForUnavailable(
+      TreeMap<ItemId, Integer> items, int maxResults) {
+    TreeMap<ItemId, Integer> unavailable = new TreeMap<ItemId, Integer>();
+    AvailableParts availableParts = preferences_.availableParts();
+    for (Map.Entry<ItemId, Integer> entry : items.entrySet()) {
+      if (availableParts.numLots(entry.getKey()) == 0) {
+        unavailable.put(entry.getKey(), entry.getValue());
+      }
+    }
+    TreeMap<ItemId, List<Recommendation>> result =
+        new TreeMap<ItemId, List<Recommendation>>();
+    addRecommendations(unavailable, maxResults, result);
+    return result;
+  }
+
+  private void addRecommendations(TreeMap<ItemId, Integer> items, int maxResults,
+      TreeMap<ItemId, List<Recommendation>> result) {
+    for (ItemId itemId : items.keySet()) {
+      List<Recommendation> recommendations = recommend(itemId, maxResults);
+      if (!recommendations.isEmpty()) {
+        result.put(itemId, recommendations);
+      }
+    }
+  }
+
+  // Breadth-first search from the start part up to maxDistance steps.
+  // Continues from the parts visited already, which are not revisited.
+  private static void search(PartModel.Part start, boolean withConfirm,
+      int maxDistance, int[] distances, byte[] pathFlags,
+      ArrayDeque<PartModel.Part> queue, ArrayList<PartModel.Part> visited) {
+    if (visited.isEmpty()) {
+      distances[start.ordinal_] = 0;
+      visited.add(start);
+    }
+    queue.addAll(visited);
+    while (!queue.isEmpty()) {
+      PartModel.Part part = queue.poll();
+      int distance = distances[part.ordinal_];
+      if (distance >= maxDistance) continue;
+      byte flags = pathFlags[part.ordinal_];
+      if (part.similar_ != null) {
+        for (PartModel.Part next : part.similar_) {
+          // Parts that need confirmation are in both similar_ and confirm_.
+          if (part.confirm_ != null && part.confirm_.contains(next)) {
+            if (withConfirm) {
+              visit(next, distance + 1, (byte)(flags | NEEDS_CONFIRMATION),
+                  distances, pathFlags, queue, visited);
+            }
+          } else {
+            visit(next, distance + 1, flags, distances, pathFlags, queue, visited);
+          }
+        }
+      }
+      if (part.parents_ != null) {
+        for (PartModel.Part next : part.parents_) {
+          // Only parents that come in the color of the part.
+          if (next.childPartColor(part) != null) continue;
+          visit(next, distance + 1, (byte)(flags | CONTAINS_PART),
+              distances, pathFlags, queue, visited);
+        }
+      }
+    }
+  }
+
+  private static void visit(PartModel.Part part, int distance, byte flags,
+      int[] distances, byte[] pathFlags,
+      ArrayDeque<PartModel.Part> queue, ArrayList<PartModel.Part> visited) {
+    if (distances[part.ordinal_] >= 0) return;
+    distances[part.ordinal_] = distance;
+    pathFlags[part.ordinal_] = flags;
+    visited.add(part);
+    queue.add(part);
+  }
+
+  // Items with a price come before the ones without, so that the order
+  // is transitive.
+  static final Comparator<Recommendation> RANKING =
+      new Comparator<Recommendation>() {
+    @Override
+    public int compare(Recommendation r1, Recommendation r2) {
+      if (r1.needsConfirmation_ != r2.needsConfirmation_) {
+        return r1.needsConfirmation_ ? 1 : -1;
+      }
+      boolean hasPrice1 = !Double.isNaN(r1.priceUsd_);
+      boolean hasPrice2 = !Double.isNaN(r2.priceUsd_);
+      if (hasPrice1 != hasPrice2) {
+        return hasPrice1 ? -1 : 1;
+      }
+      if (hasPrice1 && r1.priceUsd_ != r2.priceUsd_) {
+        return Double.compare(r1.priceUsd_, r2.priceUsd_);
+      }
+      if (r1.numLots_ != r2.numLots_) {
+        return Long.compare(r2.numLots_, r1.numLots_);
+      }
+      if (r1.distance_ != r2.distance_) {
+        return r1.distance_ - r2.distance_;
+      }
+      return r1.itemId_.compareTo(r2.itemId_);
+    }
+  };
+
+  // The low bits of the flags are the distance.
+  private static final int DISTANCE_MASK = 0x1f;
+  private static final byte CONTAINS_PART = 0x20;
+  private static final byte NEEDS_CONFIRMATION = 0x40;
+
+  private final PartModel partModel_;
+  private final RequiredItems.ExportPreferences preferences_;
+
+  // The candidates of the part with ordinal i are at indices
+  // candidateStart_[i] to candidateStart_[i + 1] - 1 of candidates_ and
+  // flags_, in the order they were found.
+  private final int[] candidateStart_;
+  private final int[] candidates_;
+  private final byte[] flags_;
+}
@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+// Runs a PartLoader loader while the input is still arriving, for example
+// from an HTTP upload. The caller feeds the input in chunks; the loader
+// parses it on the executor and publishes an Event for every item read.
+//
+// Backpressure works in both directions: if the subscribers fall behind
+// the parser blocks, and if the parser falls behind feed() blocks.
+//
+// Subscribers should subscribe before the first chunk is fed, otherwise
+// they miss the events published before they subscribed.
+public final class ProgressiveLoader implements Flow.Publisher<ProgressiveLoader.Event> {
+  // One item read by the loader, with the running totals after it was added.
+  public static final class Event {
+    public Event(ItemId itemId, int count, boolean known,
+        int numUniqueItems, int numTotalItems, double weightGrams) {
+      itemId_ = itemId;
+      count_ = count;
+      known_ = known;
+      numUniqueItems_ = numUniqueItems;
+      numTotalItems_ = numTotalItems;
+      weightGrams_ = weightGrams;
+    }
+
+    public String toString() {
+      return String.format("%s,count=%d,known=%b,unique=%d,total=%d,weight=%.3f",
+          itemId_, count_, known_, numUniqueItems_, numTotalItems_, weightGrams_);
+    }
+
+    // The namespaced item as it appears in the input.
+    public final ItemId itemId_;
+
+    // The number of these items.
+    public final int count_;
+
+    // False if the part or color is unknown. These are only counted in
+    // the UnknownItems of the result.
+    public final boolean known_;
+
+    // Running totals of the result so far.
+    public final int numUniqueItems_;
+    public final int numTotalItems_;
+    public final double weightGrams_;
+  }
+
+  // Use PartLoader.createProgressiveLoader().
+  ProgressiveLoader(PartModel partModel, PartLoader.LoaderBase loader, Executor executor) {
+    partModel_ = partModel;
+    loader_ = loader;
+    executor_ = executor;
+    chunks_ = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_CHUNKS);
+    publisher_ = new SubmissionPublisher<Event>();
+    result_ = new CompletableFuture<PartLoader.Result>();
+    loader_.setItemListener(new PartLoader.ItemListener() {
+      public void itemAdded(String namespace, String partId, List<String> colorIds,
+          int count, boolean known) {
+        publish(namespace, partId, colorIds, count, known);
+      }
+    });
+  }
+
+  public void subscribe(Flow.Subscriber<? super Event> subscriber) {
+    publisher_.subscribe(subscriber);
+  }
+
+  // Feeds the next chunk of input. The bytes are copied. Blocks while the
+  // parser is behind. Returns false if the parser does not need more input,
+  // because it is done or it has failed; see result() in that case.
+  public boolean feed(byte[] buf, int offset, int length) throws InterruptedException {
+    if (length == 0) return !done_;
+    return put(Arrays.copyOfRange(buf, offset, offset + length));
+  }
+
+  // Signals that there is no more input.
+  public void finish() throws InterruptedException {
+    put(END_OF_INPUT);
+  }
+
+  // Completes with the result of the loader after the input has been
+  // parsed, or exceptionally with the IOException, LoaderException or
+  // whatever else the loader has thrown. The unknown items of a successful
+  // parse are also recorded in UnknownItemsTelemetry.global().
+  public CompletableFuture<PartLoader.Result> result() {
+    return result_;
+  }
+
+  private boolean put(byte[] chunk) throws InterruptedException {
+    startIfNeeded();
+    if (done_) return false;
+    chunks_.put(chunk);
+    return !done_;
+  }
+
+  private synchronized void startIfNeeded() {
+    if (started_) return;
+    started_ = true;
+    executor_.execute(new Runnable() {
+      public void run() {
+        try {
+          loader_.parse(new ChunkInputStream());
+          publisher_.close();
+          UnknownItemsTelemetry.global().record(loader_.getResult().unknownItems_);
+          result_.complete(loader_.getResult());
+        }
+        catch (Throwable ex) {
+          // Errors too, e.g. the AssertionError of malformed input, so that
+          // the result and the subscribers always complete.
+          publisher_.closeExceptionally(ex);
+          result_.completeExceptionally(ex);
+        }
+        finally {
+          // Unblock feed() if it is waiting for space.
+          done_ = true;
+          chunks_.clear();
+        }
+      }
+    });
+  }
+
+  // Called on the parser thread. submit() blocks if any subscriber has
+  // its buffer full.
+  private void publish(String namespace, String partId, List<String> colorIds,
+      int count, boolean known) {
+    ItemId itemId = new ItemId(namespace + ":" + partId, namespace + ":" + colorIds.get(0));
+    if (known) {
+      PartModel.Part part = partModel_.findPartOrNull(itemId.partId());
+      weightGrams_ += part.weightGrams_ * count;
+    }
+    RequiredItems items = loader_.getResult().items_;
+    publisher_.submit(new Event(itemId, count, known,
+        items.numUniqueItems(), items.numTotalItems(), weightGrams_));
+  }
+
+  // Reads the queued chunks on the parser thread.
+  private final class ChunkInputStream extends InputStream {
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int r = read(b, 0, 1);
+      return r < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] buf, int offset, int length) throws IOException {
+      if (length == 0) return 0;
+      if (chunk_ == END_OF_INPUT) return -1;
+      while (chunk_ == null || pos_ >= chunk_.length) {
+        try {
+          chunk_ = chunks_.take();
+        }
+        catch (InterruptedException ex) {
+          throw new InterruptedIOException("Interrupted while waiting for input.");
+        }
+        pos_ = 0;
+        if (chunk_ == END_OF_INPUT) return -1;
+      }
+      int r = Math.min(length, chunk_.length - pos_);
+      System.arraycopy(chunk_, pos_, buf, offset, r);
+      pos_ += r;
+      return r;
+    }
+
+    private byte[] chunk_;
+    private int pos_;
+  }
+
+  private static final int MAX_QUEUED_CHUNKS = 16;
+  private static final byte[] END_OF_INPUT = new byte[0];
+
+  private final PartModel partModel_;
+  private final PartLoader.LoaderBase loader_;
+  private final Executor executor_;
+  private final BlockingQueue<byte[]> chunks_;
+  private final SubmissionPublisher<Event> publisher_;
+  private final CompletableFuture<PartLoader.Result> result_;
+  private boolean started_;
+  private volatile boolean done_;
+
+  // Only accessed on the parser thread.
+  private double weightGrams_;
+}
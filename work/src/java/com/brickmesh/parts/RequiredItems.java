@@ -27,6 +27,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.parts;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -98,7 +99,7 @@ public class RequiredItems {
 
     // The itemId is build from the part id and the color id.
     public ItemId itemId() {
-      return new ItemId(part_.primaryId(), color_.primaryId());
+      return ItemId.of(part_.primaryId(), color_.primaryId());
     }
 
     // Original ids from the request with the number of elements requested.
@@ -132,6 +133,21 @@ public class RequiredItems {
   public boolean addItem(
       String namespace, String partId, List<String> colorIds, int count,
       UnknownItems unknownItems) {
+    return changeItem(namespace, partId, colorIds, count, unknownItems);
+  }
+
+  // The opposite of addItem(): removes count items, decomposed the same way.
+  // Items that are not present are ignored. Returns false if the part or
+  // the color is unknown.
+  public boolean removeItem(
+      String namespace, String partId, List<String> colorIds, int count) {
+    return changeItem(namespace, partId, colorIds, -count, null);
+  }
+
+  // Adds items if count is positive, removes them if negative.
+  private boolean changeItem(
+      String namespace, String partId, List<String> colorIds, int count,
+      UnknownItems unknownItems) {
     if (colorIds.size() < 1) return false;
 
     String nsPartId = namespace + ":" + partId;
@@ -159,14 +175,15 @@ public class RequiredItems {
       colors[i] = c;
     }
 
-    // Add the item to the list of items.
-    ItemId itemId = new ItemId(nsPartId, nsColorId);
+    // Add the item to the list of items. Only known ids are interned.
     if (part == null || color == null) {
+      ItemId itemId = new ItemId(nsPartId, nsColorId);
       if (unknownItems != null) {
         unknownItems.addUnknownItem(itemId, part != null, color != null, count);
       }
       return false;
     }
+    ItemId itemId = ItemId.of(nsPartId, nsColorId);
 
     addDecomposedItem(part, color, colors, count, itemId, count);
     return true;
@@ -197,15 +214,457 @@ public class RequiredItems {
     return result;
   }
 
+  // Returns the estimated cost of buying the items on BrickLink, based
+  // on the average prices of the default AvailableParts.
+  public CostEstimate costEstimateUsd(AvailableParts.Condition condition) {
+    return costEstimateUsd(defaultPrices(partModel_, condition), null);
+  }
+
+  // Same as above with explicit prices. Parts that cannot be mapped to
+  // BrickLink ids are added to unknownItems, like with exportToNamespace().
+  // This maps the prices to the part model first, use the one below to
+  // estimate more than once.
+  public CostEstimate costEstimateUsd(AvailableParts availableParts,
+      AvailableParts.Condition condition, UnknownItems unknownItems) {
+    return costEstimateUsd(
+        new ExportPreferences(partModel_, availableParts, condition), unknownItems);
+  }
+
+  // Same as above with the prices and condition of the preferences. The
+  // lines are the same as exportToNamespace("b", unknownItems) returns,
+  // the preferences do not change them.
+  public CostEstimate costEstimateUsd(ExportPreferences prices,
+      UnknownItems unknownItems) {
+    TreeMap<ItemId, Item> exportedItems = new TreeMap<ItemId, Item>();
+    PartComposer composer = new PartComposer(items_, null);
+    composer.exportToNamespace("b", unknownItems, exportedItems);
+    return new CostEstimate(prices, exportedItems);
+  }
+
+  // The default prices mapped to the part model, once per condition.
+  private static synchronized ExportPreferences defaultPrices(
+      PartModel partModel, AvailableParts.Condition condition) {
+    if (defaultPricesModel_ != partModel) {
+      defaultPricesModel_ = partModel;
+      defaultPrices_ = new ExportPreferences[AvailableParts.Condition.values().length];
+    }
+    ExportPreferences prices = defaultPrices_[condition.ordinal()];
+    if (prices == null) {
+      prices = new ExportPreferences(partModel, AvailableParts.getDefault(), condition);
+      defaultPrices_[condition.ordinal()] = prices;
+    }
+    return prices;
+  }
+
+  // The cost of a list of BrickLink items, with the cost of each line.
+  public static class CostEstimate {
+    // The items are the result of exportToNamespace("b", ...). This looks
+    // up each line by its ids, prefer costEstimateUsd() if the parts are
+    // known.
+    public CostEstimate(AvailableParts availableParts,
+        AvailableParts.Condition condition, TreeMap<ItemId, Integer> items) {
+      int numLines = items.size();
+      itemIds_ = new ItemId[numLines];
+      counts_ = new int[numLines];
+      lineCostUsd_ = new double[numLines];
+      int line = 0;
+      for (Map.Entry<ItemId, Integer> entry : items.entrySet()) {
+        itemIds_[line] = entry.getKey();
+        counts_[line] = entry.getValue();
+        lineCostUsd_[line] = lineCostUsd(availableParts,
+            availableParts.entryIndex(entry.getKey()), condition, counts_[line]);
+        ++line;
+      }
+      totalUsd_ = totalUsd(lineCostUsd_);
+      numLinesWithoutPrice_ = numLinesWithoutPrice(lineCostUsd_);
+    }
+
+    // The lines with their parts and colors, which are mapped to the
+    // prices through the ordinal tables of the preferences.
+    CostEstimate(ExportPreferences prices, TreeMap<ItemId, Item> items) {
+      int numLines = items.size();
+      itemIds_ = new ItemId[numLines];
+      counts_ = new int[numLines];
+      lineCostUsd_ = new double[numLines];
+      int line = 0;
+      for (Map.Entry<ItemId, Item> entry : items.entrySet()) {
+        Item item = entry.getValue();
+        itemIds_[line] = entry.getKey();
+        counts_[line] = item.count_;
+        lineCostUsd_[line] = lineCostUsd(prices.availableParts(),
+            prices.entryIndex(item.part_, item.color_), prices.condition(),
+            item.count_);
+        ++line;
+      }
+      totalUsd_ = totalUsd(lineCostUsd_);
+      numLinesWithoutPrice_ = numLinesWithoutPrice(lineCostUsd_);
+    }
+
+    public boolean hasPriceForAllLines() {
+      return numLinesWithoutPrice_ == 0;
+    }
+
+    // NaN if the entry is not available or has no price.
+    private static double lineCostUsd(AvailableParts availableParts,
+        int entryIndex, AvailableParts.Condition condition, int count) {
+      if (entryIndex < 0) return Double.NaN;
+      return availableParts.priceUsd(entryIndex, condition) * count;
+    }
+
+    private static double totalUsd(double[] lineCostUsd) {
+      double totalUsd = 0.0;
+      for (double cost : lineCostUsd) {
+        if (!Double.isNaN(cost)) totalUsd += cost;
+      }
+      return totalUsd;
+    }
+
+    private static int numLinesWithoutPrice(double[] lineCostUsd) {
+      int result = 0;
+      for (double cost : lineCostUsd) {
+        if (Double.isNaN(cost)) ++result;
+      }
+      return result;
+    }
+
+    // The lines that are not included in the total because there is no
+    // price data for them, with their counts.
+    public TreeMap<ItemId, Integer> itemsWithoutPrice() {
+      TreeMap<ItemId, Integer> result = new TreeMap<ItemId, Integer>();
+      for (int i = 0; i < itemIds_.length; ++i) {
+        if (Double.isNaN(lineCostUsd_[i])) {
+          result.put(itemIds_[i], counts_[i]);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      StringBuffer sb = new StringBuffer();
+      sb.append(String.format("CostEstimate(total=%.2f", totalUsd_));
+      if (numLinesWithoutPrice_ > 0) {
+        sb.append(",withoutPrice=");
+        sb.append(numLinesWithoutPrice_);
+      }
+      sb.append(")");
+      return sb.toString();
+    }
+
+    // The sum of the lines with a price.
+    public final double totalUsd_;
+
+    // The number of lines without price data.
+    public final int numLinesWithoutPrice_;
+
+    // The lines in the order of the items. The cost of a line is NaN if
+    // there is no price data for it.
+    public final ItemId[] itemIds_;
+    public final int[] counts_;
+    public final double[] lineCostUsd_;
+  }
+
   // Exports an ordered list of items in the namespace. This composes
   // the items again at the level appropriate in the destination namespace.
   // Parts that cannot be mapped to the namespace are added to unknownItems.
   public TreeMap<ItemId, Integer> exportToNamespace(String namespace,
       UnknownItems unknownItems) {
-    PartComposer composer = new PartComposer(items_);
+    PartComposer composer = new PartComposer(items_, null);
     return composer.exportToNamespace(namespace, unknownItems);
   }
 
+  // Same as above, but when exporting to BrickLink it prefers items that
+  // are actually sold there, with more lots or a lower price. Parts that
+  // are not sold in the color may be replaced by a similar part that is.
+  public TreeMap<ItemId, Integer> exportToNamespace(String namespace,
+      UnknownItems unknownItems, ExportPreferences preferences) {
+    if (!"b".equals(namespace)) {
+      preferences = null;
+    }
+    PartComposer composer = new PartComposer(items_, preferences);
+    return composer.exportToNamespace(namespace, unknownItems);
+  }
+
+  // Availability and prices for exportToNamespace(), mapped to the parts
+  // and colors of a PartModel in advance. Create it once and reuse it.
+  public static class ExportPreferences {
+    public ExportPreferences(PartModel partModel, AvailableParts availableParts,
+        AvailableParts.Condition condition) {
+      availableParts_ = availableParts;
+      condition_ = condition;
+      partOrdinals_ = new int[partModel.numParts()];
+      Arrays.fill(partOrdinals_, -1);
+      for (int i = 0; i < availableParts.numPartOrdinals(); ++i) {
+        PartModel.Part part = partModel.findPartOrNull(availableParts.partIdForOrdinal(i));
+        if (part != null) {
+          partOrdinals_[part.ordinal_] = i;
+        }
+      }
+      colorOrdinals_ = new int[partModel.numColors()];
+      Arrays.fill(colorOrdinals_, -1);
+      for (int i = 0; i < availableParts.numColorOrdinals(); ++i) {
+        PartModel.Color color = partModel.findColorOrNull(availableParts.colorIdForOrdinal(i));
+        if (color != null) {
+          colorOrdinals_[color.ordinal_] = i;
+        }
+      }
+    }
+
+    // Returns the AvailableParts entry of the part in the color, -1 if
+    // it is not sold.
+    int entryIndex(PartModel.Part part, PartModel.Color color) {
+      if (part.ordinal_ >= partOrdinals_.length || color.ordinal_ >= colorOrdinals_.length) {
+        return -1;
+      }
+      return availableParts_.entryIndex(
+          partOrdinals_[part.ordinal_], colorOrdinals_[color.ordinal_]);
+    }
+
+    // Whether the part is sold in any color.
+    boolean isSold(PartModel.Part part) {
+      return part.ordinal_ < partOrdinals_.length && partOrdinals_[part.ordinal_] >= 0;
+    }
+
+    AvailableParts availableParts() {
+      return availableParts_;
+    }
+
+    AvailableParts.Condition condition() {
+      return condition_;
+    }
+
+    // Returns the part to buy instead of the given one: the part itself
+    // if it is sold in the color, otherwise the best similar part that is
+    // sold. null if none of them is sold.
+    PartModel.Part exportPartOrNull(PartModel.Part part, PartModel.Color color) {
+      if (entryIndex(part, color) >= 0) {
+        return part;
+      }
+      PartModel.Part bestPart = null;
+      int bestIndex = -1;
+      if (part.similar_ != null) {
+        for (PartModel.Part similarPart : part.similar_) {
+          // Similar parts that need confirmation are not replaced silently.
+          if (part.confirm_ != null && part.confirm_.contains(similarPart)) continue;
+          int index = entryIndex(similarPart, color);
+          if (index >= 0 && (bestIndex < 0 || compareEntries(index, bestIndex) > 0)) {
+            bestPart = similarPart;
+            bestIndex = index;
+          }
+        }
+      }
+      return bestPart;
+    }
+
+    // Positive if entry1 is preferred over entry2: one with a price over
+    // one without, then the cheaper, then the one with more lots.
+    int compareEntries(int entry1, int entry2) {
+      double price1 = availableParts_.priceUsd(entry1, condition_);
+      double price2 = availableParts_.priceUsd(entry2, condition_);
+      boolean hasPrice1 = !Double.isNaN(price1);
+      boolean hasPrice2 = !Double.isNaN(price2);
+      if (hasPrice1 != hasPrice2) {
+        return hasPrice1 ? 1 : -1;
+      }
+      if (hasPrice1 && price1 != price2) {
+        return price1 < price2 ? 1 : -1;
+      }
+      return Long.compare(availableParts_.numLots(entry1), availableParts_.numLots(entry2));
+    }
+
+    private final AvailableParts availableParts_;
+    private final AvailableParts.Condition condition_;
+
+    // AvailableParts ordinals indexed by the PartModel ordinals, -1 if
+    // the part or color is not in AvailableParts.
+    private final int[] partOrdinals_;
+    private final int[] colorOrdinals_;
+  }
+
+  // A change of the items, used by ExportSession. A negative count
+  // removes items.
+  public static class Delta {
+    public Delta(String partId, String colorId, int count) {
+      partId_ = partId;
+      colorIds_ = Arrays.asList(colorId);
+      count_ = count;
+    }
+
+    public Delta(String partId, List<String> colorIds, int count) {
+      partId_ = partId;
+      colorIds_ = colorIds;
+      count_ = count;
+    }
+
+    public final String partId_;
+    public final List<String> colorIds_;
+    public final int count_;
+  }
+
+  // Starts an incremental export to the namespace. The returned session
+  // owns the items from then on: changes must go through applyDeltas().
+  public ExportSession startExportSession(String namespace) {
+    return new ExportSession(namespace);
+  }
+
+  // Keeps the result of exportToNamespace() up to date while the items
+  // change, for example while the user edits a model.
+  //
+  // The composer can only combine parts that are connected by parent/child
+  // relationships, so the items are split into such connected groups and
+  // each group is exported on its own. A delta re-exports only the groups
+  // it touches, so the cost depends on the size of the change and not on
+  // the size of the model.
+  public class ExportSession {
+    private ExportSession(String namespace) {
+      namespace_ = namespace;
+      exported_ = new TreeMap<ItemId, Integer>();
+      groupOfPart_ = new HashMap<PartModel.Part, Group>();
+      HashSet<Group> groups = new HashSet<Group>();
+      for (Map.Entry<ItemId, Item> entry : items_.entrySet()) {
+        Group group = groupOf(entry.getValue().part_);
+        group.itemIds_.add(entry.getKey());
+        groups.add(group);
+      }
+      for (Group group : groups) {
+        exportGroup(group, null);
+      }
+    }
+
+    // The full export, same as exportToNamespace() would return. Do not modify.
+    public TreeMap<ItemId, Integer> exportedItems() {
+      return exported_;
+    }
+
+    // Items that cannot be mapped to the namespace, merged from all groups.
+    public UnknownItems unmappableItems() {
+      UnknownItems result = new UnknownItems();
+      for (Group group : groupsWithUnmappable_) {
+        for (Map.Entry<ItemId, Integer> entry :
+            group.unknownItems_.unmappableItemsOrNull().entrySet()) {
+          result.addUnmappableItem(entry.getKey(), entry.getValue());
+        }
+      }
+      return result;
+    }
+
+    // Applies the deltas for items in the namespace ('l' for LEGO etc.) and
+    // returns only the exported lines that changed, with their new count.
+    // Lines that disappeared have a count of 0. Unknown parts and colors
+    // are added to unknownItems, like in addItem(). Deltas with a count of
+    // 0 are ignored.
+    public TreeMap<ItemId, Integer> applyDeltas(
+        String namespace, List<Delta> deltas, UnknownItems unknownItems) {
+      changedItems_ = new HashSet<ItemId>();
+      try {
+        for (Delta delta : deltas) {
+          if (delta.count_ > 0) {
+            addItem(namespace, delta.partId_, delta.colorIds_, delta.count_, unknownItems);
+          } else if (delta.count_ < 0) {
+            removeItem(namespace, delta.partId_, delta.colorIds_, -delta.count_);
+          }
+        }
+
+        HashSet<Group> changedGroups = new HashSet<Group>();
+        for (ItemId itemId : changedItems_) {
+          Group group = groupOf(partModel_.findPartOrNull(itemId.partId()));
+          if (items_.containsKey(itemId)) {
+            group.itemIds_.add(itemId);
+          } else {
+            group.itemIds_.remove(itemId);
+          }
+          changedGroups.add(group);
+        }
+
+        TreeMap<ItemId, Integer> changedLines = new TreeMap<ItemId, Integer>();
+        for (Group group : changedGroups) {
+          exportGroup(group, changedLines);
+        }
+        return changedLines;
+      }
+      finally {
+        changedItems_ = null;
+      }
+    }
+
+    // Parts that are connected through parent/child relationships. The
+    // exported items of different groups never overlap.
+    private final class Group {
+      // The decomposed items currently in items_ that belong here.
+      public final HashSet<ItemId> itemIds_ = new HashSet<ItemId>();
+
+      // The last export of this group.
+      public TreeMap<ItemId, Integer> exported_ = new TreeMap<ItemId, Integer>();
+      public UnknownItems unknownItems_ = new UnknownItems();
+    }
+
+    // Returns the group of the part, discovering the whole group on first use.
+    private Group groupOf(PartModel.Part part) {
+      Group group = groupOfPart_.get(part);
+      if (group != null) {
+        return group;
+      }
+      group = new Group();
+      ArrayDeque<PartModel.Part> queue = new ArrayDeque<PartModel.Part>();
+      groupOfPart_.put(part, group);
+      queue.add(part);
+      while (!queue.isEmpty()) {
+        PartModel.Part p = queue.poll();
+        if (p.items_ != null) {
+          for (PartModel.Item child : p.items_) {
+            if (groupOfPart_.put(child.part_, group) == null) {
+              queue.add(child.part_);
+            }
+          }
+        }
+        if (p.parents_ != null) {
+          for (PartModel.Part parent : p.parents_) {
+            if (groupOfPart_.put(parent, group) == null) {
+              queue.add(parent);
+            }
+          }
+        }
+      }
+      return group;
+    }
+
+    // Re-exports the group and records the lines that changed.
+    private void exportGroup(Group group, TreeMap<ItemId, Integer> changedLines) {
+      HashMap<ItemId, Item> groupItems = new HashMap<ItemId, Item>(group.itemIds_.size());
+      for (ItemId itemId : group.itemIds_) {
+        groupItems.put(itemId, items_.get(itemId));
+      }
+      UnknownItems unknownItems = new UnknownItems();
+      TreeMap<ItemId, Integer> exported =
+          new PartComposer(groupItems, null).exportToNamespace(namespace_, unknownItems);
+
+      for (Map.Entry<ItemId, Integer> entry : group.exported_.entrySet()) {
+        if (!exported.containsKey(entry.getKey())) {
+          exported_.remove(entry.getKey());
+          if (changedLines != null) changedLines.put(entry.getKey(), 0);
+        }
+      }
+      for (Map.Entry<ItemId, Integer> entry : exported.entrySet()) {
+        Integer previous = exported_.put(entry.getKey(), entry.getValue());
+        if (changedLines != null && !entry.getValue().equals(previous)) {
+          changedLines.put(entry.getKey(), entry.getValue());
+        }
+      }
+      group.exported_ = exported;
+      group.unknownItems_ = unknownItems;
+      if (unknownItems.unmappableItemsOrNull() != null) {
+        groupsWithUnmappable_.add(group);
+      } else {
+        groupsWithUnmappable_.remove(group);
+      }
+    }
+
+    private final String namespace_;
+    private final TreeMap<ItemId, Integer> exported_;
+    private final HashMap<PartModel.Part, Group> groupOfPart_;
+    private final HashSet<Group> groupsWithUnmappable_ = new HashSet<Group>();
+  }
+
   // Returns a clone of self with all applicable matches removed.
   public RequiredItems minusMatches(Map<ItemId, Integer> matchingItemCounts) {
     RequiredItems clone = this.deepClone();
@@ -270,7 +729,7 @@ public class RequiredItems {
           // Parent color not found, skip silently.
           continue;
         }
-        ItemId childId = new ItemId(child.part_.primaryId(), childColor.primaryId());
+        ItemId childId = ItemId.of(child.part_.primaryId(), childColor.primaryId());
         int childMatchCount = removeMatch(childId, count * child.count_, alreadyConsidered);
         allChildMatchCount = Math.max(allChildMatchCount,
             (childMatchCount + child.count_ - 1) / child.count_);
@@ -278,14 +737,16 @@ public class RequiredItems {
       matchedCount += allChildMatchCount;
     }
 
-    // Removing similar items.
-    if (part.similar_ != null) {
+    // Removing similar items. Nothing matches a color that is not in the
+    // model, and such ids are not interned.
+    if (part.similar_ != null &&
+        partModel_.findColorOrNull(itemId.colorId()) != null) {
       for (PartModel.Part similar : part.similar_) {
         if (matchedCount >= count) {
           // No more parts available, bail out.
           break;
         }
-        ItemId similarId = new ItemId(similar.primaryId(), itemId.colorId());
+        ItemId similarId = ItemId.of(similar.primaryId(), itemId.colorId());
         matchedCount += removeMatch(similarId, count - matchedCount, alreadyConsidered);
       }
     }
@@ -314,7 +775,7 @@ public class RequiredItems {
         if (partId == null || colorId == null) {
           continue;
         }
-        result.add(new ItemId(partId, colorId));
+        result.add(ItemId.of(partId, colorId));
       }
     }
     return result;
@@ -401,7 +862,8 @@ public class RequiredItems {
 
   // This class maps items to a namespace and finds the best composition.
   private static class PartComposer {
-    public PartComposer(Map<ItemId, Item> allItems) {
+    public PartComposer(Map<ItemId, Item> allItems, ExportPreferences preferences) {
+      preferences_ = preferences;
       // Populate the perPartMap_.
       perPartMap_ = new HashMap<String, HashMap<String, Item>>(allItems.size());
       for (Item item : allItems.values()) {
@@ -426,6 +888,14 @@ public class RequiredItems {
     // The parts that cannot be mapped are added to UnknownItems.
     public TreeMap<ItemId, Integer> exportToNamespace(
         String namespace, UnknownItems unknownItems) {
+      return exportToNamespace(namespace, unknownItems, null);
+    }
+
+    // Same as above. If exportedItems is not null, it receives the part,
+    // color and count of each exported line as well.
+    public TreeMap<ItemId, Integer> exportToNamespace(
+        String namespace, UnknownItems unknownItems,
+        TreeMap<ItemId, Item> exportedItems) {
       TreeMap<ItemId, Integer> result = new TreeMap<ItemId, Integer>();
       if (unknownItems != null) {
         unknownItems.clearUnmappableItems();
@@ -450,12 +920,30 @@ public class RequiredItems {
 
         // There is a best item, add it to the result.
         ItemId bestItemId = bestItem.itemId();
+        PartModel.Part bestPart = bestItem.part_;
+        if (preferences_ != null) {
+          PartModel.Part exportPart =
+              preferences_.exportPartOrNull(bestItem.part_, bestItem.color_);
+          if (exportPart != null && exportPart != bestItem.part_) {
+            bestItemId = ItemId.of(exportPart.primaryId(), bestItem.color_.primaryId());
+            bestPart = exportPart;
+          }
+        }
         Integer count = result.get(bestItemId);
         if (count == null) {
           result.put(bestItemId, bestItem.count_);
         } else {
           result.put(bestItemId, count + bestItem.count_);
         }
+        if (exportedItems != null) {
+          Item exportedItem = exportedItems.get(bestItemId);
+          if (exportedItem == null) {
+            exportedItems.put(bestItemId,
+                new Item(bestPart, bestItem.color_, bestItem.count_));
+          } else {
+            exportedItem.count_ += bestItem.count_;
+          }
+        }
         removeItems(bestItem);
       }
       return result;
@@ -475,7 +963,7 @@ public class RequiredItems {
             Item parentItem = bestItemForChild(parent, color, namespace);
             if (parentItem != null) {
               int parentCount = parentItem.part_.numPartsInHierarchy() * parentItem.count_;
-              if (bestItem == null || parentCount > bestParentCount) {
+              if (isBetterItem(parentItem, parentCount, bestItem, bestParentCount)) {
                 bestItem = parentItem;
                 bestParentCount = parentCount;
               }
@@ -494,7 +982,7 @@ public class RequiredItems {
               Item parentItem = bestItemForChild(parent, otherColor, namespace);
               if (parentItem != null) {
                 int parentCount = parentItem.part_.numPartsInHierarchy() * parentItem.count_;
-                if (bestItem == null || parentCount > bestParentCount) {
+                if (isBetterItem(parentItem, parentCount, bestItem, bestParentCount)) {
                   bestItem = parentItem;
                   bestParentCount = parentCount;
                 }
@@ -503,18 +991,59 @@ public class RequiredItems {
           }
         }
       }
-      if (bestItem != null) {
+      if (bestItem != null && (preferences_ == null || isAvailable(bestItem))) {
         return bestItem;
       }
 
-      if (part.idInNamespace(namespace) != null) {
+      // With preferences, a part that is sold beats a composition that is
+      // not. Parts without an id in the namespace may use a similar part.
+      boolean exportable = part.idInNamespace(namespace) != null;
+      if (!exportable && preferences_ != null) {
+        PartModel.Part exportPart = preferences_.exportPartOrNull(part, color);
+        exportable = exportPart != null && exportPart.idInNamespace(namespace) != null;
+      }
+      if (exportable) {
         int count = maxCountForParent(part, color);
         if (count > 0) {
           Item item = new Item(part, color, count);
-          return item;
+          if (bestItem == null || isAvailable(item)) {
+            return item;
+          }
         }
       }
-      return null;
+      return bestItem;
+    }
+
+    // Whether the candidate is better than the best item so far. Without
+    // preferences, the one that composes more parts wins.
+    private boolean isBetterItem(
+        Item candidate, int candidateCount, Item bestItem, int bestCount) {
+      if (bestItem == null) {
+        return true;
+      }
+      if (preferences_ == null) {
+        return candidateCount > bestCount;
+      }
+      int candidateIndex = entryIndex(candidate);
+      int bestIndex = entryIndex(bestItem);
+      if ((candidateIndex >= 0) != (bestIndex >= 0)) {
+        return candidateIndex >= 0;
+      }
+      if (candidateCount != bestCount) {
+        return candidateCount > bestCount;
+      }
+      return candidateIndex >= 0 &&
+          preferences_.compareEntries(candidateIndex, bestIndex) > 0;
+    }
+
+    private boolean isAvailable(Item item) {
+      return entryIndex(item) >= 0;
+    }
+
+    // The AvailableParts entry of the item or of its replacement.
+    private int entryIndex(Item item) {
+      PartModel.Part exportPart = preferences_.exportPartOrNull(item.part_, item.color_);
+      return exportPart == null ? -1 : preferences_.entryIndex(exportPart, item.color_);
     }
 
     // For a particular item, computes the maximum number of items that
@@ -591,6 +1120,9 @@ public class RequiredItems {
 
     // The map of all parts, keyed by part id and each sub-map by color id.
     private HashMap<String, HashMap<String, Item>> perPartMap_;
+
+    // Null unless the export prefers items that are sold.
+    private final ExportPreferences preferences_;
   }
 
   // Decompose the part into its normalized form and add it to the items.
@@ -624,10 +1156,15 @@ public class RequiredItems {
     }
   }
 
-  // Adds this exact item to the items.
+  // Adds this exact item to the items. A negative count removes items.
   private void addExactItem(
       PartModel.Part part, PartModel.Color color, int count, ItemId originalId,
       int originalCount) {
+    if (count < 0) {
+      removeExactItem(ItemId.of(part.primaryId(), color.primaryId()), -count,
+          originalId, -originalCount);
+      return;
+    }
     Item item = new Item(part, color, count);
     item.originalIds().put(originalId, originalCount);
     ItemId itemId = item.itemId();
@@ -649,12 +1186,47 @@ public class RequiredItems {
       }
     }
     numTotalItems_ += item.count_;
+    if (changedItems_ != null) {
+      changedItems_.add(itemId);
+    }
+  }
+
+  // Removes count items and originalCount of the original id that was
+  // requested, so that unmappable items are reported with the new count.
+  private void removeExactItem(
+      ItemId itemId, int count, ItemId originalId, int originalCount) {
+    Item existingItem = items_.get(itemId);
+    if (existingItem == null) {
+      return;
+    }
+    int removed = Math.min(count, existingItem.count_);
+    existingItem.count_ -= removed;
+    numTotalItems_ -= removed;
+    if (existingItem.count_ == 0) {
+      items_.remove(itemId);
+    } else if (existingItem.originalIdsOrNull() != null) {
+      Integer existingCount = existingItem.originalIds().get(originalId);
+      if (existingCount != null) {
+        if (existingCount > originalCount) {
+          existingItem.originalIds().put(originalId, existingCount - originalCount);
+        } else {
+          existingItem.originalIds().remove(originalId);
+        }
+      }
+    }
+    if (changedItems_ != null) {
+      changedItems_.add(itemId);
+    }
   }
 
   // The items that have been mapped successfully. These items are fully decomposed
   // and the itemId is always the
   private HashMap<ItemId, Item> items_;
 
+  // See defaultPrices().
+  private static PartModel defaultPricesModel_;
+  private static ExportPreferences[] defaultPrices_;
+
   // The total count of items in the map. Since we decompose items into
   // sub-items and re-group by sub-item id, this may be different than
   // the number of addItem() calls.
@@ -662,4 +1234,7 @@ public class RequiredItems {
 
   // The PartModel.
   private PartModel partModel_;
+
+  // Items touched by the current ExportSession.applyDeltas(), otherwise null.
+  private HashSet<ItemId> changedItems_;
 }
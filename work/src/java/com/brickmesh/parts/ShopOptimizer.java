@@ -0,0 +1,399 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Picks a small set of shops that together have the required items:
+// first the fewest shops, then the lowest price.
+//
+// A shop covers items the same way as RequiredItems.minusMatches(), so
+// composite and similar parts are taken into account. greedy() picks the
+// shop that covers the most remaining items until nothing more can be
+// covered. refine() then searches for better solutions with a bounded
+// branch and bound. Both evaluate shops in parallel on the pool.
+//
+// Prices are estimates: a shop's own price if it has one for the item,
+// otherwise the average price from AvailableParts, otherwise zero.
+public final class ShopOptimizer {
+  public static final class Shop {
+    // The items are in the BrickLink namespace.
+    public Shop(PartModel partModel, String name, TreeMap<ItemId, Integer> items,
+        Map<ItemId, Double> pricesUsd) {
+      name_ = name;
+      items_ = items;
+      pricesUsd_ = pricesUsd == null ? Collections.<ItemId, Double>emptyMap() : pricesUsd;
+
+      // The decomposed items that this shop can cover, including similar parts.
+      RequiredItems decomposed = new RequiredItems(partModel, items.size());
+      for (Map.Entry<ItemId, Integer> entry : items.entrySet()) {
+        ItemId itemId = entry.getKey();
+        decomposed.addItem("b", itemId.partLocalId(), itemId.colorLocalId(),
+            entry.getValue(), null);
+      }
+      coveredItemIds_ = new HashSet<ItemId>();
+      for (RequiredItems.Item item : decomposed.items().values()) {
+        coveredItemIds_.add(item.itemId());
+        if (item.part_.similar_ != null) {
+          for (PartModel.Part similar : item.part_.similar_) {
+            coveredItemIds_.add(ItemId.of(similar.primaryId(), item.color_.primaryId()));
+          }
+        }
+      }
+    }
+
+    // Loads a shop inventory in BrickLink XML format.
+    public static Shop load(PartModel partModel, String name, InputStream input)
+        throws PartLoader.LoaderException, IOException {
+      PartLoader.WantedLoader loader = new PartLoader(partModel).createWantedLoader(
+          PartLoader.Options.createUnlimited());
+      loader.parse(input);
+      return new Shop(partModel, name,
+          loader.getResult().items_.exportToNamespace("b", null), loader.pricesUsd());
+    }
+
+    public String toString() {
+      return name_;
+    }
+
+    public final String name_;
+    public final TreeMap<ItemId, Integer> items_;
+    public final Map<ItemId, Double> pricesUsd_;
+
+    // Decomposed item ids in the PartModel, see RequiredItems.items().
+    private final HashSet<ItemId> coveredItemIds_;
+  }
+
+  public static final class Solution {
+    private Solution(List<Shop> shops, RequiredItems uncovered, double costUsd) {
+      shops_ = Collections.unmodifiableList(new ArrayList<Shop>(shops));
+      uncovered_ = uncovered;
+      numUncoveredItems_ = uncovered.numTotalItems();
+      costUsd_ = costUsd;
+    }
+
+    // Fewer uncovered items, then fewer shops, then lower cost.
+    public boolean isBetterThan(Solution other) {
+      if (numUncoveredItems_ != other.numUncoveredItems_) {
+        return numUncoveredItems_ < other.numUncoveredItems_;
+      }
+      if (shops_.size() != other.shops_.size()) {
+        return shops_.size() < other.shops_.size();
+      }
+      return costUsd_ < other.costUsd_;
+    }
+
+    public String toString() {
+      StringBuffer sb = new StringBuffer();
+      sb.append("shops=");
+      sb.append(shops_);
+      sb.append(String.format(",cost=%.2f", costUsd_));
+      if (numUncoveredItems_ > 0) {
+        sb.append(",uncovered=");
+        sb.append(numUncoveredItems_);
+      }
+      return sb.toString();
+    }
+
+    // The shops in the order they were picked.
+    public final List<Shop> shops_;
+
+    // The items that none of the shops have. Do not modify.
+    public final RequiredItems uncovered_;
+    public final int numUncoveredItems_;
+
+    // The estimated price of the items bought.
+    public final double costUsd_;
+  }
+
+  public ShopOptimizer(RequiredItems required, List<Shop> shops,
+      AvailableParts availablePartsOrNull, AvailableParts.Condition condition) {
+    this(required, shops, availablePartsOrNull, condition, ForkJoinPool.commonPool());
+  }
+
+  public ShopOptimizer(RequiredItems required, List<Shop> shops,
+      AvailableParts availablePartsOrNull, AvailableParts.Condition condition,
+      ForkJoinPool pool) {
+    required_ = required;
+    shops_ = new ArrayList<Shop>(shops);
+    availableParts_ = availablePartsOrNull;
+    condition_ = condition;
+    pool_ = pool;
+    shopsByItemId_ = new HashMap<ItemId, ArrayList<Integer>>();
+    for (int i = 0; i < shops_.size(); ++i) {
+      for (ItemId itemId : shops_.get(i).coveredItemIds_) {
+        ArrayList<Integer> list = shopsByItemId_.get(itemId);
+        if (list == null) {
+          list = new ArrayList<Integer>();
+          shopsByItemId_.put(itemId, list);
+        }
+        list.add(i);
+      }
+    }
+  }
+
+  // Repeatedly picks the shop that covers the most remaining items, the
+  // cheaper one on ties.
+  public Solution greedy() {
+    RequiredItems remaining = required_;
+    ArrayList<Shop> picked = new ArrayList<Shop>();
+    boolean[] used = new boolean[shops_.size()];
+    double costUsd = 0.0;
+    while (remaining.numTotalItems() > 0) {
+      final RequiredItems current = remaining;
+      ArrayList<Callable<Step>> tasks = new ArrayList<Callable<Step>>();
+      for (int i = 0; i < shops_.size(); ++i) {
+        if (used[i]) continue;
+        final int shopIndex = i;
+        tasks.add(new Callable<Step>() {
+          public Step call() {
+            return step(current, shopIndex);
+          }
+        });
+      }
+      Step best = null;
+      for (Future<Step> future : pool_.invokeAll(tasks)) {
+        Step step = getUnchecked(future);
+        if (step.gain_ > 0 && (best == null || step.gain_ > best.gain_ ||
+            (step.gain_ == best.gain_ && step.costUsd_ < best.costUsd_))) {
+          best = step;
+        }
+      }
+      if (best == null) break;
+      used[best.shopIndex_] = true;
+      picked.add(shops_.get(best.shopIndex_));
+      costUsd += best.costUsd_;
+      remaining = best.remaining_;
+    }
+    return new Solution(picked, remaining, costUsd);
+  }
+
+  // Branch and bound starting from a known solution, usually the result
+  // of greedy(). Each node branches on the uncovered item that the fewest
+  // shops have. Stops after visiting maxNodes nodes and returns the best
+  // solution found so far.
+  public Solution refine(Solution start, long maxNodes) {
+    RequiredItems minUncovered = required_;
+    for (Shop shop : shops_) {
+      minUncovered = minUncovered.minusMatches(shop.items_);
+    }
+    Search search = new Search(start, minUncovered.numTotalItems(), maxNodes);
+    pool_.invoke(search.new Node(required_, new ArrayList<Shop>(),
+        new boolean[shops_.size()], 0.0));
+    return search.best();
+  }
+
+  // The result of buying from a shop.
+  private static final class Step {
+    Step(int shopIndex, RequiredItems remaining, int gain, double costUsd) {
+      shopIndex_ = shopIndex;
+      remaining_ = remaining;
+      gain_ = gain;
+      costUsd_ = costUsd;
+    }
+
+    final int shopIndex_;
+    final RequiredItems remaining_;
+    final int gain_;
+    final double costUsd_;
+  }
+
+  private Step step(RequiredItems remaining, int shopIndex) {
+    Shop shop = shops_.get(shopIndex);
+    RequiredItems after = remaining.minusMatches(shop.items_);
+    int gain = remaining.numTotalItems() - after.numTotalItems();
+    double costUsd = 0.0;
+    if (gain > 0) {
+      for (Map.Entry<ItemId, RequiredItems.Item> entry : remaining.items().entrySet()) {
+        RequiredItems.Item item = entry.getValue();
+        RequiredItems.Item left = after.items().get(entry.getKey());
+        int bought = item.count_ - (left == null ? 0 : left.count_);
+        if (bought > 0) {
+          costUsd += bought * unitPriceUsd(shop, item.part_, item.color_);
+        }
+      }
+    }
+    return new Step(shopIndex, after, gain, costUsd);
+  }
+
+  private double unitPriceUsd(Shop shop, PartModel.Part part, PartModel.Color color) {
+    String partId = part.idInNamespace("b");
+    String colorId = color.idInNamespace("b");
+    if (partId == null || colorId == null) {
+      return 0.0;
+    }
+    ItemId itemId = ItemId.of(partId, colorId);
+    Double price = shop.pricesUsd_.get(itemId);
+    if (price != null) {
+      return price;
+    }
+    if (availableParts_ != null) {
+      double averagePrice = availableParts_.priceUsd(itemId, condition_);
+      if (!Double.isNaN(averagePrice)) {
+        return averagePrice;
+      }
+    }
+    return 0.0;
+  }
+
+  private final class Search {
+    Search(Solution start, int minUncovered, long maxNodes) {
+      best_ = start;
+      minUncovered_ = minUncovered;
+      maxNodes_ = maxNodes;
+      numNodes_ = new AtomicLong();
+    }
+
+    synchronized Solution best() {
+      return best_;
+    }
+
+    synchronized void offer(Solution solution) {
+      if (solution.isBetterThan(best_)) {
+        best_ = solution;
+      }
+    }
+
+    final class Node extends RecursiveAction {
+      Node(RequiredItems remaining, ArrayList<Shop> picked, boolean[] used,
+          double costUsd) {
+        remaining_ = remaining;
+        picked_ = picked;
+        used_ = used;
+        costUsd_ = costUsd;
+      }
+
+      @Override
+      protected void compute() {
+        if (numNodes_.incrementAndGet() > maxNodes_) return;
+
+        // Branch on the remaining item that the fewest unused shops have.
+        ArrayList<Integer> branchShops = null;
+        int numBranchShops = Integer.MAX_VALUE;
+        for (ItemId itemId : remaining_.items().keySet()) {
+          ArrayList<Integer> shops = shopsByItemId_.get(itemId);
+          if (shops == null) continue;
+          int numUnused = 0;
+          for (int shopIndex : shops) {
+            if (!used_[shopIndex]) ++numUnused;
+          }
+          if (numUnused > 0 && numUnused < numBranchShops) {
+            branchShops = shops;
+            numBranchShops = numUnused;
+          }
+        }
+        if (branchShops == null) {
+          offer(new Solution(picked_, remaining_, costUsd_));
+          return;
+        }
+
+        // Any completion needs at least one more shop and costs at least
+        // as much as now. Only prune once the best solution covers all
+        // that can be covered.
+        Solution best = best();
+        if (best.numUncoveredItems_ <= minUncovered_) {
+          int minShops = picked_.size() + 1;
+          if (minShops > best.shops_.size() ||
+              (minShops == best.shops_.size() && costUsd_ >= best.costUsd_)) {
+            return;
+          }
+        }
+
+        ArrayList<Node> children = new ArrayList<Node>();
+        for (int shopIndex : branchShops) {
+          if (used_[shopIndex]) continue;
+          Step step = step(remaining_, shopIndex);
+          if (step.gain_ == 0) continue;
+          ArrayList<Shop> picked = new ArrayList<Shop>(picked_);
+          picked.add(shops_.get(shopIndex));
+          boolean[] used = used_.clone();
+          used[shopIndex] = true;
+          children.add(new Node(step.remaining_, picked, used, costUsd_ + step.costUsd_));
+        }
+        if (children.isEmpty()) {
+          offer(new Solution(picked_, remaining_, costUsd_));
+        } else if (picked_.size() < PARALLEL_DEPTH) {
+          invokeAll(children);
+        } else {
+          for (Node child : children) {
+            child.compute();
+          }
+        }
+      }
+
+      private final RequiredItems remaining_;
+      private final ArrayList<Shop> picked_;
+      private final boolean[] used_;
+      private final double costUsd_;
+    }
+
+    private Solution best_;
+    private final int minUncovered_;
+    private final long maxNodes_;
+    private final AtomicLong numNodes_;
+  }
+
+  private static Step getUnchecked(Future<Step> future) {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  // Nodes up to this depth are explored in parallel.
+  private static final int PARALLEL_DEPTH = 2;
+
+  private final RequiredItems required_;
+  private final ArrayList<Shop> shops_;
+  private final AvailableParts availableParts_;
+  private final AvailableParts.Condition condition_;
+  private final ForkJoinPool pool_;
+
+  // For each decomposed item id, the indices of the shops that can cover it.
+  private final HashMap<ItemId, ArrayList<Integer>> shopsByItemId_;
+}
@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+import com.brickmesh.util.HeavyHitters;
+
+// Aggregates UnknownItems across many requests, in bounded memory, to find
+// the unknown parts and colors that come up most often. These are the
+// best candidates to add to the part model next.
+//
+// Thread-safe; record() is lock-free.
+public final class UnknownItemsTelemetry {
+  // A process-wide instance. Each request is recorded once where it is
+  // finished: by Ldd2Wanted and Ldd2Csv after the export, so that the
+  // unmappable items are included, and by ProgressiveLoader when parsing
+  // completes.
+  public static UnknownItemsTelemetry global() {
+    return GLOBAL;
+  }
+
+  public UnknownItemsTelemetry(int width, int depth, int capacity) {
+    unknownPartIds_ = new HeavyHitters<String>(width, depth, capacity);
+    unknownColorIds_ = new HeavyHitters<String>(width, depth, capacity);
+    unmappableItems_ = new HeavyHitters<ItemId>(width, depth, capacity);
+  }
+
+  // Adds the unknown and unmappable items of a single request.
+  public void record(UnknownItems unknownItems) {
+    if (unknownItems.unknownPartIdsOrNull() != null) {
+      for (Map.Entry<String, Integer> entry : unknownItems.unknownPartIdsOrNull().entrySet()) {
+        unknownPartIds_.add(entry.getKey(), entry.getValue());
+      }
+    }
+    if (unknownItems.unknownColorIdsOrNull() != null) {
+      for (Map.Entry<String, Integer> entry : unknownItems.unknownColorIdsOrNull().entrySet()) {
+        unknownColorIds_.add(entry.getKey(), entry.getValue());
+      }
+    }
+    if (unknownItems.unmappableItemsOrNull() != null) {
+      for (Map.Entry<ItemId, Integer> entry : unknownItems.unmappableItemsOrNull().entrySet()) {
+        unmappableItems_.add(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  // The most frequent unknown part ids with the (estimated) number of
+  // items affected, most frequent first.
+  public List<Map.Entry<String, Long>> topUnknownPartIds(int k) {
+    return unknownPartIds_.topK(k);
+  }
+
+  public List<Map.Entry<String, Long>> topUnknownColorIds(int k) {
+    return unknownColorIds_.topK(k);
+  }
+
+  public List<Map.Entry<ItemId, Long>> topUnmappableItems(int k) {
+    return unmappableItems_.topK(k);
+  }
+
+  // Writes part templates for the k most frequent unknown parts, most
+  // frequent first, in the format of the part model.
+  public void writePartTemplates(PrintStream ps, int k) {
+    for (Map.Entry<String, Long> entry : topUnknownPartIds(k)) {
+      ps.format("# Seen %d time(s).\n", entry.getValue());
+      writePartTemplate(ps, entry.getKey());
+    }
+  }
+
+  // Writes an empty part entry that can be edited and added to the part model.
+  public static void writePartTemplate(PrintStream ps, String partId) {
+    ps.println("part {");
+    ps.println("  id: \"" + partId + "\"");
+    ps.println("}");
+    ps.println();
+  }
+
+  private static final UnknownItemsTelemetry GLOBAL =
+      new UnknownItemsTelemetry(1 << 14, 4, 1024);
+
+  private final HeavyHitters<String> unknownPartIds_;
+  private final HeavyHitters<String> unknownColorIds_;
+  private final HeavyHitters<ItemId> unmappableItems_;
+}
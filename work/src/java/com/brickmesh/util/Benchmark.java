@@ -27,7 +27,156 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.util;
 
-class Benchmark {
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.regex.Pattern;
+
+// Base of the benchmarks. measure() runs an operation with warm-up
+// iterations first, then measurement iterations of a fixed length, and
+// reports throughput, average time, the allocation rate and collections.
+//
+// This is a small harness, not JMH, and its numbers are less reliable:
+// - All benchmarks of a main() run in the same JVM, so earlier ones can
+//   change how later ones are compiled. Select a single benchmark with the
+//   name pattern to measure it in a fresh JVM.
+// - Only the returned value is kept alive. Work inside the operation that
+//   does not affect it can still be dropped by the JIT.
+// - Allocation is measured for the calling thread only, so work done on
+//   other threads (e.g. by a parallel sort) is not included.
+//
+// The iterations can be set with the system properties
+// benchmark.warmupIterations, benchmark.iterations and
+// benchmark.iterationMillis.
+public class Benchmark {
+  // The work that is measured. Return something that depends on all of
+  // the work, so that the compiler cannot drop it.
+  public interface Operation {
+    public Object run() throws Exception;
+  }
+
+  public static class Options {
+    public Options() {
+      warmupIterations_ = 5;
+      measurementIterations_ = 5;
+      iterationMillis_ = 1000;
+    }
+
+    public static Options fromSystemProperties() {
+      Options options = new Options();
+      options.warmupIterations_ = Integer.getInteger(
+          "benchmark.warmupIterations", options.warmupIterations_);
+      options.measurementIterations_ = Integer.getInteger(
+          "benchmark.iterations", options.measurementIterations_);
+      options.iterationMillis_ = Integer.getInteger(
+          "benchmark.iterationMillis", options.iterationMillis_);
+      return options;
+    }
+
+    public int warmupIterations_;
+    public int measurementIterations_;
+    public int iterationMillis_;
+  }
+
+  public static class Result {
+    public String toString() {
+      StringBuffer sb = new StringBuffer();
+      sb.append(String.format("%-40s %14.3f +- %10.3f ops/s\n",
+          name_, opsPerSecond_, opsPerSecondError_));
+      sb.append(String.format("%-40s %14.3f +- %10.3f us/op\n",
+          "", microsPerOp_, microsPerOpError_));
+      if (bytesPerOp_ >= 0) {
+        sb.append(String.format("%-40s %14.3f %12s MB/s\n",
+            "  gc.alloc.rate", allocMegabytesPerSecond_, ""));
+        sb.append(String.format("%-40s %14.1f %12s B/op\n",
+            "  gc.alloc.rate.norm", bytesPerOp_, ""));
+      }
+      sb.append(String.format("%-40s %14d %12s counts, %d ms",
+          "  gc.count", gcCount_, "", gcMillis_));
+      return sb.toString();
+    }
+
+    public String name_;
+    public long operations_;
+
+    // Mean and standard deviation over the measurement iterations.
+    public double opsPerSecond_;
+    public double opsPerSecondError_;
+    public double microsPerOp_;
+    public double microsPerOpError_;
+
+    // Allocated by the benchmark thread, -1 if the JVM cannot tell.
+    public double allocMegabytesPerSecond_;
+    public double bytesPerOp_;
+
+    // Collections during the measurement, by all collectors.
+    public long gcCount_;
+    public long gcMillis_;
+  }
+
+  // Runs main()'s benchmarks only if their name matches the pattern given
+  // on the command line, if any.
+  protected static Pattern includePattern(String args[]) {
+    return Pattern.compile(args.length > 0 ? args[0] : ".*");
+  }
+
+  // Measures and prints the result to stdout if the name matches.
+  public static Result run(
+      Pattern include, String name, Operation operation, Options options)
+      throws Exception {
+    if (!include.matcher(name).find()) return null;
+    Result result = measure(name, operation, options);
+    System.out.println(result);
+    return result;
+  }
+
+  public static Result measure(
+      String name, Operation operation, Options options) throws Exception {
+    final long iterationNanos = options.iterationMillis_ * 1000000L;
+    for (int i = 0; i < options.warmupIterations_; ++i) {
+      runIteration(operation, iterationNanos);
+    }
+
+    final long allocatedStart = allocatedBytes();
+    final long gcCountStart = gcCount();
+    final long gcMillisStart = gcMillis();
+    final int n = Math.max(1, options.measurementIterations_);
+    double[] opsPerSecond = new double[n];
+    double[] microsPerOp = new double[n];
+    long totalOps = 0;
+    long totalNanos = 0;
+    for (int i = 0; i < n; ++i) {
+      long startNanos = System.nanoTime();
+      long ops = runIteration(operation, iterationNanos);
+      long nanos = System.nanoTime() - startNanos;
+      opsPerSecond[i] = ops * 1e9 / nanos;
+      microsPerOp[i] = nanos / 1e3 / ops;
+      totalOps += ops;
+      totalNanos += nanos;
+    }
+    final long allocatedEnd = allocatedBytes();
+
+    Result result = new Result();
+    result.name_ = name;
+    result.operations_ = totalOps;
+    result.opsPerSecond_ = mean(opsPerSecond);
+    result.opsPerSecondError_ = stddev(opsPerSecond);
+    result.microsPerOp_ = mean(microsPerOp);
+    result.microsPerOpError_ = stddev(microsPerOp);
+    if (allocatedStart >= 0 && allocatedEnd >= 0) {
+      long allocated = allocatedEnd - allocatedStart;
+      result.bytesPerOp_ = (double)allocated / totalOps;
+      result.allocMegabytesPerSecond_ =
+          allocated / (1024.0 * 1024.0) / (totalNanos / 1e9);
+    } else {
+      result.bytesPerOp_ = -1;
+      result.allocMegabytesPerSecond_ = -1;
+    }
+    result.gcCount_ = gcCount() - gcCountStart;
+    result.gcMillis_ = gcMillis() - gcMillisStart;
+    return result;
+  }
+
   public static long printRuntimeStats(String phaseName, long startTimeNanos) {
     final long currentTimeNanos = System.nanoTime();
 		System.err.format("--> %s time = %d, Heap size = %dM\n",
@@ -35,4 +184,70 @@ class Benchmark {
         Runtime.getRuntime().totalMemory() / 1024 / 1024);
     return currentTimeNanos;
   }
+
+  // Calls the operation until the time is up, at least once.
+  private static long runIteration(Operation operation, long iterationNanos)
+      throws Exception {
+    final long deadline = System.nanoTime() + iterationNanos;
+    long ops = 0;
+    int sink = 0;
+    do {
+      Object value = operation.run();
+      sink += value == null ? 0 : System.identityHashCode(value);
+      ++ops;
+    } while (System.nanoTime() < deadline);
+    sink_ += sink;
+    return ops;
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean)) return -1;
+    com.sun.management.ThreadMXBean allocBean =
+        (com.sun.management.ThreadMXBean)threadBean;
+    if (!allocBean.isThreadAllocatedMemorySupported() ||
+        !allocBean.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return allocBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gcBean :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gcBean.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gcBean :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gcBean.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static double mean(double[] values) {
+    double sum = 0;
+    for (double value : values) {
+      sum += value;
+    }
+    return sum / values.length;
+  }
+
+  private static double stddev(double[] values) {
+    if (values.length < 2) return 0;
+    double mean = mean(values);
+    double sum = 0;
+    for (double value : values) {
+      sum += (value - mean) * (value - mean);
+    }
+    return Math.sqrt(sum / (values.length - 1));
+  }
+
+  // Keeps the results of the operations alive.
+  private static volatile int sink_;
 }
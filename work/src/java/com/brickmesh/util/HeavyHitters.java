@@ -0,0 +1,167 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Finds the most frequent keys in an unbounded stream with bounded memory.
+//
+// Counts are kept in a Count-Min sketch: 'depth' rows of 'width' counters,
+// each key increments one counter per row and the estimate is the minimum
+// over the rows. Estimates are never lower than the true count and are
+// higher by at most a small fraction of the total count with high
+// probability.
+//
+// To be able to list the top keys, up to 'capacity' candidate keys are
+// remembered; when there are too many, the ones with the lowest estimates
+// are dropped.
+//
+// add() is lock-free and safe to call from any number of threads. Pruning
+// the candidates takes a lock, but threads that find it taken just skip it.
+public final class HeavyHitters<K> {
+  public HeavyHitters(int width, int depth, int capacity) {
+    if (Integer.bitCount(width) != 1) {
+      throw new IllegalArgumentException("Width must be a power of 2: " + width);
+    }
+    width_ = width;
+    depth_ = depth;
+    capacity_ = capacity;
+    counters_ = new AtomicLongArray(width * depth);
+    candidates_ = new ConcurrentHashMap<K, Boolean>(capacity * 2);
+    totalCount_ = new AtomicLong();
+    pruneLock_ = new ReentrantLock();
+  }
+
+  public void add(K key, long count) {
+    int hash = key.hashCode();
+    for (int row = 0; row < depth_; ++row) {
+      counters_.addAndGet(index(hash, row), count);
+    }
+    totalCount_.addAndGet(count);
+
+    if (candidates_.containsKey(key)) return;
+    if (candidates_.size() >= capacity_ && estimate(key) <= minCandidateCount_) {
+      return;
+    }
+    candidates_.put(key, Boolean.TRUE);
+    if (candidates_.size() > 2 * capacity_ && pruneLock_.tryLock()) {
+      try {
+        prune();
+      }
+      finally {
+        pruneLock_.unlock();
+      }
+    }
+  }
+
+  // The estimated count of the key. Never less than the real count.
+  public long estimate(K key) {
+    int hash = key.hashCode();
+    long result = Long.MAX_VALUE;
+    for (int row = 0; row < depth_; ++row) {
+      result = Math.min(result, counters_.get(index(hash, row)));
+    }
+    return result;
+  }
+
+  // The sum of all counts added.
+  public long totalCount() {
+    return totalCount_.get();
+  }
+
+  // Returns up to k keys with the highest estimated counts, highest first.
+  // This is a snapshot; it may or may not include concurrent additions.
+  public List<Map.Entry<K, Long>> topK(int k) {
+    ArrayList<Map.Entry<K, Long>> entries = estimateCandidates();
+    if (entries.size() > k) {
+      return new ArrayList<Map.Entry<K, Long>>(entries.subList(0, k));
+    }
+    return entries;
+  }
+
+  // Keeps the 'capacity' candidates with the highest estimates.
+  private void prune() {
+    ArrayList<Map.Entry<K, Long>> entries = estimateCandidates();
+    if (entries.size() <= capacity_) return;
+    for (int i = capacity_; i < entries.size(); ++i) {
+      candidates_.remove(entries.get(i).getKey());
+    }
+    minCandidateCount_ = entries.get(capacity_ - 1).getValue();
+  }
+
+  // All the candidates with their estimates, highest first.
+  private ArrayList<Map.Entry<K, Long>> estimateCandidates() {
+    ArrayList<Map.Entry<K, Long>> entries =
+        new ArrayList<Map.Entry<K, Long>>(candidates_.size());
+    for (K key : candidates_.keySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<K, Long>(key, estimate(key)));
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<K, Long>>() {
+      @Override
+      public int compare(Map.Entry<K, Long> e1, Map.Entry<K, Long> e2) {
+        return Long.compare(e2.getValue(), e1.getValue());
+      }
+    });
+    return entries;
+  }
+
+  // Each row uses a differently mixed version of the hash code.
+  private int index(int hash, int row) {
+    long h = (hash & 0xffffffffL) * ROW_SEEDS[row % ROW_SEEDS.length] + row;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return row * width_ + (int)(h & (width_ - 1));
+  }
+
+  private static final long[] ROW_SEEDS = {
+    0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L,
+    0xd6e8feb86659fd93L, 0xff51afd7ed558ccdL, 0xc4ceb9fe1a85ec53L,
+  };
+
+  private final int width_;
+  private final int depth_;
+  private final int capacity_;
+  private final AtomicLongArray counters_;
+  private final ConcurrentHashMap<K, Boolean> candidates_;
+  private final AtomicLong totalCount_;
+  private final ReentrantLock pruneLock_;
+
+  // Keys with an estimate at or below this are not worth remembering.
+  // Raised by prune().
+  private volatile long minCandidateCount_;
+}
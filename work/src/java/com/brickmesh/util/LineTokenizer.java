@@ -0,0 +1,259 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Splits a text stream into lines and lines into whitespace separated
+// tokens without regular expressions. The current line is kept in a
+// reusable buffer; Strings are only created for tokens that are asked for.
+//
+// Suitable for line oriented ASCII or UTF-8 formats like LDraw.
+public final class LineTokenizer {
+  public LineTokenizer(InputStream input) {
+    input_ = input;
+    byteBuffer_ = null;
+    buf_ = new byte[8192];
+    line_ = new byte[256];
+  }
+
+  // Reads the remaining bytes of the buffer, which may be memory mapped.
+  // The position of the buffer is advanced.
+  public LineTokenizer(ByteBuffer input) {
+    input_ = null;
+    byteBuffer_ = input;
+    buf_ = new byte[8192];
+    line_ = new byte[256];
+  }
+
+  // Advances to the next line. Returns false at the end of the input.
+  public boolean nextLine() throws IOException {
+    lineLength_ = 0;
+    pos_ = 0;
+    boolean any = false;
+    while (true) {
+      if (bufPos_ >= bufLength_) {
+        bufLength_ = read();
+        bufPos_ = 0;
+        if (bufLength_ <= 0) {
+          bufLength_ = 0;
+          if (any) ++lineNumber_;
+          return any;
+        }
+      }
+      any = true;
+      byte b = buf_[bufPos_++];
+      if (b == '\n') break;
+      if (b == '\r') continue;
+      if (lineLength_ == line_.length) {
+        byte[] line = new byte[line_.length * 2];
+        System.arraycopy(line_, 0, line, 0, lineLength_);
+        line_ = line;
+      }
+      line_[lineLength_++] = b;
+    }
+    ++lineNumber_;
+    return true;
+  }
+
+  // The 1-based number of the current line.
+  public int lineNumber() {
+    return lineNumber_;
+  }
+
+  // Returns true if there are more tokens on the current line.
+  public boolean hasToken() {
+    skipWhitespace();
+    return pos_ < lineLength_;
+  }
+
+  // Returns the next token on the line or null if there are no more.
+  public String nextTokenOrNull() {
+    skipWhitespace();
+    if (pos_ >= lineLength_) return null;
+    int start = pos_;
+    skipToken();
+    return new String(line_, start, pos_ - start, StandardCharsets.UTF_8);
+  }
+
+  // Skips the next token. Returns false if there are no more tokens.
+  public boolean skipToken() {
+    skipWhitespace();
+    if (pos_ >= lineLength_) return false;
+    while (pos_ < lineLength_ && !isWhitespace(line_[pos_])) {
+      ++pos_;
+    }
+    return true;
+  }
+
+  // Skips n tokens. Returns false if there were fewer tokens.
+  public boolean skipTokens(int n) {
+    for (int i = 0; i < n; ++i) {
+      if (!skipToken()) return false;
+    }
+    return true;
+  }
+
+  // Consumes the next token if it is a single digit and returns its value.
+  // Otherwise it leaves the position unchanged and returns -1.
+  public int nextDigitToken() {
+    skipWhitespace();
+    if (pos_ >= lineLength_) return -1;
+    byte b = line_[pos_];
+    if (b < '0' || b > '9') return -1;
+    if (pos_ + 1 < lineLength_ && !isWhitespace(line_[pos_ + 1])) return -1;
+    ++pos_;
+    return b - '0';
+  }
+
+  // Parses the next count tokens as numbers into dest. Returns false if
+  // there are fewer tokens. Throws NumberFormatException like
+  // Double.parseDouble() if a token is not a number.
+  public boolean nextDoubles(double[] dest, int destPos, int count) {
+    for (int i = 0; i < count; ++i) {
+      skipWhitespace();
+      if (pos_ >= lineLength_) return false;
+      int start = pos_;
+      while (pos_ < lineLength_ && !isWhitespace(line_[pos_])) {
+        ++pos_;
+      }
+      dest[destPos + i] = parseDouble(start, pos_);
+    }
+    return true;
+  }
+
+  // Consumes the next token if it is equal to the given ASCII string.
+  // Otherwise it leaves the position unchanged and returns false.
+  public boolean nextTokenEquals(String s) {
+    skipWhitespace();
+    int end = pos_ + s.length();
+    if (end > lineLength_) return false;
+    if (end < lineLength_ && !isWhitespace(line_[end])) return false;
+    for (int i = 0; i < s.length(); ++i) {
+      if (line_[pos_ + i] != s.charAt(i)) return false;
+    }
+    pos_ = end;
+    return true;
+  }
+
+  // Returns the rest of the line without leading and trailing whitespace.
+  // This is useful for names that may contain spaces. null if empty.
+  public String restOfLineOrNull() {
+    skipWhitespace();
+    int end = lineLength_;
+    while (end > pos_ && isWhitespace(line_[end - 1])) {
+      --end;
+    }
+    if (end <= pos_) return null;
+    String result = new String(line_, pos_, end - pos_, StandardCharsets.UTF_8);
+    pos_ = lineLength_;
+    return result;
+  }
+
+  private int read() throws IOException {
+    if (input_ != null) {
+      return input_.read(buf_, 0, buf_.length);
+    }
+    int length = Math.min(buf_.length, byteBuffer_.remaining());
+    byteBuffer_.get(buf_, 0, length);
+    return length;
+  }
+
+  // Plain decimals like "-12.5" with at most 15 significant digits are
+  // exact in a double, so a single division by an exact power of ten
+  // gives the same result as Double.parseDouble(). Anything else is
+  // left to Double.parseDouble().
+  private double parseDouble(int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && line_[i] == '-') {
+      negative = true;
+      ++i;
+    }
+    long mantissa = 0;
+    int numDigits = 0;
+    int numFractionDigits = 0;
+    boolean seenDigit = false;
+    boolean seenPoint = false;
+    for (; i < end; ++i) {
+      byte b = line_[i];
+      if (b >= '0' && b <= '9') {
+        if (mantissa != 0 || b != '0') ++numDigits;
+        mantissa = mantissa * 10 + (b - '0');
+        if (seenPoint) ++numFractionDigits;
+        seenDigit = true;
+      } else if (b == '.' && !seenPoint) {
+        seenPoint = true;
+      } else {
+        break;
+      }
+    }
+    if (i == end && seenDigit && numDigits <= 15 &&
+        numFractionDigits < POWERS_OF_TEN.length) {
+      double d = mantissa;
+      if (numFractionDigits > 0) d /= POWERS_OF_TEN[numFractionDigits];
+      return negative ? -d : d;
+    }
+    return Double.parseDouble(
+        new String(line_, start, end - start, StandardCharsets.UTF_8));
+  }
+
+  private void skipWhitespace() {
+    while (pos_ < lineLength_ && isWhitespace(line_[pos_])) {
+      ++pos_;
+    }
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  // Powers of ten that are exact in a double.
+  private static final double[] POWERS_OF_TEN = new double[] {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+
+  // Exactly one of these is set.
+  private final InputStream input_;
+  private final ByteBuffer byteBuffer_;
+
+  // Read buffer.
+  private final byte[] buf_;
+  private int bufPos_;
+  private int bufLength_;
+
+  // The current line without the line terminator.
+  private byte[] line_;
+  private int lineLength_;
+  private int pos_;
+  private int lineNumber_;
+}
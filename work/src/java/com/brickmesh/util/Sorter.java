@@ -27,9 +27,14 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
-// Quicksort and Quickselect. Unlike the java native sort
+// Quicksort, Quickselect and radix sort. Unlike the java native sort
 // implementation this allows sorting of structs flattened
 // into multiple primitive type arrays.
 public final class Sorter {
@@ -49,37 +54,346 @@ public final class Sorter {
     quicksort(sortable, 0, sortable.size() - 1, rand);
   }
 
-  // Simple single-pivot quicksort. Good enough until proven otherwise.
+  // Introsort: quicksort with median-of-three pivots, insertion sort for
+  // short ranges and heapsort if the recursion gets too deep, so it is
+  // O(n log n) even for adversarial input. The end is inclusive.
   public static void quicksort(Sortable sortable, int start,
       int end, Random rand) {
     if (end - start < 1) return;
-    int pivot = start + rand.nextInt(end - start + 1);
-    int left = start;
+    introsort(sortable, start, end, depthLimit(end - start + 1), rand);
+  }
+
+  // Same as quicksort, but disjoint ranges are sorted concurrently in the
+  // pool. The Sortable must allow concurrent calls for disjoint indexes,
+  // which is the case for the typical array based implementations.
+  public static void parallelQuicksort(Sortable sortable, ForkJoinPool pool) {
+    if (sortable.size() < 2) return;
+    pool.invoke(new SortTask(sortable, 0, sortable.size() - 1,
+        depthLimit(sortable.size())));
+  }
+
+  private static class SortTask extends RecursiveAction {
+    public SortTask(Sortable sortable, int start, int end, int depthLimit) {
+      sortable_ = sortable;
+      start_ = start;
+      end_ = end;
+      depthLimit_ = depthLimit;
+    }
+
+    @Override
+    protected void compute() {
+      int start = start_;
+      int end = end_;
+      int depthLimit = depthLimit_;
+      Random rand = ThreadLocalRandom.current();
+      // Split off the smaller half as a new task, continue with the larger.
+      ArrayList<SortTask> forked = new ArrayList<SortTask>();
+      while (end - start >= PARALLEL_THRESHOLD && depthLimit > 0) {
+        int pivot = partition(sortable_, start, end, rand);
+        --depthLimit;
+        SortTask task;
+        if (pivot - start < end - pivot) {
+          task = new SortTask(sortable_, start, pivot - 1, depthLimit);
+          start = pivot + 1;
+        } else {
+          task = new SortTask(sortable_, pivot + 1, end, depthLimit);
+          end = pivot - 1;
+        }
+        task.fork();
+        forked.add(task);
+      }
+      introsort(sortable_, start, end, depthLimit, rand);
+      for (SortTask task : forked) {
+        task.join();
+      }
+    }
+
+    private final Sortable sortable_;
+    private final int start_;
+    private final int end_;
+    private final int depthLimit_;
+  }
+
+  private static void introsort(Sortable sortable, int start, int end,
+      int depthLimit, Random rand) {
+    while (end - start >= INSERTION_SORT_THRESHOLD) {
+      if (depthLimit == 0) {
+        heapsort(sortable, start, end);
+        return;
+      }
+      --depthLimit;
+      int pivot = partition(sortable, start, end, rand);
+      // Recurse into the smaller half, so that the stack stays O(log n).
+      if (pivot - start < end - pivot) {
+        introsort(sortable, start, pivot - 1, depthLimit, rand);
+        start = pivot + 1;
+      } else {
+        introsort(sortable, pivot + 1, end, depthLimit, rand);
+        end = pivot - 1;
+      }
+    }
+    insertionSort(sortable, start, end);
+  }
+
+  // Partitions the range around the median of three random elements and
+  // returns the final index of the pivot. Elements equal to the pivot
+  // stop both scans, so ranges with many duplicates are split evenly.
+  private static int partition(Sortable sortable, int start, int end,
+      Random rand) {
+    int n = end - start + 1;
+    int pivot = medianOfThree(sortable, start + rand.nextInt(n),
+        start + rand.nextInt(n), start + rand.nextInt(n));
+    if (pivot != start) sortable.swap(pivot, start);
+    pivot = start;
+
+    int left = start + 1;
     int right = end;
-    while (left <= right) {
-      while (sortable.before(left, pivot)) {
+    while (true) {
+      while (left <= right && sortable.before(left, pivot)) {
         ++left;
       }
-      while (sortable.before(pivot, right)) {
+      while (left <= right && sortable.before(pivot, right)) {
         --right;
       }
-      if (left <= right) {
-        // This is a slight inefficienty of the Sortable interface.
-        // Since we only have the index of the pivot, we need to make
-        // sure it follows swaps.
-        if (left == pivot) {
-          pivot = right;
-        } else if (right == pivot) {
-          pivot = left;
+      if (left >= right) break;
+      sortable.swap(left, right);
+      ++left;
+      --right;
+    }
+    if (right != pivot) sortable.swap(pivot, right);
+    return right;
+  }
+
+  private static int medianOfThree(Sortable sortable, int a, int b, int c) {
+    if (sortable.before(a, b)) {
+      if (sortable.before(b, c)) return b;
+      return sortable.before(a, c) ? c : a;
+    } else {
+      if (sortable.before(a, c)) return a;
+      return sortable.before(b, c) ? c : b;
+    }
+  }
+
+  private static void insertionSort(Sortable sortable, int start, int end) {
+    for (int i = start + 1; i <= end; ++i) {
+      for (int j = i; j > start && sortable.before(j, j - 1); --j) {
+        sortable.swap(j, j - 1);
+      }
+    }
+  }
+
+  private static void heapsort(Sortable sortable, int start, int end) {
+    int n = end - start + 1;
+    for (int i = n / 2 - 1; i >= 0; --i) {
+      siftDown(sortable, start, i, n);
+    }
+    for (int i = n - 1; i > 0; --i) {
+      sortable.swap(start, start + i);
+      siftDown(sortable, start, 0, i);
+    }
+  }
+
+  // Max-heap of the elements that should come last, rooted at start.
+  private static void siftDown(Sortable sortable, int start, int i, int n) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= n) return;
+      if (child + 1 < n && sortable.before(start + child, start + child + 1)) {
+        ++child;
+      }
+      if (!sortable.before(start + i, start + child)) return;
+      sortable.swap(start + i, start + child);
+      i = child;
+    }
+  }
+
+  private static int depthLimit(int n) {
+    return 2 * (32 - Integer.numberOfLeadingZeros(n));
+  }
+
+  // Sorts the keys in ascending order with an LSD radix sort and applies
+  // the same permutation to the satellite data with its swap(), which is
+  // called at most size() times. The sort is stable. The satellite must
+  // not contain the keys themselves, it can be null.
+  public static void radixSort(int[] keys, Sortable satellite) {
+    long[] longKeys = new long[keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+      longKeys[i] = keys[i];
+    }
+    int[] permutation = radixSortPermutation(longKeys, 4);
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = (int)longKeys[i];
+    }
+    applyPermutation(permutation, satellite);
+  }
+
+  public static void radixSort(long[] keys, Sortable satellite) {
+    int[] permutation = radixSortPermutation(keys, 8);
+    applyPermutation(permutation, satellite);
+  }
+
+  // Sorts the keys, which use the lowest numBytes bytes, and returns the
+  // original index of each element in the sorted order.
+  private static int[] radixSortPermutation(long[] keys, int numBytes) {
+    int n = keys.length;
+    int[] permutation = new int[n];
+    for (int i = 0; i < n; ++i) {
+      permutation[i] = i;
+    }
+    long[] otherKeys = new long[n];
+    int[] otherPermutation = new int[n];
+    int[] counts = new int[256];
+    for (int b = 0; b < numBytes; ++b) {
+      int shift = b * 8;
+      // Flipping the sign bit makes negative keys come first.
+      long flip = b == numBytes - 1 ? 0x80L : 0L;
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < n; ++i) {
+        ++counts[(int)(((keys[i] >>> shift) ^ flip) & 0xff)];
+      }
+      // Skip the pass if all the keys have the same digit.
+      if (n == 0 || counts[(int)(((keys[0] >>> shift) ^ flip) & 0xff)] == n) {
+        continue;
+      }
+      int sum = 0;
+      for (int d = 0; d < 256; ++d) {
+        int count = counts[d];
+        counts[d] = sum;
+        sum += count;
+      }
+      for (int i = 0; i < n; ++i) {
+        int pos = counts[(int)(((keys[i] >>> shift) ^ flip) & 0xff)]++;
+        otherKeys[pos] = keys[i];
+        otherPermutation[pos] = permutation[i];
+      }
+      System.arraycopy(otherKeys, 0, keys, 0, n);
+      int[] temp = permutation;
+      permutation = otherPermutation;
+      otherPermutation = temp;
+    }
+    return permutation;
+  }
+
+  // Moves the element at permutation[i] to i by following the cycles.
+  // The permutation is destroyed.
+  private static void applyPermutation(int[] permutation, Sortable sortable) {
+    if (sortable == null) return;
+    for (int start = 0; start < permutation.length; ++start) {
+      int current = start;
+      while (permutation[current] != start) {
+        int next = permutation[current];
+        sortable.swap(current, next);
+        permutation[current] = current;
+        current = next;
+      }
+      permutation[current] = current;
+    }
+  }
+
+  // Keeps the k pairs with the largest values out of a stream of
+  // (key, value) pairs, in a bounded heap. Ties are broken by the smaller
+  // key. Memory is O(k) no matter how many pairs are offered.
+  public static final class TopK {
+    public TopK(int k) {
+      if (k < 0) {
+        throw new IllegalArgumentException("Invalid k: " + k);
+      }
+      k_ = k;
+      keys_ = new long[Math.min(k, 1024)];
+      values_ = new long[keys_.length];
+    }
+
+    public void offer(long key, long value) {
+      if (sorted_) {
+        throw new IllegalStateException("Already sorted.");
+      }
+      if (size_ < k_) {
+        if (size_ == keys_.length) {
+          int capacity = (int)Math.min(k_, 2L * keys_.length);
+          keys_ = Arrays.copyOf(keys_, capacity);
+          values_ = Arrays.copyOf(values_, capacity);
         }
+        keys_[size_] = key;
+        values_[size_] = value;
+        siftUp(size_++);
+      } else if (size_ > 0 && worse(keys_[0], values_[0], key, value)) {
+        keys_[0] = key;
+        values_[0] = value;
+        siftDown(0, size_);
+      }
+    }
 
-        sortable.swap(left, right);
-        ++left;
-        --right;
+    public int size() {
+      return size_;
+    }
+
+    // The kept keys, largest value first. No more pairs can be offered
+    // after this.
+    public long[] keys() {
+      sort();
+      return Arrays.copyOf(keys_, size_);
+    }
+
+    // The values of keys(), in the same order.
+    public long[] values() {
+      sort();
+      return Arrays.copyOf(values_, size_);
+    }
+
+    private void sort() {
+      if (sorted_) return;
+      // Moving the worst element to the end leaves the best first.
+      for (int end = size_ - 1; end > 0; --end) {
+        swap(0, end);
+        siftDown(0, end);
+      }
+      sorted_ = true;
+    }
+
+    // The heap has the worst element at the root.
+    private static boolean worse(long key1, long value1, long key2, long value2) {
+      if (value1 != value2) return value1 < value2;
+      return key1 > key2;
+    }
+
+    private boolean worse(int i, int j) {
+      return worse(keys_[i], values_[i], keys_[j], values_[j]);
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (!worse(i, parent)) return;
+        swap(i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i, int n) {
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= n) return;
+        if (child + 1 < n && worse(child + 1, child)) ++child;
+        if (!worse(child, i)) return;
+        swap(i, child);
+        i = child;
       }
     }
-    quicksort(sortable, start, right, rand);
-    quicksort(sortable, left, end, rand);
+
+    private void swap(int i, int j) {
+      long key = keys_[i];
+      keys_[i] = keys_[j];
+      keys_[j] = key;
+      long value = values_[i];
+      values_[i] = values_[j];
+      values_[j] = value;
+    }
+
+    private final int k_;
+    private long[] keys_;
+    private long[] values_;
+    private int size_;
+    private boolean sorted_;
   }
 
   public static void quickselect(Sortable sortable, int n, Random rand) {
@@ -89,7 +403,7 @@ public final class Sorter {
     int left = 0;
     int right = sortable.size() - 1;
     while (right >= left) {
-      int pivot = partition(sortable, left, right,
+      int pivot = selectPartition(sortable, left, right,
           left + rand.nextInt(right - left + 1));
       if (n == pivot) {
         return;
@@ -102,7 +416,7 @@ public final class Sorter {
     throw new AssertionError("Invalid index");
   }
 
-  private static int partition(Sortable sortable, int left, int right,
+  private static int selectPartition(Sortable sortable, int left, int right,
       int pivot) {
     sortable.swap(pivot, right);
     pivot = right;
@@ -116,4 +430,10 @@ public final class Sorter {
     sortable.swap(right, storeIdx);  // Move pivot to its final place
     return storeIdx;
   }
+
+  // Ranges shorter than this are sorted with insertion sort.
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  // Ranges shorter than this are not split into parallel tasks.
+  private static final int PARALLEL_THRESHOLD = 8192;
 }
@@ -0,0 +1,96 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.offline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.brickmesh.util.TestCase;
+
+final class ComputeLDrawWeightsTest extends TestCase {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    File ldrawDir = LDrawWeightEstimatorTest.createLibrary();
+    File partsDir = new File(ldrawDir, "PARTS");
+    PrintStream part = LDrawWeightEstimatorTest.createFile(partsDir, "3001.dat");
+    LDrawWeightEstimatorTest.writeCube(part, 0, 2);
+    part.close();
+    part = LDrawWeightEstimatorTest.createFile(partsDir, "3004.dat");
+    part.println("1 16 0 0 0 1 0 0 0 1 0 0 0 1 3001.dat");
+    LDrawWeightEstimatorTest.writeCube(part, 40, 2);
+    part.close();
+    part = LDrawWeightEstimatorTest.createFile(partsDir, "3003.dat");
+    part.println("3 16 0 0 0 1 0 0 0 1 x");
+    part.close();
+
+    testEstimateAll(ldrawDir);
+  }
+
+  private static void testEstimateAll(File ldrawDir)
+      throws IOException, InterruptedException {
+    File cacheFile = new File(ldrawDir, "compute.cache");
+    cacheFile.deleteOnExit();
+    LDrawWeightCache cache = LDrawWeightCache.load(cacheFile);
+    LDrawWeightEstimator lw = new LDrawWeightEstimator(ldrawDir.getPath());
+    lw.setResultCache(cache);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      // A malformed part, a part without a file and two good ones.
+      ComputeLDrawWeights.estimateAll(
+          Arrays.asList("b:3004", "b:3003", "b:3005", "b:3001"), lw, cache, pool, 1,
+          new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8"));
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    // In the order of the input, without the failed parts.
+    expectEquals(String.format("b:3004,%.3f\nb:3001,%.3f\n",
+        2 * LDrawWeightEstimatorTest.CUBE_GRAMS, LDrawWeightEstimatorTest.CUBE_GRAMS),
+        out.toString("UTF-8"));
+    String errors = err.toString("UTF-8");
+    expectTrue(errors.contains("No result for b:3003"));
+    expectTrue(errors.contains("NumberFormatException"));
+    expectTrue(errors.contains("No result for b:3005"));
+
+    // The results are in the saved cache.
+    cache = LDrawWeightCache.load(cacheFile);
+    expectEquals(LDrawWeightEstimatorTest.CUBE_GRAMS, cache.getOrNull(
+        LDrawWeightEstimator.Mode.MATERIALIZED, "3001.dat",
+        lw.dependencyDigest("3001.dat")).weightGrams());
+    expectEquals(2 * LDrawWeightEstimatorTest.CUBE_GRAMS, cache.getOrNull(
+        LDrawWeightEstimator.Mode.MATERIALIZED, "3004.dat",
+        lw.dependencyDigest("3004.dat")).weightGrams());
+  }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.offline;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com.brickmesh.util.TestCase;
+
+final class LDrawLibraryTest extends TestCase {
+  public static void main(String[] args) throws IOException {
+    File ldrawDir = LDrawWeightEstimatorTest.createLibrary();
+    File pack = new File(ldrawDir, "library.pack");
+    pack.deleteOnExit();
+    LDrawLibrary.main(new String[] { ldrawDir.getPath(), pack.getPath() });
+
+    testPackedFiles(ldrawDir, pack);
+    testPackedEstimates(ldrawDir, pack);
+    testInvalidPacks(ldrawDir, pack);
+  }
+
+  private static final String[] FILENAMES = {
+    "sub.dat", "own.dat", "top.dat", "rotated.dat"
+  };
+
+  private static void testPackedFiles(File ldrawDir, File pack) throws IOException {
+    LDrawLibrary directory = LDrawLibrary.forLDrawPath(ldrawDir.getPath());
+    LDrawLibrary packed = LDrawLibrary.forLDrawPath(pack.getPath());
+    for (String filename : FILENAMES) {
+      expectTrue(packed.contains(filename));
+      expectEquals(null, packed.fileOrNull(filename));
+      byte[] expected = Files.readAllBytes(
+          directory.fileOrNull(filename).toPath());
+      byte[] actual = new byte[packed.packedOrNull(filename).remaining()];
+      packed.packedOrNull(filename).get(actual);
+      expectTrue(Arrays.equals(expected, actual));
+      expectTrue(Arrays.equals(directory.contentDigest(filename),
+          packed.contentDigest(filename)));
+    }
+    expectFalse(packed.contains("nosuchfile.dat"));
+    expectEquals(null, packed.packedOrNull("nosuchfile.dat"));
+  }
+
+  private static void testPackedEstimates(File ldrawDir, File pack)
+      throws IOException {
+    for (LDrawWeightEstimator.Mode mode : LDrawWeightEstimator.Mode.values()) {
+      LDrawWeightEstimator directory = estimator(ldrawDir, mode);
+      LDrawWeightEstimator packed = estimator(pack, mode);
+      for (String filename : FILENAMES) {
+        LDrawWeightEstimator.Result d = directory.partWeightGramsForFile(filename);
+        LDrawWeightEstimator.Result p = packed.partWeightGramsForFile(filename);
+        expectEquals(d.weightGrams(), p.weightGrams());
+        expectEquals(d.shiftedWeightGrams(), p.shiftedWeightGrams());
+        expectEquals(directory.dependencyDigest(filename),
+            packed.dependencyDigest(filename));
+      }
+    }
+  }
+
+  private static void testInvalidPacks(File ldrawDir, File pack) throws IOException {
+    byte[] bytes = Files.readAllBytes(pack.toPath());
+    // Cut in the data.
+    expectTrue(isRejected(ldrawDir, Arrays.copyOf(bytes, bytes.length - 10)));
+    // Cut in the index.
+    expectTrue(isRejected(ldrawDir, Arrays.copyOf(bytes, 20)));
+    byte[] badMagic = Arrays.copyOf(bytes, bytes.length);
+    badMagic[0] ^= 1;
+    expectTrue(isRejected(ldrawDir, badMagic));
+    expectFalse(isRejected(ldrawDir, bytes));
+  }
+
+  // Returns true if loading the bytes as a pack fails with an IOException.
+  private static boolean isRejected(File ldrawDir, byte[] bytes) throws IOException {
+    File pack = new File(ldrawDir, "invalid.pack");
+    pack.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(pack);
+    try {
+      fos.write(bytes);
+    }
+    finally {
+      fos.close();
+    }
+    try {
+      LDrawLibrary.forLDrawPath(pack.getPath());
+      return false;
+    }
+    catch (IOException e) {
+      return true;
+    }
+  }
+
+  private static LDrawWeightEstimator estimator(
+      File ldrawPath, LDrawWeightEstimator.Mode mode) throws IOException {
+    return new LDrawWeightEstimator(ldrawPath.getPath(),
+        new LDrawGeometryCache(LDrawGeometryCache.DEFAULT_MAX_SIZE_BYTES), mode);
+  }
+}
@@ -0,0 +1,242 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.offline;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import com.brickmesh.util.TestCase;
+
+final class LDrawWeightEstimatorTest extends TestCase {
+  public static void main(String[] args) throws IOException {
+    File ldrawDir = createLibrary();
+    testSubFileBeforeTriangles(ldrawDir);
+    testModesAgree(ldrawDir);
+    testResultCache(ldrawDir);
+    testDependencyDigest(ldrawDir);
+  }
+
+  // A cube of 20 LDU, 0.8 cm.
+  static final double CUBE_GRAMS = 0.8 * 0.8 * 0.8 * 1.052;
+
+  private static void testSubFileBeforeTriangles(File ldrawDir)
+      throws IOException {
+    // The sub-file fills most of the initial buffer, the triangles of the
+    // part come after it.
+    for (LDrawWeightEstimator.Mode mode : LDrawWeightEstimator.Mode.values()) {
+      LDrawWeightEstimator estimator = estimator(ldrawDir, mode);
+      expectEquals(CUBE_GRAMS,
+          estimator.partWeightGramsForFile("sub.dat").weightGrams());
+      expectEquals(CUBE_GRAMS,
+          estimator.partWeightGramsForFile("own.dat").weightGrams());
+      expectEquals(2 * CUBE_GRAMS,
+          estimator.partWeightGramsForFile("top.dat").weightGrams());
+      expectEquals(2 * CUBE_GRAMS,
+          estimator.partWeightGramsForFile("rotated.dat").weightGrams());
+    }
+  }
+
+  private static void testModesAgree(File ldrawDir) throws IOException {
+    LDrawWeightEstimator materialized = estimator(
+        ldrawDir, LDrawWeightEstimator.Mode.MATERIALIZED);
+    LDrawWeightEstimator analytic = estimator(
+        ldrawDir, LDrawWeightEstimator.Mode.ANALYTIC);
+    for (String filename : new String[] { "sub.dat", "top.dat", "rotated.dat" }) {
+      LDrawWeightEstimator.Result m = materialized.partWeightGramsForFile(filename);
+      LDrawWeightEstimator.Result a = analytic.partWeightGramsForFile(filename);
+      expectEquals(m.weightGrams(), a.weightGrams());
+      expectEquals(m.shiftedWeightGrams(), a.shiftedWeightGrams());
+    }
+  }
+
+  private static void testResultCache(File ldrawDir) throws IOException {
+    File cacheFile = new File(ldrawDir, "weights.cache");
+    cacheFile.deleteOnExit();
+    LDrawWeightCache cache = LDrawWeightCache.load(cacheFile);
+    LDrawWeightEstimator materialized = estimator(
+        ldrawDir, LDrawWeightEstimator.Mode.MATERIALIZED);
+    materialized.setResultCache(cache);
+    String digest = materialized.dependencyDigest("top.dat");
+    cache.put(LDrawWeightEstimator.Mode.MATERIALIZED, "top.dat", digest,
+        new LDrawWeightEstimator.Result(1.0, 1.0));
+    expectEquals(1.0, materialized.partWeightGramsForFile("top.dat").weightGrams());
+
+    // The other mode does not see the result of the first one.
+    LDrawWeightEstimator analytic = estimator(
+        ldrawDir, LDrawWeightEstimator.Mode.ANALYTIC);
+    analytic.setResultCache(cache);
+    expectEquals(2 * CUBE_GRAMS,
+        analytic.partWeightGramsForFile("top.dat").weightGrams());
+    expectEquals(1.0, materialized.partWeightGramsForFile("top.dat").weightGrams());
+
+    // Both survive saving.
+    cache.save();
+    cache = LDrawWeightCache.load(cacheFile);
+    expectEquals(1.0, cache.getOrNull(
+        LDrawWeightEstimator.Mode.MATERIALIZED, "top.dat", digest).weightGrams());
+    expectEquals(2 * CUBE_GRAMS, cache.getOrNull(
+        LDrawWeightEstimator.Mode.ANALYTIC, "top.dat", digest).weightGrams());
+
+    // A hit only hashes the files, it does not parse them.
+    LDrawGeometryCache geometryCache =
+        new LDrawGeometryCache(LDrawGeometryCache.DEFAULT_MAX_SIZE_BYTES);
+    LDrawWeightEstimator warm = new LDrawWeightEstimator(ldrawDir.getPath(),
+        geometryCache, LDrawWeightEstimator.Mode.MATERIALIZED);
+    warm.setResultCache(cache);
+    expectEquals(1.0, warm.partWeightGramsForFile("top.dat").weightGrams());
+    expectEquals(0, geometryCache.numMisses());
+
+    // Filenames may contain spaces.
+    cache.put(LDrawWeightEstimator.Mode.ANALYTIC, "a b.dat", digest,
+        new LDrawWeightEstimator.Result(3.0, 4.0));
+    cache.save();
+    cache = LDrawWeightCache.load(cacheFile);
+    expectEquals(4.0, cache.getOrNull(
+        LDrawWeightEstimator.Mode.ANALYTIC, "a b.dat", digest).shiftedWeightGrams());
+    expectEquals(1.0, cache.getOrNull(
+        LDrawWeightEstimator.Mode.MATERIALIZED, "top.dat", digest).weightGrams());
+
+    // Files of an older version are ignored.
+    PrintStream old = new PrintStream(new FileOutputStream(cacheFile));
+    old.println("# LDraw weight estimates, see LDrawWeightCache.");
+    old.println("top.dat " + digest + " 1.0 1.0");
+    old.close();
+    cache = LDrawWeightCache.load(cacheFile);
+    expectEquals(null, cache.getOrNull(
+        LDrawWeightEstimator.Mode.MATERIALIZED, "top.dat", digest));
+  }
+
+  private static void testDependencyDigest(File ldrawDir) throws IOException {
+    File partsDir = new File(ldrawDir, "PARTS");
+    PrintStream leaf = createFile(partsDir, "leaf.dat");
+    writeCube(leaf, 0, 1);
+    leaf.close();
+    PrintStream part = createFile(partsDir, "part.dat");
+    part.println("0 A comment");
+    part.println("1 16 0 0 0 1 0 0 0 1 0 0 0 1 leaf.dat");
+    part.close();
+    String digest = estimator(ldrawDir, LDrawWeightEstimator.Mode.ANALYTIC)
+        .dependencyDigest("part.dat");
+    expectEquals(digest, estimator(ldrawDir, LDrawWeightEstimator.Mode.ANALYTIC)
+        .dependencyDigest("part.dat"));
+
+    // Changing only the included file changes the digest.
+    leaf = createFile(partsDir, "leaf.dat");
+    writeCube(leaf, 20, 1);
+    leaf.close();
+    expectFalse(digest.equals(estimator(ldrawDir, LDrawWeightEstimator.Mode.ANALYTIC)
+        .dependencyDigest("part.dat")));
+  }
+
+  private static LDrawWeightEstimator estimator(
+      File ldrawDir, LDrawWeightEstimator.Mode mode) throws IOException {
+    return new LDrawWeightEstimator(ldrawDir.getPath(),
+        new LDrawGeometryCache(LDrawGeometryCache.DEFAULT_MAX_SIZE_BYTES), mode);
+  }
+
+  static File createLibrary() throws IOException {
+    File ldrawDir = Files.createTempDirectory("ldraw").toFile();
+    ldrawDir.deleteOnExit();
+    File partsDir = new File(ldrawDir, "PARTS");
+    partsDir.mkdir();
+    partsDir.deleteOnExit();
+
+    // 972 triangles.
+    PrintStream sub = createFile(partsDir, "sub.dat");
+    writeCube(sub, 0, 9);
+    sub.close();
+
+    // 108 triangles at x = 40.
+    PrintStream own = createFile(partsDir, "own.dat");
+    writeCube(own, 40, 3);
+    own.close();
+
+    PrintStream top = createFile(partsDir, "top.dat");
+    top.println("1 16 0 0 0 1 0 0 0 1 0 0 0 1 sub.dat");
+    writeCube(top, 40, 3);
+    top.close();
+
+    // Rotated by 90 degrees around y, so it is still axis aligned.
+    PrintStream rotated = createFile(partsDir, "rotated.dat");
+    rotated.println("1 16 0 0 0 0 0 1 0 1 0 -1 0 0 sub.dat");
+    writeCube(rotated, 40, 3);
+    rotated.close();
+    return ldrawDir;
+  }
+
+  static PrintStream createFile(File dir, String name)
+      throws IOException {
+    File file = new File(dir, name);
+    file.deleteOnExit();
+    return new PrintStream(new FileOutputStream(file));
+  }
+
+  // Writes a closed cube of 20 LDU from (x, 0, 0), each face split into
+  // n * n squares of two triangles.
+  static void writeCube(PrintStream out, double x, int n) {
+    final double s = 20.0;
+    // The origin and the two edges of each face.
+    double[][] faces = {
+      { 0, 0, 0,   0, s, 0,   s, 0, 0 },
+      { 0, 0, s,   s, 0, 0,   0, s, 0 },
+      { 0, 0, 0,   0, 0, s,   0, s, 0 },
+      { s, 0, 0,   0, s, 0,   0, 0, s },
+      { 0, 0, 0,   s, 0, 0,   0, 0, s },
+      { 0, s, 0,   0, 0, s,   s, 0, 0 },
+    };
+    for (double[] f : faces) {
+      for (int i = 0; i < n; ++i) {
+        for (int j = 0; j < n; ++j) {
+          double[] p00 = facePoint(f, x, (double)i / n, (double)j / n);
+          double[] p10 = facePoint(f, x, (double)(i + 1) / n, (double)j / n);
+          double[] p11 = facePoint(f, x, (double)(i + 1) / n, (double)(j + 1) / n);
+          double[] p01 = facePoint(f, x, (double)i / n, (double)(j + 1) / n);
+          writeTriangle(out, p00, p10, p11);
+          writeTriangle(out, p00, p11, p01);
+        }
+      }
+    }
+  }
+
+  private static double[] facePoint(double[] f, double x, double u, double v) {
+    return new double[] {
+      x + f[0] + u * f[3] + v * f[6],
+      f[1] + u * f[4] + v * f[7],
+      f[2] + u * f[5] + v * f[8],
+    };
+  }
+
+  private static void writeTriangle(PrintStream out,
+      double[] p1, double[] p2, double[] p3) {
+    out.format("3 16 %s %s %s %s %s %s %s %s %s\n",
+        p1[0], p1[1], p1[2], p2[0], p2[1], p2[2], p3[0], p3[1], p3[2]);
+  }
+}
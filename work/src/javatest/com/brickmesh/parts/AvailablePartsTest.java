@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.brickmesh.util.TestCase;
+
+class AvailablePartsTest extends TestCase {
+  public static void main(String[] args) throws IOException {
+    testLookup();
+    testBinary();
+    testDefault();
+  }
+
+  private static void testLookup() throws IOException {
+    AvailableParts availableParts = createAvailableParts();
+    checkAvailableParts(availableParts);
+  }
+
+  private static void testBinary() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    createAvailableParts().writeBinary(output);
+    AvailableParts availableParts = AvailableParts.loadBinary(
+        new ByteArrayInputStream(output.toByteArray()));
+    checkAvailableParts(availableParts);
+
+    byte[] bytes = output.toByteArray();
+    bytes[0] = 'X';
+    try {
+      AvailableParts.loadBinary(new ByteArrayInputStream(bytes));
+      expectTrue(false);
+    }
+    catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  private static void testDefault() {
+    AvailableParts availableParts = AvailableParts.getDefault();
+    expectTrue(availableParts.numEntries() > 10000);
+    expectEquals(99L, availableParts.numLots(ItemId.of("b:bb192", "b:11")));
+    expectFalse(availableParts.isAvailable(ItemId.of("b:bb192", "b:12345")));
+    expectTrue(availableParts == AvailableParts.getDefault());
+  }
+
+  private static void checkAvailableParts(AvailableParts availableParts) {
+    expectEquals(4, availableParts.numEntries());
+    ItemId brick = ItemId.of("b:3001", "b:5");
+    expectTrue(availableParts.isAvailable(brick));
+    expectEquals(120L, availableParts.numLots(brick));
+    expectEquals(0.05, availableParts.priceUsd(brick, AvailableParts.Condition.USED));
+    expectEquals(0.12, availableParts.priceUsd(brick, AvailableParts.Condition.NEW));
+    ItemId noPrice = ItemId.of("b:3001", "b:11");
+    expectEquals(3L, availableParts.numLots(noPrice));
+    expectTrue(Double.isNaN(availableParts.priceUsd(noPrice, AvailableParts.Condition.NEW)));
+
+    ItemId missingColor = ItemId.of("b:3005", "b:11");
+    expectFalse(availableParts.isAvailable(missingColor));
+    expectEquals(0L, availableParts.numLots(missingColor));
+    expectTrue(Double.isNaN(availableParts.priceUsd(missingColor, AvailableParts.Condition.USED)));
+    expectFalse(availableParts.isAvailable(ItemId.of("b:9999", "b:5")));
+
+    int index = availableParts.entryIndex(ItemId.of("b:3005", "b:1"));
+    expectEquals("b:3005", availableParts.partId(index));
+    expectEquals("b:1", availableParts.colorId(index));
+    expectEquals(7L, availableParts.numLots(index));
+  }
+
+  private static AvailableParts createAvailableParts() throws IOException {
+    return AvailableParts.loadText(new StringReader(
+        "part {\n" +
+        "  id: \"b:3001\"\n" +
+        "  color { color: \"b:5\" num_lots: 120 used_price_usd: 0.05 new_price_usd: 0.12 }\n" +
+        "  color { color: \"b:11\" num_lots: 3 }\n" +
+        "}\n" +
+        "part {\n" +
+        "  id: \"b:3005\"\n" +
+        "  color { color: \"b:5\" num_lots: 50 }\n" +
+        "  color { color: \"b:1\" num_lots: 7 }\n" +
+        "}\n"));
+  }
+};
@@ -27,12 +27,18 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.parts;
 
+import java.util.Random;
+
 import com.brickmesh.util.TestCase;
 
 class ItemIdTest extends TestCase {
   public static void main(String[] args) {
     testSimple();
     testWithoutNamespace();
+    testInterned();
+    testNamespace();
+    testIdPieces();
+    testCompare();
   }
 
   private static void testSimple() {
@@ -48,4 +54,54 @@ class ItemIdTest extends TestCase {
     expectEquals(itemId1, itemId2);
     expectEquals(itemId1.hashCode(), itemId2.hashCode());
   }
-};
\ No newline at end of file
+
+  private static void testInterned() {
+    ItemId itemId1 = ItemId.of("b:12", "b:5");
+    ItemId itemId2 = ItemId.of(new String("b:12"), new String("b:5"));
+    expectTrue(itemId1 == itemId2);
+    expectEquals(itemId1, new ItemId("b:12", "b:5"));
+    expectEquals(itemId1.hashCode(), new ItemId("b:12", "b:5").hashCode());
+    expectFalse(itemId1 == ItemId.of("b:12", "b:6"));
+  }
+
+  private static void testNamespace() {
+    ItemId itemId = new ItemId("b:3005", "l:21");
+    expectTrue(itemId.isPartInNamespace("b"));
+    expectFalse(itemId.isPartInNamespace("l"));
+    expectFalse(itemId.isPartInNamespace("bl"));
+    expectTrue(itemId.isColorInNamespace("l"));
+    expectEquals("3005", itemId.partLocalId());
+    expectEquals("21", itemId.colorLocalId());
+    expectEquals("3005", new ItemId("3005", "21").partLocalId());
+  }
+
+  private static void testIdPieces() {
+    expectEquals(new String[] { "b", "3005" }, ItemId.idPiecesOrNull("b:3005"));
+    expectEquals(null, ItemId.idPiecesOrNull("3005"));
+    expectEquals(null, ItemId.idPiecesOrNull("b:"));
+    expectEquals(null, ItemId.idPiecesOrNull("b:1:2"));
+  }
+
+  private static void testCompare() {
+    Random random = new Random(1);
+    String chars = "ab:0123\u00e9\u4e00";
+    for (int iter = 0; iter < 10000; ++iter) {
+      ItemId itemId1 = new ItemId(randomId(random, chars), randomId(random, chars));
+      ItemId itemId2 = new ItemId(randomId(random, chars), randomId(random, chars));
+      int expected = itemId1.partId().compareTo(itemId2.partId());
+      if (expected == 0) {
+        expected = itemId1.colorId().compareTo(itemId2.colorId());
+      }
+      expectEquals(Integer.signum(expected), Integer.signum(itemId1.compareTo(itemId2)));
+    }
+  }
+
+  private static String randomId(Random random, String chars) {
+    StringBuilder sb = new StringBuilder();
+    int length = random.nextInt(10);
+    for (int i = 0; i < length; ++i) {
+      sb.append(chars.charAt(random.nextInt(chars.length())));
+    }
+    return sb.toString();
+  }
+};
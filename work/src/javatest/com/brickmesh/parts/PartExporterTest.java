@@ -0,0 +1,270 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import com.google.protobuf.CodedOutputStream;
+
+import com.brickmesh.util.TestCase;
+
+class PartExporterTest extends TestCase {
+  public static void main(String[] args) throws IOException {
+    testWantedList();
+    testWantedListOptions();
+    testCsvList();
+    testChannel();
+    testSmallBuffer();
+    testBinary();
+    testBinaryWrongWireType();
+    testJson();
+    testInvalidIds();
+  }
+
+  private static void testWantedList() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PartExporter.exportToWantedList(createItems(), output, null);
+    expectEquals(lines(
+        "<INVENTORY>",
+        " <ITEM>",
+        "  <ITEMTYPE>P</ITEMTYPE>",
+        "  <ITEMID>3001</ITEMID>",
+        "  <COLOR>5</COLOR>",
+        "  <MINQTY>12</MINQTY>",
+        "  <CONDITION>N</CONDITION>",
+        "  <NOTIFY>N</NOTIFY>",
+        " </ITEM>",
+        " <ITEM>",
+        "  <ITEMTYPE>P</ITEMTYPE>",
+        "  <ITEMID>3005</ITEMID>",
+        "  <COLOR>11</COLOR>",
+        "  <MINQTY>1</MINQTY>",
+        "  <CONDITION>N</CONDITION>",
+        "  <NOTIFY>N</NOTIFY>",
+        " </ITEM>",
+        "</INVENTORY>"), output.toString("UTF-8"));
+  }
+
+  private static void testWantedListOptions() throws IOException {
+    TreeMap<ItemId, Integer> items = new TreeMap<ItemId, Integer>();
+    items.put(ItemId.of("b:3005", "b:11"), 1000000);
+    PartExporter.Options options = new PartExporter.Options();
+    options.acceptNew_ = false;
+    options.acceptUsed_ = true;
+    options.notify_ = true;
+    options.wantedListId_ = 42;
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PartExporter.exportToWantedList(items, output, options);
+    expectEquals(lines(
+        "<INVENTORY>",
+        " <ITEM>",
+        "  <ITEMTYPE>P</ITEMTYPE>",
+        "  <ITEMID>3005</ITEMID>",
+        "  <COLOR>11</COLOR>",
+        "  <MINQTY>1000000</MINQTY>",
+        "  <CONDITION>U</CONDITION>",
+        "  <NOTIFY>Y</NOTIFY>",
+        "  <WANTEDLISTID>42  </WANTEDLISTID>",
+        " </ITEM>",
+        "</INVENTORY>"), output.toString("UTF-8"));
+  }
+
+  private static void testCsvList() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PartExporter.exportToCsvList(createItems(), output);
+    expectEquals(lines(
+        "ItemId,PartId,ColorId,Qty",
+        "3001-5,3001,5,12",
+        "3005-11,3005,11,1"), output.toString("UTF-8"));
+  }
+
+  private static void testChannel() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    PartExporter.exportToCsvList(createItems(), expected);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PartExporter.exportToCsvList(createItems(), Channels.newChannel(output));
+    expectEquals(expected.toString("UTF-8"), output.toString("UTF-8"));
+  }
+
+  private static void testSmallBuffer() throws IOException {
+    // Many items through the minimum buffer size, so that it is drained
+    // many times, sometimes in the middle of an item.
+    TreeMap<ItemId, Integer> items = new TreeMap<ItemId, Integer>();
+    for (int i = 0; i < 1000; ++i) {
+      items.put(ItemId.of("b:" + i + "p\u00e9", "b:" + (i % 97)), i + 1);
+    }
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    PartExporter.exportToWantedList(items, expected, null);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ListEncoder encoder = new ListEncoder(output, null, 1);
+    PartExporter.exportToWantedList(items.entrySet().iterator(), encoder, null);
+    encoder.flush();
+    expectEquals(expected.toString("UTF-8"), output.toString("UTF-8"));
+    expectTrue(output.toString("UTF-8").contains("<ITEMID>999p\u00e9</ITEMID>"));
+    expectTrue(output.toString("UTF-8").contains("<MINQTY>1000</MINQTY>"));
+  }
+
+  private static void testBinary() throws IOException {
+    PartModel partModel = PartModel.getModel();
+    UnknownItems unknownItems = new UnknownItems();
+    unknownItems.addUnmappableItem(ItemId.of("l:3005", "l:21"), 3);
+    unknownItems.addUnknownItem(ItemId.of("l:99999", "l:21"), false, true, 2);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PartExporter.exportToBinary(partModel, createItems(), unknownItems, output);
+
+    BinaryListReader reader = new BinaryListReader(
+        new ByteArrayInputStream(output.toByteArray()));
+    expectTrue(reader.next());
+    expectEquals(ItemId.of("b:3001", "b:5"), reader.itemId());
+    expectEquals(12, reader.count());
+    expectEquals(12 * partModel.findPartOrNull("b:3001").weightGrams_,
+        reader.weightGrams());
+    expectEquals(PartExporter.LineStatus.EXPORTED, reader.status());
+    expectTrue(reader.next());
+    expectEquals(ItemId.of("b:3005", "b:11"), reader.itemId());
+    expectEquals(1, reader.count());
+    expectTrue(reader.next());
+    expectEquals(ItemId.of("l:3005", "l:21"), reader.itemId());
+    expectEquals(3, reader.count());
+    expectEquals(3 * partModel.findPartOrNull("l:3005").weightGrams_,
+        reader.weightGrams());
+    expectEquals(PartExporter.LineStatus.UNMAPPABLE, reader.status());
+    expectTrue(reader.next());
+    expectEquals(ItemId.of("l:99999", "l:21"), reader.itemId());
+    expectEquals(2, reader.count());
+    expectEquals(0.0, reader.weightGrams());
+    expectEquals(PartExporter.LineStatus.UNKNOWN, reader.status());
+    expectFalse(reader.next());
+  }
+
+  private static void testBinaryWrongWireType() throws IOException {
+    // Known fields with another wire type are skipped like unknown ones.
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(record);
+    output.writeString(BinaryListWriter.PART_ID_FIELD, "b:3001");
+    output.writeInt32(BinaryListWriter.COLOR_ID_FIELD, 7);
+    output.writeString(BinaryListWriter.COLOR_ID_FIELD, "b:5");
+    output.writeString(BinaryListWriter.COUNT_FIELD, "12345");
+    output.writeInt32(BinaryListWriter.COUNT_FIELD, 12);
+    output.writeFixed32(BinaryListWriter.WEIGHT_GRAMS_FIELD, 1);
+    output.writeString(BinaryListWriter.STATUS_FIELD, "x");
+    output.writeEnum(BinaryListWriter.STATUS_FIELD,
+        PartExporter.LineStatus.EXPORTED.number_);
+    output.flush();
+    ByteArrayOutputStream list = new ByteArrayOutputStream();
+    output = CodedOutputStream.newInstance(list);
+    output.writeUInt32NoTag(record.size());
+    output.writeRawBytes(record.toByteArray());
+    output.flush();
+
+    BinaryListReader reader = new BinaryListReader(
+        new ByteArrayInputStream(list.toByteArray()));
+    expectTrue(reader.next());
+    expectEquals(new ItemId("b:3001", "b:5"), reader.itemId());
+    expectEquals(12, reader.count());
+    expectEquals(0.0, reader.weightGrams());
+    expectEquals(PartExporter.LineStatus.EXPORTED, reader.status());
+    expectFalse(reader.next());
+  }
+
+  private static void testJson() throws IOException {
+    TreeMap<ItemId, Integer> items = new TreeMap<ItemId, Integer>();
+    items.put(ItemId.of("b:3001", "b:5"), 2);
+    UnknownItems unknownItems = new UnknownItems();
+    unknownItems.addUnknownItem(ItemId.of("l:a\"b", "l:21"), false, true, 1);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PartExporter.exportToJson(PartModel.getModel(), items, unknownItems, output);
+    String weight = String.format(Locale.US, "%.3f",
+        2 * PartModel.getModel().findPartOrNull("b:3001").weightGrams_);
+    expectEquals(lines(
+        "{\"items\":[",
+        "{\"partId\":\"b:3001\",\"colorId\":\"b:5\",\"count\":2," +
+        "\"weightGrams\":" + weight + ",\"status\":\"exported\"},",
+        "{\"partId\":\"l:a\\\"b\",\"colorId\":\"l:21\",\"count\":1," +
+        "\"status\":\"unknown\"}",
+        "]}"), output.toString("UTF-8"));
+
+    output = new ByteArrayOutputStream();
+    PartExporter.exportToJson(PartModel.getModel(), new TreeMap<ItemId, Integer>(),
+        null, output);
+    expectEquals(lines("{\"items\":[]}"), output.toString("UTF-8"));
+  }
+
+  private static void testInvalidIds() throws IOException {
+    expectFalse(isRejected(new ItemId("b:3001", "b:5")));
+    expectTrue(isRejected(new ItemId("l:3001", "b:5")));
+    expectTrue(isRejected(new ItemId("b:", "b:5")));
+    expectTrue(isRejected(new ItemId("b:3001:2", "b:5")));
+    expectTrue(isRejected(new ItemId("3001", "b:5")));
+    expectTrue(isRejected(new ItemId("b:3001", "l:5")));
+    expectTrue(isRejected(new ItemId("b:3001", "b:")));
+    expectTrue(isRejected(new ItemId("b:3001", "b:1:2")));
+  }
+
+  // Returns true if both the wanted list and the CSV export reject the item.
+  private static boolean isRejected(ItemId itemId) throws IOException {
+    TreeMap<ItemId, Integer> items = new TreeMap<ItemId, Integer>();
+    items.put(itemId, 1);
+    int numRejected = 0;
+    try {
+      PartExporter.exportToWantedList(items, new ByteArrayOutputStream(), null);
+    }
+    catch (AssertionError e) {
+      ++numRejected;
+    }
+    try {
+      PartExporter.exportToCsvList(items, new ByteArrayOutputStream());
+    }
+    catch (AssertionError e) {
+      ++numRejected;
+    }
+    expectTrue(numRejected != 1);
+    return numRejected == 2;
+  }
+
+  private static TreeMap<ItemId, Integer> createItems() {
+    TreeMap<ItemId, Integer> items = new TreeMap<ItemId, Integer>();
+    items.put(ItemId.of("b:3005", "b:11"), 1);
+    items.put(ItemId.of("b:3001", "b:5"), 12);
+    return items;
+  }
+
+  private static String lines(String... lines) {
+    StringBuilder sb = new StringBuilder();
+    for (String line : lines) {
+      sb.append(line);
+      sb.append(System.lineSeparator());
+    }
+    return sb.toString();
+  }
+};
@@ -27,10 +27,15 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.parts;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import com.brickmesh.util.TestCase;
 
@@ -40,6 +45,13 @@ class PartLoaderTest extends TestCase {
     testLoadEmptyLxf();
     testLoadSimpleLxf();
     testLoadWanted();
+    testLoadLDraw();
+    testLoadLDrawRepeatedSubModels();
+    testEntryLimit();
+    testCompressedBytesLimit();
+    testUncompressedBytesLimit();
+    testElementDepthLimit();
+    testParseTimeLimit();
   }
 
   private static void testLoadEmptyLxf()
@@ -103,4 +115,139 @@ class PartLoaderTest extends TestCase {
     expected.put(new ItemId("b:3023", "b:5"), 4);
     expectEquals(actual, expected);
   }
-};
\ No newline at end of file
+
+  private static void testLoadLDraw()
+      throws IOException, PartLoader.LoaderException {
+    PartLoader.LDrawLoader loader = new PartLoader().createLDrawLoader(
+        PartLoader.Options.createUnlimited());
+    loader.parse(new FileInputStream("src/testdata/test-submodels.mpd"));
+    PartLoader.Result result = loader.getResult();
+    expectTrue(!result.isEmpty());
+    RequiredItems items = result.items_;
+    UnknownItems unknownItems = result.unknownItems_;
+    expectEquals(null, unknownItems.unknownPartIdsOrNull());
+    expectEquals(null, unknownItems.unknownColorIdsOrNull());
+
+    TreeMap<ItemId, Integer> actual = items.exportToNamespace("b", null);
+    TreeMap<ItemId, Integer> expected = new TreeMap<ItemId, Integer>();
+    expected.put(new ItemId("b:3005", "b:1"), 2);
+    expected.put(new ItemId("b:3005", "b:5"), 6);
+    expected.put(new ItemId("b:3005", "b:7"), 1);
+    expectEquals(actual, expected);
+  }
+
+  private static void testLoadLDrawRepeatedSubModels()
+      throws IOException, PartLoader.LoaderException {
+    // Each level places the one below twice, so the expanded model has
+    // 2^30 bricks. This must not be expanded brick by brick.
+    final int LEVELS = 30;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < LEVELS; ++i) {
+      sb.append("0 FILE level" + i + ".ldr\n");
+      for (int j = 0; j < 2; ++j) {
+        sb.append("1 16 0 0 0 1 0 0 0 1 0 0 0 1 ");
+        sb.append(i + 1 < LEVELS ? "level" + (i + 1) + ".ldr\n" : "3005.dat\n");
+      }
+    }
+    sb.insert(0, "0 FILE main.ldr\n1 14 0 0 0 1 0 0 0 1 0 0 0 1 level0.ldr\n");
+
+    PartLoader.LDrawLoader loader = new PartLoader().createLDrawLoader(
+        PartLoader.Options.createUnlimited());
+    loader.parse(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")));
+    TreeMap<ItemId, Integer> actual =
+        loader.getResult().items_.exportToNamespace("b", null);
+    TreeMap<ItemId, Integer> expected = new TreeMap<ItemId, Integer>();
+    expected.put(new ItemId("b:3005", "b:3"), 1 << LEVELS);
+    expectEquals(actual, expected);
+
+    loader = new PartLoader().createLDrawLoader(
+        PartLoader.Options.createLimited());
+    try {
+      loader.parse(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")));
+      expectTrue(false);
+    }
+    catch (PartLoader.LoaderException ex) {
+      expectEquals(PartLoader.Limit.TOTAL_ITEMS, ex.limitOrNull());
+    }
+  }
+
+  private static void testEntryLimit() throws IOException {
+    PartLoader.Options options = PartLoader.Options.createLimited();
+    options.maxEntries_ = 2;
+    byte[] lxf = createLxf(3, 0, 10);
+    expectLimit(PartLoader.Limit.ENTRIES, options, lxf);
+  }
+
+  private static void testCompressedBytesLimit() throws IOException {
+    PartLoader.Options options = PartLoader.Options.createLimited();
+    options.maxCompressedBytes_ = 1024;
+    byte[] lxf = createLxf(1, 100000, 10);
+    expectLimit(PartLoader.Limit.COMPRESSED_BYTES, options, lxf);
+  }
+
+  private static void testUncompressedBytesLimit() throws IOException {
+    PartLoader.Options options = PartLoader.Options.createLimited();
+    options.maxUncompressedBytes_ = 10000;
+    options.maxElementDepth_ = Integer.MAX_VALUE;
+    byte[] lxf = createLxf(0, 0, 10000);
+    expectLimit(PartLoader.Limit.UNCOMPRESSED_BYTES, options, lxf);
+  }
+
+  private static void testElementDepthLimit() throws IOException {
+    PartLoader.Options options = PartLoader.Options.createLimited();
+    byte[] lxf = createLxf(0, 0, options.maxElementDepth_ + 1);
+    expectLimit(PartLoader.Limit.ELEMENT_DEPTH, options, lxf);
+
+    lxf = createLxf(0, 0, options.maxElementDepth_ - 1);
+    expectLimit(null, options, lxf);
+  }
+
+  private static void testParseTimeLimit() throws IOException {
+    PartLoader.Options options = PartLoader.Options.createLimited();
+    options.maxParseMillis_ = -1;
+    byte[] lxf = createLxf(0, 0, 10);
+    expectLimit(PartLoader.Limit.PARSE_TIME, options, lxf);
+  }
+
+  private static void expectLimit(PartLoader.Limit limit,
+      PartLoader.Options options, byte[] lxf) throws IOException {
+    PartLoader.LxfLoader loader = new PartLoader().createLxfLoader(options);
+    try {
+      loader.parse(new ByteArrayInputStream(lxf));
+      expectEquals(null, limit);
+    }
+    catch (PartLoader.LoaderException ex) {
+      expectEquals(limit, ex.limitOrNull());
+    }
+  }
+
+  // Creates an LXF with some padding entries before the LXFML and
+  // an LXFML document that contains elements nested 'depth' deep.
+  private static byte[] createLxf(int numPaddingEntries, int paddingSize, int depth)
+      throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ZipOutputStream zos = new ZipOutputStream(bos);
+    Random random = new Random(1);
+    for (int i = 0; i < numPaddingEntries; ++i) {
+      zos.putNextEntry(new ZipEntry("PADDING" + i));
+      byte[] padding = new byte[paddingSize];
+      random.nextBytes(padding);
+      zos.write(padding);
+      zos.closeEntry();
+    }
+    zos.putNextEntry(new ZipEntry("IMAGE100.LXFML"));
+    StringBuilder sb = new StringBuilder();
+    sb.append("<LXFML>");
+    for (int i = 1; i < depth; ++i) {
+      sb.append("<Group>");
+    }
+    for (int i = 1; i < depth; ++i) {
+      sb.append("</Group>");
+    }
+    sb.append("</LXFML>");
+    zos.write(sb.toString().getBytes("UTF-8"));
+    zos.closeEntry();
+    zos.close();
+    return bos.toByteArray();
+  }
+};
@@ -0,0 +1,154 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.brickmesh.util.TestCase;
+
+class PartRecommenderTest extends TestCase {
+  public static void main(String[] args) throws IOException {
+    testSimilar();
+    testConfirm();
+    testParent();
+    testUnmappable();
+    testRanking();
+  }
+
+  private static void testRanking() {
+    // Priced items first, whatever the number of lots, in any input order.
+    PartRecommender.Recommendation a = new PartRecommender.Recommendation(
+        new ItemId("b:a", "b:1"), 1, false, false, 1, 1.0);
+    PartRecommender.Recommendation b = new PartRecommender.Recommendation(
+        new ItemId("b:b", "b:1"), 1, false, false, 5, Double.NaN);
+    PartRecommender.Recommendation c = new PartRecommender.Recommendation(
+        new ItemId("b:c", "b:1"), 1, false, false, 10, 2.0);
+    List<PartRecommender.Recommendation> expected = Arrays.asList(a, c, b);
+    PartRecommender.Recommendation[][] inputs = {
+      { a, b, c }, { a, c, b }, { b, a, c }, { b, c, a }, { c, a, b }, { c, b, a },
+    };
+    for (PartRecommender.Recommendation[] input : inputs) {
+      List<PartRecommender.Recommendation> list =
+          new ArrayList<PartRecommender.Recommendation>(Arrays.asList(input));
+      Collections.sort(list, PartRecommender.RANKING);
+      expectEquals(expected, list);
+    }
+  }
+
+  private static void testSimilar() throws IOException {
+    // bb192 is not sold in blue, its similar part is.
+    PartRecommender recommender = createRecommender(
+        "part { id: \"b:62885\" color { color: \"b:1\" num_lots: 3 } }\n", 2);
+    List<PartRecommender.Recommendation> result =
+        recommender.recommend(ItemId.of("b:bb192", "b:1"), 5);
+    expectEquals(1, result.size());
+    expectEquals(ItemId.of("b:62885", "b:1"), result.get(0).itemId_);
+    expectEquals(1, result.get(0).distance_);
+    expectFalse(result.get(0).needsConfirmation_);
+    expectEquals(3L, result.get(0).numLots_);
+
+    // Not in red.
+    expectEquals(0, recommender.recommend(ItemId.of("b:bb192", "b:5"), 5).size());
+    // Unknown ids.
+    expectEquals(0, recommender.recommend(ItemId.of("b:nopart", "b:1"), 5).size());
+  }
+
+  private static void testConfirm() throws IOException {
+    // x77ac100 needs confirmation to become x77a, which is similar to x77.
+    String available =
+        "part { id: \"b:x77\" color { color: \"b:1\" num_lots: 20 new_price_usd: 0.5 } }\n";
+    ItemId itemId = ItemId.of("b:x77ac100", "b:1");
+    expectEquals(0, createRecommender(available, 1).recommend(itemId, 5).size());
+    List<PartRecommender.Recommendation> result =
+        createRecommender(available, 2).recommend(itemId, 5);
+    expectEquals(1, result.size());
+    expectEquals(ItemId.of("b:x77", "b:1"), result.get(0).itemId_);
+    expectEquals(2, result.get(0).distance_);
+    expectTrue(result.get(0).needsConfirmation_);
+    expectEquals(0.5, result.get(0).priceUsd_);
+
+    // Without confirmation first, even if it has fewer lots.
+    result = createRecommender(
+        "part { id: \"b:x77\" color { color: \"b:1\" num_lots: 2 } }\n" +
+        "part { id: \"b:x77ac100\" color { color: \"b:1\" num_lots: 50 } }\n", 1)
+        .recommend(ItemId.of("b:x77a", "b:1"), 5);
+    expectEquals(2, result.size());
+    expectEquals(ItemId.of("b:x77", "b:1"), result.get(0).itemId_);
+    expectFalse(result.get(0).needsConfirmation_);
+    expectEquals(ItemId.of("b:x77ac100", "b:1"), result.get(1).itemId_);
+    expectTrue(result.get(1).needsConfirmation_);
+    expectEquals(1, createRecommender(available, 2).recommend(
+        ItemId.of("b:x77a", "b:1"), 1).size());
+  }
+
+  private static void testParent() throws IOException {
+    PartRecommender recommender = createRecommender(
+        "part { id: \"b:2429c01\" color { color: \"b:1\" num_lots: 5 } }\n", 1);
+    List<PartRecommender.Recommendation> result =
+        recommender.recommend(ItemId.of("b:2430", "b:1"), 5);
+    expectEquals(1, result.size());
+    expectEquals(ItemId.of("b:2429c01", "b:1"), result.get(0).itemId_);
+    expectTrue(result.get(0).containsPart_);
+  }
+
+  private static void testUnmappable() throws IOException {
+    PartRecommender recommender = createRecommender(
+        "part { id: \"b:62885\" color { color: \"b:1\" num_lots: 3 } }\n", 2);
+    UnknownItems unknownItems = new UnknownItems();
+    unknownItems.addUnmappableItem(ItemId.of("l:55707a", "l:1"), 2);
+    unknownItems.addUnmappableItem(ItemId.of("l:3005", "l:1"), 2);
+    TreeMap<ItemId, List<PartRecommender.Recommendation>> result =
+        recommender.recommendForUnmappable(unknownItems, 5);
+    expectEquals(1, result.size());
+    expectEquals(ItemId.of("b:62885", "b:1"),
+        result.get(ItemId.of("l:55707a", "l:1")).get(0).itemId_);
+
+    TreeMap<ItemId, Integer> items = new TreeMap<ItemId, Integer>();
+    items.put(ItemId.of("b:bb192", "b:1"), 1);
+    items.put(ItemId.of("b:62885", "b:1"), 1);
+    result = recommender.recommendForUnavailable(items, 5);
+    expectEquals(1, result.size());
+    expectTrue(result.containsKey(ItemId.of("b:bb192", "b:1")));
+  }
+
+  private static PartRecommender createRecommender(String availableParts,
+      int maxDistance) throws IOException {
+    PartModel partModel = PartModel.getModel();
+    return new PartRecommender(partModel,
+        new RequiredItems.ExportPreferences(partModel,
+            AvailableParts.loadText(new StringReader(availableParts)),
+            AvailableParts.Condition.NEW),
+        maxDistance);
+  }
+};
@@ -0,0 +1,241 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.brickmesh.offline.LDrawGeometryCache;
+import com.brickmesh.offline.LDrawLibrary;
+import com.brickmesh.offline.LDrawWeightEstimator;
+import com.brickmesh.util.Benchmark;
+import com.brickmesh.util.Util;
+
+// Benchmarks of the steps from an LXF file to an exported list, and of the
+// LDraw weight estimation. Run it from the work directory, optionally with
+// a pattern of the benchmarks to run, see Benchmark.
+final class PipelineBenchmark extends Benchmark {
+  private static final String[] DESIGN_IDS = {
+    "3001", "3003", "3004", "3005", "3010", "3020", "3022", "3023", "3024", "3062"
+  };
+  private static final String[] MATERIAL_IDS = {
+    "1", "21", "23", "24", "26", "194"
+  };
+  private static final String[] LDRAW_STUDS = {
+    "stud.dat", "stud2.dat", "stud3.dat", "stud4.dat", "stud10.dat"
+  };
+
+  public static void main(String args[]) throws Exception {
+    Pattern include = includePattern(args);
+    Options options = Options.fromSystemProperties();
+
+    run(include, "PipelineBenchmark.partModel", new Operation() {
+      public Object run() {
+        return PartModel.getModel(
+            "src/model/color-model.txt", "assets/part-model.txt");
+      }
+    }, options);
+
+    final PartModel partModel = PartModel.getModel();
+    final byte[] smallLxf = readFile("src/testdata/test-simple.lxf");
+    final byte[] mediumLxf = createLxf(1000);
+    final byte[] hugeLxf = createLxf(50000);
+    run(include, "PipelineBenchmark.parseLxfSmall", new Operation() {
+      public Object run() throws Exception {
+        return parseLxf(partModel, smallLxf);
+      }
+    }, options);
+    run(include, "PipelineBenchmark.parseLxfMedium", new Operation() {
+      public Object run() throws Exception {
+        return parseLxf(partModel, mediumLxf);
+      }
+    }, options);
+    run(include, "PipelineBenchmark.parseLxfHuge", new Operation() {
+      public Object run() throws Exception {
+        return parseLxf(partModel, hugeLxf);
+      }
+    }, options);
+
+    // One operation adds all the distinct items of the medium file.
+    final RequiredItems items = parseLxf(partModel, mediumLxf).items_;
+    final ArrayList<RequiredItems.Item> itemList =
+        new ArrayList<RequiredItems.Item>(items.items().values());
+    run(include, "PipelineBenchmark.addItem", new Operation() {
+      public Object run() {
+        RequiredItems result = new RequiredItems(partModel, itemList.size());
+        UnknownItems unknownItems = new UnknownItems();
+        for (RequiredItems.Item item : itemList) {
+          result.addItem("l", item.part_.idInNamespace("l"),
+              item.color_.idInNamespace("l"), item.count_, unknownItems);
+        }
+        return result;
+      }
+    }, options);
+    run(include, "PipelineBenchmark.exportToNamespace", new Operation() {
+      public Object run() {
+        return items.exportToNamespace("b", new UnknownItems());
+      }
+    }, options);
+
+    // Half of each exported item is matched.
+    final TreeMap<ItemId, Integer> exported =
+        items.exportToNamespace("b", new UnknownItems());
+    final HashMap<ItemId, Integer> matches = new HashMap<ItemId, Integer>();
+    for (Map.Entry<ItemId, Integer> entry : exported.entrySet()) {
+      matches.put(entry.getKey(), entry.getValue() / 2);
+    }
+    run(include, "PipelineBenchmark.minusMatches", new Operation() {
+      public Object run() {
+        return items.minusMatches(matches);
+      }
+    }, options);
+    run(include, "PipelineBenchmark.interestingItems", new Operation() {
+      public Object run() {
+        return items.interestingItems("b");
+      }
+    }, options);
+
+    run(include, "PipelineBenchmark.exportToWantedList", new Operation() {
+      public Object run() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PartExporter.exportToWantedList(exported, output, null);
+        return output;
+      }
+    }, options);
+    run(include, "PipelineBenchmark.exportToCsvList", new Operation() {
+      public Object run() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PartExporter.exportToCsvList(exported, output);
+        return output;
+      }
+    }, options);
+
+    // The studs include primitives of the LDraw library, so these need its
+    // path. Cold parses the studs each time, warm only expands the cached
+    // geometry.
+    String ldrawPath = System.getProperty("benchmark.ldrawPath");
+    if (ldrawPath == null || ldrawPath.isEmpty()) {
+      System.err.println(
+          "Skipping LDraw benchmarks, set -Dbenchmark.ldrawPath to run them.");
+      return;
+    }
+    final LDrawLibrary library = LDrawLibrary.forLDrawPath(ldrawPath);
+    run(include, "PipelineBenchmark.ldrawWeightCold", new Operation() {
+      public Object run() throws IOException {
+        LDrawWeightEstimator estimator = new LDrawWeightEstimator(
+            library, new LDrawGeometryCache(LDrawGeometryCache.DEFAULT_MAX_SIZE_BYTES),
+            LDrawWeightEstimator.Mode.MATERIALIZED);
+        return estimateStuds(estimator);
+      }
+    }, options);
+    final LDrawWeightEstimator estimator = new LDrawWeightEstimator(
+        library, new LDrawGeometryCache(LDrawGeometryCache.DEFAULT_MAX_SIZE_BYTES),
+        LDrawWeightEstimator.Mode.MATERIALIZED);
+    run(include, "PipelineBenchmark.ldrawWeightWarm", new Operation() {
+      public Object run() throws IOException {
+        return estimateStuds(estimator);
+      }
+    }, options);
+  }
+
+  private static PartLoader.Result parseLxf(PartModel partModel, byte[] lxf)
+      throws IOException, PartLoader.LoaderException {
+    PartLoader.LxfLoader loader = new PartLoader(partModel).createLxfLoader(
+        PartLoader.Options.createUnlimited());
+    loader.parse(new ByteArrayInputStream(lxf));
+    if (!loader.getResult().unknownItems_.isEmpty()) {
+      throw new IllegalStateException("Unknown items in the benchmark input.");
+    }
+    return loader.getResult();
+  }
+
+  private static LDrawWeightEstimator.Result estimateStuds(
+      LDrawWeightEstimator estimator) throws IOException {
+    LDrawWeightEstimator.Result result = new LDrawWeightEstimator.Result();
+    for (String filename : LDRAW_STUDS) {
+      result.add(estimator.partWeightGramsForFile(filename));
+    }
+    return result;
+  }
+
+  private static byte[] readFile(String path) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    FileInputStream input = new FileInputStream(path);
+    try {
+      Util.copyStream(input, output);
+    }
+    finally {
+      input.close();
+    }
+    return output.toByteArray();
+  }
+
+  // An LXF file with numBricks bricks, the parts and colors cycle through
+  // the lists above.
+  private static byte[] createLxf(int numBricks) throws IOException {
+    StringBuffer sb = new StringBuffer();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n");
+    sb.append("<LXFML versionMajor=\"5\" versionMinor=\"0\" name=\"benchmark\">\n");
+    sb.append("  <Bricks cameraRef=\"0\">\n");
+    for (int i = 0; i < numBricks; ++i) {
+      String designId = DESIGN_IDS[i % DESIGN_IDS.length];
+      String materialId = MATERIAL_IDS[(i / DESIGN_IDS.length) % MATERIAL_IDS.length];
+      sb.append(String.format(
+          "    <Brick refID=\"%d\" designID=\"%s\">\n", i, designId));
+      sb.append(String.format(
+          "      <Part refID=\"%d\" designID=\"%s\" materials=\"%s\">\n",
+          i, designId, materialId));
+      sb.append(String.format(
+          "        <Bone refID=\"%d\" transformation=\"1,0,0,0,1,0,0,0,1,%d,0,0\">\n",
+          i, i));
+      sb.append("        </Bone>\n");
+      sb.append("      </Part>\n");
+      sb.append("    </Brick>\n");
+    }
+    sb.append("  </Bricks>\n");
+    sb.append("</LXFML>\n");
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ZipOutputStream zos = new ZipOutputStream(output);
+    zos.putNextEntry(new ZipEntry("IMAGE100.LXFML"));
+    zos.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    zos.closeEntry();
+    zos.close();
+    return output.toByteArray();
+  }
+};
@@ -0,0 +1,214 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.brickmesh.util.TestCase;
+import com.brickmesh.util.Util;
+
+class ProgressiveLoaderTest extends TestCase {
+  public static void main(String[] args) throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      testLoadSimpleLxf(executor);
+      testLoadTruncatedLxf(executor);
+      testLoadMalformedLxf(executor);
+      testRecordsUnknownItems(executor);
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  // Collects the events, requesting them one by one.
+  private static class CollectingSubscriber implements Flow.Subscriber<ProgressiveLoader.Event> {
+    public void onSubscribe(Flow.Subscription subscription) {
+      subscription_ = subscription;
+      subscription_.request(1);
+    }
+
+    public void onNext(ProgressiveLoader.Event event) {
+      events_.add(event);
+      subscription_.request(1);
+    }
+
+    public synchronized void onError(Throwable throwable) {
+      error_ = throwable;
+      done_ = true;
+      notifyAll();
+    }
+
+    public synchronized void onComplete() {
+      done_ = true;
+      notifyAll();
+    }
+
+    public synchronized void await() throws InterruptedException {
+      while (!done_) {
+        wait();
+      }
+    }
+
+    private Flow.Subscription subscription_;
+    private final ArrayList<ProgressiveLoader.Event> events_ =
+        new ArrayList<ProgressiveLoader.Event>();
+    private Throwable error_;
+    private boolean done_;
+  }
+
+  private static void testLoadSimpleLxf(ExecutorService executor) throws Exception {
+    PartLoader partLoader = new PartLoader();
+    ProgressiveLoader loader = partLoader.createProgressiveLoader(
+        partLoader.createLxfLoader(PartLoader.Options.createLimited()), executor);
+    CollectingSubscriber subscriber = new CollectingSubscriber();
+    loader.subscribe(subscriber);
+
+    byte[] lxf = readFile("src/testdata/test-simple.lxf");
+    for (int i = 0; i < lxf.length; i += 100) {
+      if (!loader.feed(lxf, i, Math.min(100, lxf.length - i))) break;
+    }
+    loader.finish();
+
+    PartLoader.Result result = loader.result().get();
+    subscriber.await();
+    expectEquals(null, subscriber.error_);
+    expectEquals(4, subscriber.events_.size());
+    ProgressiveLoader.Event last = subscriber.events_.get(3);
+    expectEquals(2, last.numUniqueItems_);
+    expectEquals(4, last.numTotalItems_);
+    expectEquals(result.items_.weightEstimateGrams(), last.weightGrams_);
+
+    TreeMap<ItemId, Integer> actual = result.items_.exportToNamespace("b", null);
+    TreeMap<ItemId, Integer> expected = new TreeMap<ItemId, Integer>();
+    expected.put(new ItemId("b:3005", "b:5"), 3);
+    expected.put(new ItemId("b:6019", "b:103"), 1);
+    expectEquals(actual, expected);
+  }
+
+  private static void testLoadTruncatedLxf(ExecutorService executor) throws Exception {
+    PartLoader partLoader = new PartLoader();
+    ProgressiveLoader loader = partLoader.createProgressiveLoader(
+        partLoader.createLxfLoader(PartLoader.Options.createLimited()), executor);
+    CollectingSubscriber subscriber = new CollectingSubscriber();
+    loader.subscribe(subscriber);
+
+    byte[] lxf = readFile("src/testdata/test-simple.lxf");
+    loader.feed(lxf, 0, lxf.length / 2);
+    loader.finish();
+
+    try {
+      loader.result().get();
+      expectTrue(false);
+    }
+    catch (ExecutionException ex) {
+      expectTrue(ex.getCause() instanceof IOException);
+    }
+    subscriber.await();
+    expectTrue(subscriber.error_ != null);
+  }
+
+  private static void testLoadMalformedLxf(ExecutorService executor) throws Exception {
+    PartLoader partLoader = new PartLoader();
+    ProgressiveLoader loader = partLoader.createProgressiveLoader(
+        partLoader.createLxfLoader(PartLoader.Options.createLimited()), executor);
+    CollectingSubscriber subscriber = new CollectingSubscriber();
+    loader.subscribe(subscriber);
+
+    // The part has no color, which the loader fails with an Error.
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ZipOutputStream zos = new ZipOutputStream(bos);
+    zos.putNextEntry(new ZipEntry("IMAGE100.LXFML"));
+    zos.write((
+        "<LXFML versionMajor=\"5\"><Bricks>" +
+        "<Brick refID=\"0\" designID=\"3005\">" +
+        "<Part refID=\"0\" designID=\"3005\"></Part>" +
+        "</Brick></Bricks></LXFML>").getBytes(StandardCharsets.UTF_8));
+    zos.closeEntry();
+    zos.close();
+    byte[] lxf = bos.toByteArray();
+    loader.feed(lxf, 0, lxf.length);
+    loader.finish();
+
+    try {
+      loader.result().get();
+      expectTrue(false);
+    }
+    catch (ExecutionException ex) {
+      expectTrue(ex.getCause() instanceof AssertionError);
+    }
+    subscriber.await();
+    expectTrue(subscriber.error_ instanceof AssertionError);
+  }
+
+  private static void testRecordsUnknownItems(ExecutorService executor) throws Exception {
+    PartLoader partLoader = new PartLoader();
+    ProgressiveLoader loader = partLoader.createProgressiveLoader(
+        partLoader.createLDrawLoader(PartLoader.Options.createLimited()), executor);
+    byte[] ldr = "1 4 0 0 0 1 0 0 0 1 0 0 0 1 nosuchpart42.dat\n"
+        .getBytes(StandardCharsets.UTF_8);
+    loader.feed(ldr, 0, ldr.length);
+    loader.finish();
+    PartLoader.Result result = loader.result().get();
+
+    String partId = result.unknownItems_.unknownPartIdsOrNull().firstKey();
+    boolean found = false;
+    for (Map.Entry<String, Long> entry :
+        UnknownItemsTelemetry.global().topUnknownPartIds(1024)) {
+      if (entry.getKey().equals(partId)) {
+        expectEquals(1L, entry.getValue());
+        found = true;
+      }
+    }
+    expectTrue(found);
+  }
+
+  private static byte[] readFile(String path) throws Exception {
+    FileInputStream fis = new FileInputStream(path);
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      Util.copyStream(fis, bos);
+      return bos.toByteArray();
+    }
+    finally {
+      fis.close();
+    }
+  }
+};
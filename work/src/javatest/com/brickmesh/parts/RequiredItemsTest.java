@@ -27,6 +27,8 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.brickmesh.parts;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -466,6 +468,21 @@ public class RequiredItemsTest extends TestCase {
         unknownItems_.unmappableItemsOrNull());
   }
 
+  public void testExportPartiallyRemovedNonExistentVirtualParts() {
+    RequiredItems items = new RequiredItems(partModel_, 10);
+    expectTrue(items.addItem(
+        "l", "60797", Arrays.asList("26", "43"), 3, unknownItems_));
+    expectTrue(items.removeItem(
+        "l", "60797", Arrays.asList("26", "43"), 1));
+
+    TreeMap<ItemId, Integer> actual = items.exportToNamespace("b", unknownItems_);
+    expectEquals(actual, createItemMap());
+    expectedUnknownItems_.addUnmappableItem(new ItemId("l:60797", "l:26"), 2);
+    expectEquals(
+        expectedUnknownItems_.unmappableItemsOrNull(),
+        unknownItems_.unmappableItemsOrNull());
+  }
+
   public void testInterestingNonExistentVirtualParts() {
     RequiredItems items = new RequiredItems(partModel_, 10);
     expectTrue(items.addItem(
@@ -500,6 +517,161 @@ public class RequiredItemsTest extends TestCase {
     expectEquals(3, minus2.numTotalItems());
   }
 
+  public void testExportSession() {
+    RequiredItems items = new RequiredItems(partModel_, 10);
+    expectTrue(items.addItem("l", "3005", "1", 3, unknownItems_));
+    expectTrue(items.addItem("l", "73983", "1", 2, unknownItems_));
+    expectTrue(items.addItem(
+        "l", "76382",
+        Arrays.asList("21", "21", "21", "24", "24"),
+        2, unknownItems_));
+    TreeMap<ItemId, Integer> full = items.exportToNamespace("b", null);
+
+    RequiredItems.ExportSession session = items.startExportSession("b");
+    expectEquals(full, session.exportedItems());
+
+    // Remove one hinge half: the composite falls apart into its halves.
+    TreeMap<ItemId, Integer> changed = session.applyDeltas("l", Arrays.asList(
+        new RequiredItems.Delta("3005", "1", 2),
+        new RequiredItems.Delta("73983", "1", -1)), unknownItems_);
+    expectEquals(changed, createItemMap(
+        new ItemId("b:3005", "b:1"), 5,
+        new ItemId("b:2429c01", "b:1"), 1));
+    expectEquals(items.exportToNamespace("b", null), session.exportedItems());
+
+    // Remove the minifigs completely.
+    changed = session.applyDeltas("l", Arrays.asList(
+        new RequiredItems.Delta(
+            "76382", Arrays.asList("21", "21", "21", "24", "24"), -2)),
+        unknownItems_);
+    expectEquals(changed, createItemMap(new ItemId("b:973c02", "b:5"), 0));
+    expectEquals(items.exportToNamespace("b", null), session.exportedItems());
+    expectEquals(7, items.numTotalItems());
+
+    // Zero deltas change nothing.
+    changed = session.applyDeltas("l", Arrays.asList(
+        new RequiredItems.Delta("3005", "1", 0),
+        new RequiredItems.Delta("3001", "1", 0)), unknownItems_);
+    expectEquals(changed, createItemMap());
+    expectEquals(items.exportToNamespace("b", null), session.exportedItems());
+    expectEquals(7, items.numTotalItems());
+
+    // Unknown items are reported and do not change the export.
+    changed = session.applyDeltas("l", Arrays.asList(
+        new RequiredItems.Delta("nopart", "1", 1)), unknownItems_);
+    expectEquals(changed, createItemMap());
+    expectEquals(1, (int)unknownItems_.unknownPartIdsOrNull().get("l:nopart"));
+  }
+
+  public void testCostEstimate() throws IOException {
+    AvailableParts availableParts = AvailableParts.loadText(new StringReader(
+        "part {\n" +
+        "  id: \"b:3005\"\n" +
+        "  color { color: \"b:1\" num_lots: 10 used_price_usd: 0.02 new_price_usd: 0.05 }\n" +
+        "}\n"));
+    RequiredItems items = new RequiredItems(partModel_, 10);
+    expectTrue(items.addItem("l", "3005", "1", 3, unknownItems_));
+    expectTrue(items.addItem("l", "3001", "21", 2, unknownItems_));
+
+    RequiredItems.CostEstimate estimate = items.costEstimateUsd(
+        availableParts, AvailableParts.Condition.NEW, null);
+    expectTrue(Math.abs(0.15 - estimate.totalUsd_) < 1e-9);
+    expectEquals(1, estimate.numLinesWithoutPrice_);
+    expectFalse(estimate.hasPriceForAllLines());
+    expectEquals(estimate.itemsWithoutPrice(), createItemMap(
+        new ItemId("b:3001", "b:5"), 2));
+    expectEquals(2, estimate.itemIds_.length);
+    for (int i = 0; i < estimate.itemIds_.length; ++i) {
+      if (estimate.itemIds_[i].equals(new ItemId("b:3005", "b:1"))) {
+        expectEquals(3, estimate.counts_[i]);
+        expectTrue(Math.abs(0.15 - estimate.lineCostUsd_[i]) < 1e-9);
+      } else {
+        expectTrue(Double.isNaN(estimate.lineCostUsd_[i]));
+      }
+    }
+
+    estimate = items.costEstimateUsd(
+        availableParts, AvailableParts.Condition.USED, null);
+    expectTrue(Math.abs(0.06 - estimate.totalUsd_) < 1e-9);
+
+    // The prices mapped once give the same lines as the ids.
+    RequiredItems.ExportPreferences prices = new RequiredItems.ExportPreferences(
+        partModel_, availableParts, AvailableParts.Condition.NEW);
+    estimate = items.costEstimateUsd(prices, null);
+    RequiredItems.CostEstimate byIds = new RequiredItems.CostEstimate(
+        availableParts, AvailableParts.Condition.NEW,
+        items.exportToNamespace("b", null));
+    expectTrue(Math.abs(byIds.totalUsd_ - estimate.totalUsd_) < 1e-9);
+    expectEquals(Arrays.asList(byIds.itemIds_), Arrays.asList(estimate.itemIds_));
+    expectEquals(byIds.counts_, estimate.counts_);
+    expectEquals(byIds.itemsWithoutPrice(), estimate.itemsWithoutPrice());
+  }
+
+  public void testInternsOnlyKnownIds() {
+    RequiredItems items = new RequiredItems(partModel_, 10);
+    UnknownItems unknownItems = new UnknownItems();
+    expectTrue(items.addItem("l", "3005", "1", 1, unknownItems));
+    expectFalse(items.addItem("l", "nopart-interned", "1", 1, unknownItems));
+    ItemId known = items.items().keySet().iterator().next();
+    expectTrue(known == ItemId.of(known.partId(), known.colorId()));
+    // of() would return the same instance if the unknown id was interned.
+    ItemId unknown = unknownItems.unknownItemsOrNull().firstKey();
+    expectEquals(new ItemId("l:nopart-interned", "l:1"), unknown);
+    expectFalse(unknown == ItemId.of(unknown.partId(), unknown.colorId()));
+  }
+
+  public void testCompareEntries() throws IOException {
+    AvailableParts availableParts = AvailableParts.loadText(new StringReader(
+        "part { id: \"b:3001\" color { color: \"b:1\" num_lots: 1 new_price_usd: 1.0 } }\n" +
+        "part { id: \"b:3002\" color { color: \"b:1\" num_lots: 5 } }\n" +
+        "part { id: \"b:3003\" color { color: \"b:1\" num_lots: 10 new_price_usd: 2.0 } }\n"));
+    RequiredItems.ExportPreferences preferences = new RequiredItems.ExportPreferences(
+        partModel_, availableParts, AvailableParts.Condition.NEW);
+    int a = availableParts.entryIndex(ItemId.of("b:3001", "b:1"));
+    int b = availableParts.entryIndex(ItemId.of("b:3002", "b:1"));
+    int c = availableParts.entryIndex(ItemId.of("b:3003", "b:1"));
+    // Priced entries first, then cheaper: a > c > b, which is transitive.
+    expectTrue(preferences.compareEntries(a, c) > 0);
+    expectTrue(preferences.compareEntries(c, b) > 0);
+    expectTrue(preferences.compareEntries(a, b) > 0);
+    expectTrue(preferences.compareEntries(c, a) < 0);
+    expectTrue(preferences.compareEntries(b, c) < 0);
+    expectTrue(preferences.compareEntries(b, a) < 0);
+  }
+
+  public void testExportPreferences() throws IOException {
+    RequiredItems items = new RequiredItems(partModel_, 10);
+    expectTrue(items.addItem("l", "2429", "1", 1, unknownItems_));
+    expectTrue(items.addItem("l", "2430", "1", 1, unknownItems_));
+    expectTrue(items.addItem("l", "55707a", "1", 2, unknownItems_));
+    expectEquals(items.exportToNamespace("b", null), createItemMap(
+        new ItemId("b:2429c01", "b:1"), 1,
+        new ItemId("b:bb192", "b:1"), 2));
+
+    // The hinge is not sold assembled and bb192 is not sold in blue.
+    RequiredItems.ExportPreferences preferences = new RequiredItems.ExportPreferences(
+        partModel_, AvailableParts.loadText(new StringReader(
+            "part { id: \"b:2429\" color { color: \"b:1\" num_lots: 10 } }\n" +
+            "part { id: \"b:2430\" color { color: \"b:1\" num_lots: 10 } }\n" +
+            "part { id: \"b:62885\" color { color: \"b:1\" num_lots: 3 } }\n")),
+        AvailableParts.Condition.NEW);
+    expectEquals(items.exportToNamespace("b", null, preferences), createItemMap(
+        new ItemId("b:2429", "b:1"), 1,
+        new ItemId("b:2430", "b:1"), 1,
+        new ItemId("b:62885", "b:1"), 2));
+
+    // Everything is sold: same as without preferences.
+    preferences = new RequiredItems.ExportPreferences(
+        partModel_, AvailableParts.loadText(new StringReader(
+            "part { id: \"b:2429\" color { color: \"b:1\" num_lots: 10 } }\n" +
+            "part { id: \"b:2430\" color { color: \"b:1\" num_lots: 10 } }\n" +
+            "part { id: \"b:2429c01\" color { color: \"b:1\" num_lots: 5 } }\n" +
+            "part { id: \"b:bb192\" color { color: \"b:1\" num_lots: 3 } }\n")),
+        AvailableParts.Condition.NEW);
+    expectEquals(items.exportToNamespace("b", null, preferences),
+        items.exportToNamespace("b", null));
+  }
+
   public void expectItems(RequiredItems items) {
     expectEquals(expectedItems_, items.items());
     expectEquals(
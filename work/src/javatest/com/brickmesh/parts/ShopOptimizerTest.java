@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import com.brickmesh.util.TestCase;
+
+class ShopOptimizerTest extends TestCase {
+  public static void main(String[] args) throws Exception {
+    testGreedyAndRefine();
+    testUncovered();
+    testPrices();
+    testLoad();
+  }
+
+  private static void testGreedyAndRefine() {
+    // The big shop is picked first by greedy but the two small ones
+    // together are enough.
+    ShopOptimizer.Shop big = createShop("big", null, "3001", "3002", "3003", "3004");
+    ShopOptimizer.Shop small1 = createShop("small1", null, "3001", "3002", "3005");
+    ShopOptimizer.Shop small2 = createShop("small2", null, "3003", "3004", "3010");
+    ShopOptimizer optimizer = new ShopOptimizer(
+        createRequired("3001", "3002", "3003", "3004", "3005", "3010"),
+        Arrays.asList(big, small1, small2), null, AvailableParts.Condition.NEW);
+
+    ShopOptimizer.Solution greedy = optimizer.greedy();
+    expectEquals(0, greedy.numUncoveredItems_);
+    expectEquals(3, greedy.shops_.size());
+    expectTrue(greedy.shops_.get(0) == big);
+
+    ShopOptimizer.Solution refined = optimizer.refine(greedy, 1000);
+    expectEquals(0, refined.numUncoveredItems_);
+    expectEquals(2, refined.shops_.size());
+    expectTrue(refined.shops_.contains(small1));
+    expectTrue(refined.shops_.contains(small2));
+
+    // No budget: the greedy solution stays.
+    expectTrue(optimizer.refine(greedy, 0) == greedy);
+  }
+
+  private static void testUncovered() {
+    ShopOptimizer optimizer = new ShopOptimizer(
+        createRequired("3001", "3002", "3009"),
+        Arrays.asList(createShop("shop", null, "3001", "3002")),
+        null, AvailableParts.Condition.NEW);
+    ShopOptimizer.Solution solution = optimizer.refine(optimizer.greedy(), 1000);
+    expectEquals(1, solution.shops_.size());
+    expectEquals(2, solution.numUncoveredItems_);
+  }
+
+  private static void testPrices() {
+    HashMap<ItemId, Double> cheap = new HashMap<ItemId, Double>();
+    cheap.put(ItemId.of("b:3001", "b:1"), 0.1);
+    HashMap<ItemId, Double> expensive = new HashMap<ItemId, Double>();
+    expensive.put(ItemId.of("b:3001", "b:1"), 0.3);
+    ShopOptimizer.Shop cheapShop = createShop("cheap", cheap, "3001");
+    ShopOptimizer optimizer = new ShopOptimizer(
+        createRequired("3001"),
+        Arrays.asList(createShop("expensive", expensive, "3001"), cheapShop),
+        null, AvailableParts.Condition.NEW);
+    ShopOptimizer.Solution solution = optimizer.greedy();
+    expectEquals(1, solution.shops_.size());
+    expectTrue(solution.shops_.get(0) == cheapShop);
+    expectTrue(Math.abs(solution.costUsd_ - 0.2) < 1e-9);
+  }
+
+  private static void testLoad() throws Exception {
+    String xml =
+        "<INVENTORY>\n" +
+        " <ITEM><ITEMTYPE>P</ITEMTYPE><ITEMID>3001</ITEMID><COLOR>1</COLOR>" +
+        "<MINQTY>5</MINQTY><PRICE>0.25</PRICE></ITEM>\n" +
+        " <ITEM><ITEMTYPE>P</ITEMTYPE><ITEMID>3002</ITEMID><COLOR>1</COLOR>" +
+        "<MINQTY>1</MINQTY><MAXPRICE>-1.0000</MAXPRICE></ITEM>\n" +
+        "</INVENTORY>\n";
+    ShopOptimizer.Shop shop = ShopOptimizer.Shop.load(PartModel.getModel(), "xml",
+        new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    expectEquals(5, (int)shop.items_.get(ItemId.of("b:3001", "b:1")));
+    expectEquals(1, (int)shop.items_.get(ItemId.of("b:3002", "b:1")));
+    expectEquals(0.25, shop.pricesUsd_.get(ItemId.of("b:3001", "b:1")));
+    expectFalse(shop.pricesUsd_.containsKey(ItemId.of("b:3002", "b:1")));
+  }
+
+  private static RequiredItems createRequired(String... partIds) {
+    RequiredItems required = new RequiredItems(PartModel.getModel(), 16);
+    for (String partId : partIds) {
+      expectTrue(required.addItem("b", partId, "1", 2, null));
+    }
+    return required;
+  }
+
+  private static ShopOptimizer.Shop createShop(String name,
+      HashMap<ItemId, Double> prices, String... partIds) {
+    TreeMap<ItemId, Integer> items = new TreeMap<ItemId, Integer>();
+    for (String partId : partIds) {
+      items.put(ItemId.of("b:" + partId, "b:1"), 10);
+    }
+    return new ShopOptimizer.Shop(PartModel.getModel(), name, items, prices);
+  }
+};
@@ -0,0 +1,114 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.parts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+import com.brickmesh.util.TestCase;
+
+class UnknownItemsTelemetryTest extends TestCase {
+  public static void main(String[] args) throws UnsupportedEncodingException {
+    testEmpty();
+    testRecord();
+    testWritePartTemplates();
+  }
+
+  private static void testEmpty() throws UnsupportedEncodingException {
+    UnknownItemsTelemetry telemetry = new UnknownItemsTelemetry(1024, 4, 16);
+    telemetry.record(new UnknownItems());
+    expectEquals(0, telemetry.topUnknownPartIds(10).size());
+    expectEquals(0, telemetry.topUnknownColorIds(10).size());
+    expectEquals(0, telemetry.topUnmappableItems(10).size());
+    expectEquals("", partTemplates(telemetry, 10));
+  }
+
+  private static void testRecord() {
+    UnknownItemsTelemetry telemetry = new UnknownItemsTelemetry(1024, 4, 16);
+    UnknownItems request1 = new UnknownItems();
+    request1.addUnknownItem(new ItemId("l:1", "l:21"), false, true, 3);
+    request1.addUnknownItem(new ItemId("l:2", "l:999"), false, false, 1);
+    request1.addUnmappableItem(new ItemId("l:60797", "l:26"), 2);
+    telemetry.record(request1);
+    UnknownItems request2 = new UnknownItems();
+    request2.addUnknownItem(new ItemId("l:2", "l:21"), false, true, 5);
+    request2.addUnmappableItem(new ItemId("l:60797", "l:26"), 1);
+    telemetry.record(request2);
+
+    List<Map.Entry<String, Long>> partIds = telemetry.topUnknownPartIds(10);
+    expectEquals(2, partIds.size());
+    expectEquals("l:2", partIds.get(0).getKey());
+    expectEquals(6L, partIds.get(0).getValue());
+    expectEquals("l:1", partIds.get(1).getKey());
+    expectEquals(3L, partIds.get(1).getValue());
+    expectEquals(1, telemetry.topUnknownPartIds(1).size());
+
+    List<Map.Entry<String, Long>> colorIds = telemetry.topUnknownColorIds(10);
+    expectEquals(1, colorIds.size());
+    expectEquals("l:999", colorIds.get(0).getKey());
+    expectEquals(1L, colorIds.get(0).getValue());
+
+    List<Map.Entry<ItemId, Long>> unmappable = telemetry.topUnmappableItems(10);
+    expectEquals(1, unmappable.size());
+    expectEquals(new ItemId("l:60797", "l:26"), unmappable.get(0).getKey());
+    expectEquals(3L, unmappable.get(0).getValue());
+  }
+
+  private static void testWritePartTemplates() throws UnsupportedEncodingException {
+    UnknownItemsTelemetry telemetry = new UnknownItemsTelemetry(1024, 4, 16);
+    UnknownItems request = new UnknownItems();
+    request.addUnknownItem(new ItemId("l:1", "l:21"), false, true, 3);
+    request.addUnknownItem(new ItemId("l:2", "l:21"), false, true, 5);
+    telemetry.record(request);
+    expectEquals(
+        "# Seen 5 time(s).\n" +
+        "part {\n" +
+        "  id: \"l:2\"\n" +
+        "}\n" +
+        "\n",
+        partTemplates(telemetry, 1));
+    expectTrue(partTemplates(telemetry, 10).endsWith(
+        "# Seen 3 time(s).\n" +
+        "part {\n" +
+        "  id: \"l:1\"\n" +
+        "}\n" +
+        "\n"));
+  }
+
+  private static String partTemplates(UnknownItemsTelemetry telemetry, int k)
+      throws UnsupportedEncodingException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PrintStream ps = new PrintStream(output, false, "UTF-8");
+    telemetry.writePartTemplates(ps, k);
+    ps.flush();
+    return output.toString("UTF-8").replace(System.lineSeparator(), "\n");
+  }
+}
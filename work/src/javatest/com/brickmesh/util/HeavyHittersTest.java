@@ -0,0 +1,93 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.brickmesh.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+final class HeavyHittersTest extends TestCase {
+  public static void main(String[] args) throws InterruptedException {
+    testEmpty();
+    testTopK();
+    testConcurrent();
+  }
+
+  private static void testEmpty() {
+    HeavyHitters<String> hh = new HeavyHitters<String>(1024, 4, 16);
+    expectEquals(0, hh.topK(10).size());
+    expectEquals(0L, hh.estimate("x"));
+    expectEquals(0L, hh.totalCount());
+  }
+
+  private static void testTopK() {
+    // Keys 0..9 are frequent, the long tail of 100000 keys is seen once.
+    HeavyHitters<String> hh = new HeavyHitters<String>(4096, 4, 64);
+    Random random = new Random(1);
+    for (int i = 0; i < 100000; ++i) {
+      hh.add("tail" + i, 1);
+      if (random.nextInt(10) == 0) {
+        int key = random.nextInt(10);
+        hh.add("key" + key, 100 - key);
+      }
+    }
+    List<Map.Entry<String, Long>> top = hh.topK(10);
+    expectEquals(10, top.size());
+    for (Map.Entry<String, Long> entry : top) {
+      expectTrue(entry.getKey().startsWith("key"));
+    }
+    expectTrue(top.get(0).getValue() >= top.get(9).getValue());
+    expectTrue(hh.estimate("tail1") >= 1);
+  }
+
+  private static void testConcurrent() throws InterruptedException {
+    final HeavyHitters<Integer> hh = new HeavyHitters<Integer>(1024, 4, 16);
+    final int NUM_THREADS = 4;
+    final int NUM_ADDS = 10000;
+    Thread[] threads = new Thread[NUM_THREADS];
+    for (int t = 0; t < NUM_THREADS; ++t) {
+      final int seed = t;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          Random random = new Random(seed);
+          for (int i = 0; i < NUM_ADDS; ++i) {
+            hh.add(7, 1);
+            hh.add(1000 + random.nextInt(100000), 1);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    expectEquals(2L * NUM_THREADS * NUM_ADDS, hh.totalCount());
+    expectTrue(hh.estimate(7) >= NUM_THREADS * NUM_ADDS);
+    expectEquals(7, hh.topK(1).get(0).getKey());
+  }
+}
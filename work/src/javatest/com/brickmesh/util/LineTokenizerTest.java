@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2016, Peter Dornbach
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name BrickMesh nor the names of its contributors may be used
+      to endorse or promote products derived from this software without
+      specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.brickmesh.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+final class LineTokenizerTest extends TestCase {
+  public static void main(String[] args) throws IOException {
+    testTokens();
+    testDoubles();
+    testDoublesMatchParseDouble();
+    testByteBuffer();
+  }
+
+  private static void testTokens() throws IOException {
+    LineTokenizer t = tokenizer("  1 16 a.dat\r\n\n0 BFC\n10 x");
+    expectTrue(t.nextLine());
+    expectEquals(1, t.nextDigitToken());
+    expectFalse(t.nextTokenEquals("1"));
+    expectEquals("16", t.nextTokenOrNull());
+    expectEquals("a.dat", t.nextTokenOrNull());
+    expectEquals(null, t.nextTokenOrNull());
+    expectTrue(t.nextLine());
+    expectEquals(2, t.lineNumber());
+    expectEquals(-1, t.nextDigitToken());
+    expectTrue(t.nextLine());
+    expectEquals(0, t.nextDigitToken());
+    expectTrue(t.nextTokenEquals("BFC"));
+    expectFalse(t.hasToken());
+    expectTrue(t.nextLine());
+    expectEquals(-1, t.nextDigitToken());
+    expectEquals("10", t.nextTokenOrNull());
+    expectFalse(t.nextLine());
+  }
+
+  private static void testDoubles() throws IOException {
+    LineTokenizer t = tokenizer("3 1 -0.5 .25 2. 1e3 -0 0.0000001 x");
+    expectTrue(t.nextLine());
+    expectEquals(3, t.nextDigitToken());
+    double[] d = new double[8];
+    expectTrue(t.nextDoubles(d, 1, 7));
+    expectEquals(0.0, d[0]);
+    expectEquals(1.0, d[1]);
+    expectEquals(-0.5, d[2]);
+    expectEquals(0.25, d[3]);
+    expectEquals(2.0, d[4]);
+    expectEquals(1000.0, d[5]);
+    expectTrue(Double.doubleToLongBits(d[6]) == Double.doubleToLongBits(-0.0));
+    expectTrue(d[7] == 1e-7);
+    try {
+      t.nextDoubles(d, 0, 1);
+      expectTrue(false);
+    }
+    catch (NumberFormatException e) {}
+    expectFalse(t.nextDoubles(d, 0, 1));
+  }
+
+  private static void testDoublesMatchParseDouble() throws IOException {
+    Random random = new Random(1);
+    StringBuilder sb = new StringBuilder();
+    String[] tokens = new String[10000];
+    for (int i = 0; i < tokens.length; ++i) {
+      long mantissa = random.nextLong() % 1000000000000000000L;
+      int scale = random.nextInt(25);
+      String s = BigDecimal.valueOf(mantissa, scale).toPlainString();
+      tokens[i] = s.substring(0, Math.min(s.length(), 1 + random.nextInt(24)));
+      if (tokens[i].equals("-")) tokens[i] = "-1";
+      sb.append(tokens[i]);
+      sb.append(' ');
+    }
+    LineTokenizer t = tokenizer(sb.toString());
+    expectTrue(t.nextLine());
+    double[] d = new double[tokens.length];
+    expectTrue(t.nextDoubles(d, 0, d.length));
+    for (int i = 0; i < tokens.length; ++i) {
+      if (Double.doubleToLongBits(d[i]) !=
+          Double.doubleToLongBits(Double.parseDouble(tokens[i]))) {
+        System.err.println("Mismatch: " + tokens[i]);
+        expectTrue(false);
+      }
+    }
+  }
+
+  private static void testByteBuffer() throws IOException {
+    byte[] bytes = "xx4 16 1 2 3\n1 0yy".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 4).slice();
+    LineTokenizer t = new LineTokenizer(buffer);
+    expectTrue(t.nextLine());
+    expectEquals(4, t.nextDigitToken());
+    double[] d = new double[4];
+    expectTrue(t.nextDoubles(d, 0, 4));
+    expectEquals(3.0, d[3]);
+    expectTrue(t.nextLine());
+    expectEquals("1", t.nextTokenOrNull());
+    expectEquals("0", t.nextTokenOrNull());
+    expectFalse(t.nextLine());
+  }
+
+  private static LineTokenizer tokenizer(String s) {
+    return new LineTokenizer(
+        new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+  }
+}
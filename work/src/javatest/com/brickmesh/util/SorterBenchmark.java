@@ -29,6 +29,7 @@ package com.brickmesh.util;
 
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.regex.Pattern;
 
 final class SorterBenchmark extends Benchmark {
   private static class Reverse2IntSortable implements Sorter.Sortable {
@@ -62,16 +63,37 @@ final class SorterBenchmark extends Benchmark {
     private final int[] array2_;
   }
 
-  public static void main(String args[]) {
-    long phaseStartNanos = System.nanoTime();
-    benchmarkIntArray(2000000);
-    phaseStartNanos = printRuntimeStats("int[] array", phaseStartNanos);
-    benchmarkIntArrayList(2000000);
-    phaseStartNanos = printRuntimeStats("ArrayList", phaseStartNanos);
-    benchmarkQuickSelect(100000);
-    phaseStartNanos = printRuntimeStats("QuickSelect", phaseStartNanos);
-    benchmarkQuickSort(100000);
-    phaseStartNanos = printRuntimeStats("QuickSort", phaseStartNanos);
+  public static void main(String args[]) throws Exception {
+    Pattern include = includePattern(args);
+    Options options = Options.fromSystemProperties();
+    run(include, "SorterBenchmark.intArray", new Operation() {
+      public Object run() {
+        return benchmarkIntArray(2000000);
+      }
+    }, options);
+    run(include, "SorterBenchmark.intArrayList", new Operation() {
+      public Object run() {
+        return benchmarkIntArrayList(2000000);
+      }
+    }, options);
+
+    // The sorts work on a copy of the same random input each time.
+    final int[] input = randomArray(100000);
+    run(include, "SorterBenchmark.quickselect", new Operation() {
+      public Object run() {
+        return benchmarkQuickSelect(input);
+      }
+    }, options);
+    run(include, "SorterBenchmark.quicksort", new Operation() {
+      public Object run() {
+        return benchmarkQuickSort(input);
+      }
+    }, options);
+    run(include, "SorterBenchmark.radixSort", new Operation() {
+      public Object run() {
+        return benchmarkRadixSort(input);
+      }
+    }, options);
   }
 
   private static long benchmarkIntArray(int size) {
@@ -98,25 +120,34 @@ final class SorterBenchmark extends Benchmark {
     return sum;
   }
 
-  private static void benchmarkQuickSelect(int size) {
+  private static int[] randomArray(int size) {
     Random random = new Random(1);
     int[] array = new int[size];
-    int[] array2 = new int[size];
     for (int i = 0; i < size; ++i) {
       array[i] = random.nextInt(size / 2);
     }
+    return array;
+  }
+
+  private static int[] benchmarkQuickSelect(int[] input) {
+    int[] array = input.clone();
+    int[] array2 = new int[array.length];
     Sorter.Sortable sortable = new Reverse2IntSortable(array, array2);
-    Sorter.quickselect(sortable, size / 2, random);
+    Sorter.quickselect(sortable, array.length / 2, new Random(1));
+    return array;
   }
 
-  private static void benchmarkQuickSort(int size) {
-    Random random = new Random(1);
-    int[] array = new int[size];
-    int[] array2 = new int[size];
-    for (int i = 0; i < size; ++i) {
-      array[i] = random.nextInt(size / 2);
-    }
+  private static int[] benchmarkQuickSort(int[] input) {
+    int[] array = input.clone();
+    int[] array2 = new int[array.length];
     Sorter.Sortable sortable = new Reverse2IntSortable(array, array2);
-    Sorter.quicksort(sortable, random);
+    Sorter.quicksort(sortable, new Random(1));
+    return array;
+  }
+
+  private static int[] benchmarkRadixSort(int[] input) {
+    int[] array = input.clone();
+    Sorter.radixSort(array, null);
+    return array;
   }
 }
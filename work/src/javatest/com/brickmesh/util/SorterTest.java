@@ -30,11 +30,17 @@ package com.brickmesh.util;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 final class SorterTest extends TestCase {
   public static void main(String[] args) {
     testQuickSort();
+    testQuickSortLarge();
+    testParallelQuickSort();
     testQuickSelect();
+    testRadixSortInt();
+    testRadixSortLong();
+    testTopK();
   }
 
   private static class ReverseIntSortable implements Sorter.Sortable {
@@ -80,6 +86,60 @@ final class SorterTest extends TestCase {
     }
   }
 
+  private static void testQuickSortLarge() {
+    // Random, sorted, reversed and all equal, with many duplicates.
+    for (int pattern = 0; pattern < 4; ++pattern) {
+      int numElems = 100000;
+      int[] a = createArray(numElems, pattern);
+      int[] expected = sortedCopyReversed(a);
+      Sorter.quicksort(new ReverseIntSortable(a), new Random(pattern));
+      expectEquals(expected, a);
+    }
+  }
+
+  private static void testParallelQuickSort() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int pattern = 0; pattern < 4; ++pattern) {
+        int numElems = 200000;
+        int[] a = createArray(numElems, pattern);
+        int[] expected = sortedCopyReversed(a);
+        Sorter.parallelQuicksort(new ReverseIntSortable(a), pool);
+        expectEquals(expected, a);
+      }
+      int[] empty = new int[0];
+      Sorter.parallelQuicksort(new ReverseIntSortable(empty), pool);
+      expectEquals(0, empty.length);
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  private static int[] createArray(int numElems, int pattern) {
+    Random r = new Random(pattern);
+    int[] a = new int[numElems];
+    for (int i = 0; i < numElems; ++i) {
+      switch (pattern) {
+        case 0: a[i] = r.nextInt(numElems / 10); break;
+        case 1: a[i] = i; break;
+        case 2: a[i] = numElems - i; break;
+        default: a[i] = 7; break;
+      }
+    }
+    return a;
+  }
+
+  private static int[] sortedCopyReversed(int[] a) {
+    int[] sorted = a.clone();
+    Arrays.sort(sorted);
+    int[] result = new int[sorted.length];
+    for (int i = 0; i < sorted.length; ++i) {
+      result[i] = sorted[sorted.length - 1 - i];
+    }
+    return result;
+  }
+
   private static void testQuickSelect() {
     for (int iter = 0; iter < 100; ++iter) {
       int numElems = 20;
@@ -105,6 +165,78 @@ final class SorterTest extends TestCase {
     }
   }
 
+  private static void testRadixSortInt() {
+    Random r = new Random(1);
+    int numElems = 10000;
+    int[] keys = new int[numElems];
+    int[] satellite = new int[numElems];
+    for (int i = 0; i < numElems; ++i) {
+      keys[i] = i % 3 == 0 ? r.nextInt() : r.nextInt(100) - 50;
+      satellite[i] = i;
+    }
+    int[] original = keys.clone();
+    int[] expected = keys.clone();
+    Arrays.sort(expected);
+    Sorter.radixSort(keys, new ReverseIntSortable(satellite));
+    expectEquals(expected, keys);
+    for (int i = 0; i < numElems; ++i) {
+      // The satellite follows the keys and the sort is stable.
+      expectEquals(original[satellite[i]], keys[i]);
+      if (i > 0 && keys[i] == keys[i - 1]) {
+        expectTrue(satellite[i] > satellite[i - 1]);
+      }
+    }
+    Sorter.radixSort(new int[0], null);
+  }
+
+  private static void testRadixSortLong() {
+    Random r = new Random(2);
+    int numElems = 10000;
+    long[] keys = new long[numElems];
+    int[] satellite = new int[numElems];
+    for (int i = 0; i < numElems; ++i) {
+      keys[i] = i % 2 == 0 ? r.nextLong() : ((long)r.nextInt(10) << 32) | r.nextInt(5);
+      satellite[i] = i;
+    }
+    long[] original = keys.clone();
+    long[] expected = keys.clone();
+    Arrays.sort(expected);
+    Sorter.radixSort(keys, new ReverseIntSortable(satellite));
+    expectTrue(Arrays.equals(expected, keys));
+    for (int i = 0; i < numElems; ++i) {
+      expectTrue(original[satellite[i]] == keys[i]);
+    }
+  }
+
+  private static void testTopK() {
+    Random r = new Random(3);
+    Sorter.TopK topK = new Sorter.TopK(100);
+    long[] values = new long[100000];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = r.nextInt(1000);
+      topK.offer(i, values[i]);
+    }
+    expectEquals(100, topK.size());
+    long[] keys = topK.keys();
+    long[] topValues = topK.values();
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    for (int i = 0; i < 100; ++i) {
+      expectTrue(topValues[i] == sorted[sorted.length - 1 - i]);
+      expectTrue(values[(int)keys[i]] == topValues[i]);
+      if (i > 0 && topValues[i] == topValues[i - 1]) {
+        expectTrue(keys[i] > keys[i - 1]);
+      }
+    }
+
+    Sorter.TopK small = new Sorter.TopK(5);
+    small.offer(1, 10);
+    small.offer(2, 30);
+    expectEquals(2, small.size());
+    expectTrue(Arrays.equals(new long[] { 2, 1 }, small.keys()));
+    expectEquals(0, new Sorter.TopK(0).keys().length);
+  }
+
   private static void shuffle(Sorter.Sortable sortable, Random r) {
     for (int i = 0; i < sortable.size() * 10; ++i) {
       int i1 = r.nextInt(sortable.size());
@@ -0,0 +1,13 @@
+#!/bin/bash
+set -e
+set -x
+
+src/build.sh
+
+# The optional argument selects the benchmarks by name, e.g. parseLxf.
+# Set LDRAW_PATH to the LDraw library to run the weight estimation too.
+TEST_CLASSPATH=../bin/protobuf-java-3.3.0.jar:jar/brickmesh.jar:class/test
+java -cp $TEST_CLASSPATH -Xmx1g -Dbenchmark.ldrawPath=${LDRAW_PATH} \
+  com.brickmesh.parts.PipelineBenchmark ${@:1}
+java -cp $TEST_CLASSPATH -Xmx1g \
+  com.brickmesh.util.SorterBenchmark ${@:1}